@@ -0,0 +1,358 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.appender.rolling.FileSize;
+import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An appender that ingests log events into Kusto straight from memory, without writing them to a rolling file first.
+ * Events are encoded by the layout into a small pool of reusable batch buffers. A batch is ingested once it reaches the
+ * configured size or age, while the events that follow are encoded into the next free buffer. The full batch is handed
+ * to an upload thread of the appender, so a logging thread never waits for an upload. The connection and the
+ * ingestion properties are taken from a nested KustoStrategy element, so the appender is configured with the same
+ * attributes as the rolling file setup.
+ * <p>
+ * The local disk is only used as an overflow spool: a batch that cannot be ingested after retries, that fills up while
+ * all the buffers are still being ingested, or that finds the ingestion workers saturated, is written to the spool
+ * directory. Spooled files are ingested again (and deleted) on start and whenever a batch goes through.
+ */
+@Plugin(name = "KustoAppender", category = Core.CATEGORY_NAME, elementType = Appender.ELEMENT_TYPE, printObject = true)
+public final class KustoAppender extends AbstractAppender {
+
+    private static final String DEFAULT_MAX_BATCH_SIZE = "4 MB";
+    private static final int DEFAULT_MAX_BATCH_AGE_SECONDS = 30;
+    private static final int DEFAULT_BATCH_BUFFERS = 2;
+    private static final int INITIAL_BUFFER_CAPACITY = 64 * 1024;
+    private static final String SPOOL_FILE_FORMAT = "kusto-spool-%d-%d.log";
+
+    private final KustoStrategy kustoStrategy;
+    private final KustoClientInstance kustoClientInstance;
+    private final long maxBatchBytes;
+    private final long maxBatchAgeMillis;
+    private final Path spoolDirectory;
+    private final BlockingQueue<KustoBatchBuffer> freeBuffers;
+    private final ReentrantLock batchLock = new ReentrantLock();
+    private final Set<CompletableFuture<?>> pendingBatches = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean spoolPending = new AtomicBoolean(true);
+    // the spooled files being replayed, which the next replays skip so that a file is not ingested twice
+    private final Set<Path> replayingSpoolFiles = ConcurrentHashMap.newKeySet();
+    private final AtomicLong spoolSequence = new AtomicLong();
+    private final ScheduledExecutorService flushScheduler;
+    // hands the full batches to ingestion, which runs the first attempt on the calling thread without async ingestion
+    private final ExecutorService batchUploader;
+    private KustoBatchBuffer currentBatch;
+
+    private KustoAppender(String name, Filter filter, Layout<? extends Serializable> layout, boolean ignoreExceptions,
+            KustoStrategy kustoStrategy, long maxBatchBytes, long maxBatchAgeMillis, int batchBuffers, Path spoolDirectory) {
+        super(name, filter, layout, ignoreExceptions, Property.EMPTY_ARRAY);
+        this.kustoStrategy = kustoStrategy;
+        this.kustoClientInstance = kustoStrategy.getKustoClientInstance();
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxBatchAgeMillis = maxBatchAgeMillis;
+        this.spoolDirectory = spoolDirectory;
+        this.freeBuffers = new ArrayBlockingQueue<>(batchBuffers);
+        int initialCapacity = (int) Math.min(maxBatchBytes, INITIAL_BUFFER_CAPACITY);
+        for (int i = 1; i < batchBuffers; i++) {
+            freeBuffers.add(new KustoBatchBuffer(initialCapacity));
+        }
+        this.currentBatch = new KustoBatchBuffer(initialCapacity);
+        this.flushScheduler = Executors.newSingleThreadScheduledExecutor(Log4jThreadFactory.createDaemonThreadFactory("KustoAppender-" + name));
+        this.batchUploader = Executors.newSingleThreadExecutor(Log4jThreadFactory.createDaemonThreadFactory("KustoAppenderUpload-" + name));
+    }
+
+    /**
+     * @param name               The name of the appender
+     * @param maxBatchSize       The size (e.g 4 MB) at which a batch is ingested
+     * @param maxBatchAgeSeconds The age of the first event in a batch at which the batch is ingested
+     * @param batchBuffers       The number of batch buffers, one is filled while the others are ingested
+     * @param spoolDirectory     The directory where batches are written when they cannot be ingested
+     * @param ignoreExceptions   If exceptions raised while appending are ignored
+     * @param layout             The layout that serializes the events, matching the table mapping
+     * @param filter             The filter for the appender
+     * @param kustoStrategy      The nested KustoStrategy that holds the connection and ingestion settings
+     * @return KustoAppender that ingests batches of log events from memory
+     */
+    @PluginFactory
+    public static KustoAppender createAppender(@PluginAttribute("name") final String name,
+            @PluginAttribute("maxBatchSize") final String maxBatchSize,
+            @PluginAttribute("maxBatchAgeSeconds") final String maxBatchAgeSeconds,
+            @PluginAttribute("batchBuffers") final String batchBuffers,
+            @PluginAttribute("spoolDirectory") final String spoolDirectory,
+            @PluginAttribute("ignoreExceptions") final String ignoreExceptions,
+            @PluginElement("Layout") Layout<? extends Serializable> layout,
+            @PluginElement("Filter") final Filter filter,
+            @PluginElement("KustoStrategy") final KustoStrategy kustoStrategy) {
+        Objects.requireNonNull(name, "KustoAppender requires a name");
+        Objects.requireNonNull(kustoStrategy, "KustoAppender requires a nested KustoStrategy with the connection details");
+        Objects.requireNonNull(spoolDirectory, "KustoAppender requires a spoolDirectory");
+        if (layout == null) {
+            layout = PatternLayout.createDefaultLayout();
+        }
+        long maxBatchBytes = FileSize.parse(maxBatchSize != null && !maxBatchSize.trim().isEmpty() ? maxBatchSize : DEFAULT_MAX_BATCH_SIZE,
+                0);
+        int maxBatchAge = maxBatchAgeSeconds != null && !maxBatchAgeSeconds.trim().isEmpty() ? Integer.parseInt(maxBatchAgeSeconds.trim())
+                : DEFAULT_MAX_BATCH_AGE_SECONDS;
+        int buffers = batchBuffers != null && !batchBuffers.trim().isEmpty() ? Math.max(1, Integer.parseInt(batchBuffers.trim()))
+                : DEFAULT_BATCH_BUFFERS;
+        boolean ignore = ignoreExceptions == null || ignoreExceptions.trim().isEmpty() || Boolean.parseBoolean(ignoreExceptions.trim());
+        return new KustoAppender(name, filter, layout, ignore, kustoStrategy, maxBatchBytes,
+                TimeUnit.SECONDS.toMillis(maxBatchAge), buffers, Paths.get(spoolDirectory));
+    }
+
+    @Override
+    public void start() {
+        super.start();
+        long checkIntervalMillis = Math.max(1, maxBatchAgeMillis / 4);
+        flushScheduler.scheduleWithFixedDelay(this::flushIfExpired, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+        flushScheduler.execute(this::replaySpool);
+        // spooled files that keep failing are backed out next to them
+        kustoClientInstance.watchSpoolDirectory(spoolDirectory);
+        kustoClientInstance.watchBackoutDirectory(spoolDirectory);
+    }
+
+    @Override
+    public void append(LogEvent event) {
+        KustoBatchBuffer fullBatch = null;
+        batchLock.lock();
+        try {
+            getLayout().encode(event, currentBatch);
+            currentBatch.markEvent(System.currentTimeMillis());
+            if (currentBatch.size() >= maxBatchBytes) {
+                fullBatch = rotateBatch();
+            }
+        } finally {
+            batchLock.unlock();
+        }
+        if (fullBatch != null) {
+            ingestBatch(fullBatch);
+        }
+    }
+
+    @Override
+    public boolean stop(long timeout, TimeUnit timeUnit) {
+        setStopping();
+        flushScheduler.shutdownNow();
+        KustoBatchBuffer lastBatch = null;
+        batchLock.lock();
+        try {
+            if (!currentBatch.isEmpty()) {
+                lastBatch = rotateBatch();
+            }
+        } finally {
+            batchLock.unlock();
+        }
+        if (lastBatch != null) {
+            ingestBatch(lastBatch);
+        }
+        // the shutdown timeout of the instance, unless the configuration is stopped with a shorter one
+        long timeoutMillis = kustoClientInstance.getShutdownTimeoutMillis();
+        if (timeout > 0) {
+            timeoutMillis = Math.min(timeoutMillis, timeUnit.toMillis(timeout));
+        }
+        try {
+            CompletableFuture.allOf(pendingBatches.toArray(new CompletableFuture<?>[0])).get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            LOGGER.warn("{} batches were still being ingested when appender {} stopped", pendingBatches.size(), getName());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ignored) {
+            // failed batches are spooled
+        }
+        // the batches that did not get to ingestion in time are spooled
+        for (Runnable batchUpload : batchUploader.shutdownNow()) {
+            ((BatchUpload) batchUpload).abandon();
+        }
+        // the last user of the instance closes it, the batches still pending are then spooled
+        kustoStrategy.release();
+        setStopped();
+        return true;
+    }
+
+    /**
+     * @return The instance the batches are ingested with
+     */
+    KustoClientInstance getKustoClientInstance() {
+        return kustoClientInstance;
+    }
+
+    private void flushIfExpired() {
+        KustoBatchBuffer fullBatch = null;
+        batchLock.lock();
+        try {
+            if (!currentBatch.isEmpty() && System.currentTimeMillis() - currentBatch.getFirstEventMillis() >= maxBatchAgeMillis) {
+                fullBatch = rotateBatch();
+            }
+        } finally {
+            batchLock.unlock();
+        }
+        if (fullBatch != null) {
+            ingestBatch(fullBatch);
+        }
+    }
+
+    /*
+     * Called with the batch lock held, only swaps the buffers: a free buffer takes the place of the full batch, which
+     * the caller hands to ingestion once the lock is released. If all the buffers are still being ingested, the batch
+     * is spooled instead of blocking the logging thread and null is returned.
+     */
+    private KustoBatchBuffer rotateBatch() {
+        KustoBatchBuffer nextBatch = freeBuffers.poll();
+        if (nextBatch == null) {
+            LOGGER.warn("All batch buffers of appender {} are being ingested, spooling {} bytes", getName(), currentBatch.size());
+            spool(currentBatch);
+            currentBatch.clear();
+            return null;
+        }
+        KustoBatchBuffer fullBatch = currentBatch;
+        currentBatch = nextBatch;
+        return fullBatch;
+    }
+
+    /*
+     * Called without the batch lock. The batch is pending (and waited for on stop) from now on, until it is ingested
+     * or spooled.
+     */
+    private void ingestBatch(KustoBatchBuffer fullBatch) {
+        BatchUpload batchUpload = new BatchUpload(fullBatch);
+        pendingBatches.add(batchUpload.completion);
+        batchUpload.completion.whenComplete((ignored, error) -> pendingBatches.remove(batchUpload.completion));
+        try {
+            batchUploader.execute(batchUpload);
+        } catch (RejectedExecutionException e) {
+            // stopping
+            batchUpload.abandon();
+        }
+    }
+
+    private void onBatchIngested(KustoBatchBuffer batch, Throwable error) {
+        if (error != null) {
+            LOGGER.warn("Ingestion of a batch of {} bytes failed, spooling it", batch.size(), error);
+            spool(batch);
+        }
+        batch.clear();
+        freeBuffers.add(batch);
+        if (error == null && spoolPending.get()) {
+            try {
+                flushScheduler.execute(this::replaySpool);
+            } catch (RejectedExecutionException ignored) {
+                // stopping, the spool is replayed on the next start
+            }
+        }
+    }
+
+    private void spool(KustoBatchBuffer batch) {
+        Path spoolFile = spoolDirectory.resolve(String.format(SPOOL_FILE_FORMAT, System.currentTimeMillis(), spoolSequence.incrementAndGet()));
+        try {
+            Files.createDirectories(spoolDirectory);
+            try (OutputStream outputStream = Files.newOutputStream(spoolFile)) {
+                outputStream.write(batch.array(), 0, batch.size());
+            }
+            kustoClientInstance.addSpooledFile(spoolFile);
+            spoolPending.set(true);
+        } catch (IOException e) {
+            LOGGER.error("Spooling a batch of {} bytes to {} failed, the batch is lost", batch.size(), spoolFile, e);
+        }
+    }
+
+    /*
+     * Spooled files are ingested like rolled files (and so backed out if they keep failing), and deleted once they are
+     * ingested. A replay runs whenever a batch goes through, so the files still being ingested by an earlier replay are
+     * skipped until their ingestion completes.
+     */
+    private void replaySpool() {
+        if (!spoolPending.compareAndSet(true, false) || Files.notExists(spoolDirectory)) {
+            return;
+        }
+        try (DirectoryStream<Path> spoolFiles = Files.newDirectoryStream(spoolDirectory, "kusto-spool-*.log")) {
+            for (Path spoolFile : spoolFiles) {
+                if (!replayingSpoolFiles.add(spoolFile)) {
+                    continue;
+                }
+                LOGGER.info("Ingesting spooled batch {}", spoolFile);
+                kustoClientInstance.ingestRolledFileAsync(spoolFile.toString()).whenComplete((result, error) -> {
+                    if (error == null) {
+                        try {
+                            Files.deleteIfExists(spoolFile);
+                            kustoClientInstance.removeSpooledFile(spoolFile);
+                        } catch (IOException e) {
+                            LOGGER.warn("Could not delete ingested spool file {}", spoolFile, e);
+                        }
+                    }
+                    replayingSpoolFiles.remove(spoolFile);
+                });
+            }
+        } catch (IOException e) {
+            LOGGER.error("Could not read the spool directory {}", spoolDirectory, e);
+            spoolPending.set(true);
+        }
+    }
+
+    /*
+     * A full batch on its way to ingestion. Without async ingestion the upload thread runs the first attempt, with it
+     * the attempt is queued on the ingestion workers and a batch that finds them saturated is spooled.
+     */
+    private final class BatchUpload implements Runnable {
+        private final KustoBatchBuffer batch;
+        private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+        private BatchUpload(KustoBatchBuffer batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void run() {
+            kustoClientInstance.ingestBatchAsync(batch.array(), batch.size()).whenComplete((result, error) -> {
+                onBatchIngested(batch, error);
+                completion.complete(null);
+            });
+        }
+
+        /*
+         * The appender stopped before the batch got to ingestion.
+         */
+        private void abandon() {
+            LOGGER.warn("Appender {} stopped before a batch of {} bytes was ingested, spooling it", getName(), batch.size());
+            spool(batch);
+            batch.clear();
+            freeBuffers.add(batch);
+            completion.complete(null);
+        }
+    }
+}
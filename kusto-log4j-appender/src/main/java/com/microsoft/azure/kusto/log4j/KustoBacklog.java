@@ -0,0 +1,27 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+/**
+ * The ingestion backlog of one destination table: the data that was rolled (or batched) but not ingested yet, and the
+ * data waiting on disk in the backout and spool directories. The values are read without locking and may be slightly
+ * behind.
+ */
+public interface KustoBacklog {
+
+    /**
+     * @return The number of uploads that are queued, waiting for a retry or in flight, plus the rolled files waiting to
+     *         be coalesced
+     */
+    int getPendingIngestions();
+
+    /**
+     * @return The (uncompressed) bytes of the pending ingestions
+     */
+    long getPendingBytes();
+
+    /**
+     * @return The bytes of the files in the backout and spool directories
+     */
+    long getSpoolBytes();
+}
@@ -0,0 +1,198 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.appender.RollingFileAppender;
+import org.apache.logging.log4j.core.appender.rolling.FileSize;
+import org.apache.logging.log4j.core.appender.rolling.RolloverStrategy;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginConfiguration;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.filter.AbstractFilter;
+import org.apache.logging.log4j.message.Message;
+
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A filter that sheds log events while the ingestion backlog of a Kusto appender grows, so that an incident that
+ * multiplies the log volume while the ingestion slows down does not fill the disk. The backlog is the data that waits
+ * to be ingested plus the data in the backout and spool directories, as reported by the KustoStrategy of the appender.
+ * <p>
+ * Below the low watermark every event passes. Above it the events less severe than the level (WARN by default) are
+ * sampled: the share that is kept goes down from all of them at the low watermark to minSampleRate at the high
+ * watermark. DEBUG and TRACE events are kept at the square of that share, so they are shed before INFO events. Events
+ * at the level or more severe always pass. The events that are sampled out are counted in the sampledOutEvents of the
+ * ingestion MXBean, and logged to the status logger when the backlog goes back under the low watermark.
+ */
+@Plugin(name = "KustoBacklogFilter", category = Core.CATEGORY_NAME, elementType = Filter.ELEMENT_TYPE, printObject = true)
+public final class KustoBacklogFilter extends AbstractFilter {
+
+    private static final String DEFAULT_LOW_WATERMARK = "64 MB";
+    private static final String DEFAULT_HIGH_WATERMARK = "512 MB";
+    private static final double DEFAULT_MIN_SAMPLE_RATE = 0;
+
+    private final Supplier<KustoClientInstance> instanceResolver;
+    private final long lowWatermark;
+    private final long highWatermark;
+    private final double minSampleRate;
+    private final Level level;
+    private final AtomicBoolean sampling = new AtomicBoolean();
+    // the events sampled out since the backlog passed the low watermark
+    private final LongAdder sampledOutEvents = new LongAdder();
+    private volatile KustoClientInstance kustoClientInstance;
+
+    KustoBacklogFilter(Supplier<KustoClientInstance> instanceResolver, long lowWatermark, long highWatermark, double minSampleRate,
+            Level level, Result onMatch, Result onMismatch) {
+        super(onMatch, onMismatch);
+        this.instanceResolver = instanceResolver;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = Math.max(lowWatermark, highWatermark);
+        this.minSampleRate = Math.max(0, Math.min(1, minSampleRate));
+        this.level = level;
+    }
+
+    /**
+     * @param appender      The name of the RollingFile appender with a KustoStrategy, or of the KustoAppender, whose
+     *                      backlog drives the sampling
+     * @param lowWatermark  The backlog (e.g 64 MB) above which events are sampled
+     * @param highWatermark The backlog (e.g 512 MB) at and above which only minSampleRate of the events are kept
+     * @param minSampleRate The share (0 to 1) of the events kept at the high watermark
+     * @param level         The level at and above which events are always kept
+     * @param onMatch       The result for the events that are kept
+     * @param onMismatch    The result for the events that are sampled out
+     * @param configuration The configuration the appender is looked up in
+     * @return KustoBacklogFilter that samples events by the ingestion backlog
+     */
+    @PluginFactory
+    public static KustoBacklogFilter createFilter(@PluginAttribute("appender") final String appender,
+            @PluginAttribute("lowWatermark") final String lowWatermark,
+            @PluginAttribute("highWatermark") final String highWatermark,
+            @PluginAttribute("minSampleRate") final String minSampleRate,
+            @PluginAttribute("level") final String level,
+            @PluginAttribute("onMatch") final String onMatch,
+            @PluginAttribute("onMismatch") final String onMismatch,
+            @PluginConfiguration final Configuration configuration) {
+        Objects.requireNonNull(appender, "KustoBacklogFilter requires the name of the appender whose backlog it follows");
+        long low = FileSize.parse(lowWatermark != null && !lowWatermark.trim().isEmpty() ? lowWatermark : DEFAULT_LOW_WATERMARK, 0);
+        long high = FileSize.parse(highWatermark != null && !highWatermark.trim().isEmpty() ? highWatermark : DEFAULT_HIGH_WATERMARK, 0);
+        double minRate = minSampleRate != null && !minSampleRate.trim().isEmpty() ? Double.parseDouble(minSampleRate.trim())
+                : DEFAULT_MIN_SAMPLE_RATE;
+        return new KustoBacklogFilter(() -> findInstance(configuration, appender), low, high, minRate, Level.toLevel(level, Level.WARN),
+                Result.toResult(onMatch, Result.NEUTRAL), Result.toResult(onMismatch, Result.DENY));
+    }
+
+    private static KustoClientInstance findInstance(Configuration configuration, String appenderName) {
+        Appender appender = configuration == null ? null : configuration.getAppender(appenderName);
+        if (appender instanceof KustoAppender) {
+            return ((KustoAppender) appender).getKustoClientInstance();
+        }
+        if (appender instanceof RollingFileAppender) {
+            RolloverStrategy rolloverStrategy = ((RollingFileAppender) appender).getManager().getRolloverStrategy();
+            if (rolloverStrategy instanceof KustoStrategy) {
+                return ((KustoStrategy) rolloverStrategy).getKustoClientInstance();
+            }
+        }
+        return null;
+    }
+
+    /*
+     * The appenders are all created before the filters start, the instance is looked up once.
+     */
+    @Override
+    public void start() {
+        kustoClientInstance = instanceResolver.get();
+        if (kustoClientInstance == null) {
+            LOGGER.error("KustoBacklogFilter found no RollingFile appender with a KustoStrategy or KustoAppender to follow, "
+                    + "no event is sampled out");
+        }
+        super.start();
+    }
+
+    @Override
+    public Result filter(LogEvent event) {
+        return filter(event.getLevel());
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object... params) {
+        return filter(level);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, Object msg, Throwable t) {
+        return filter(level);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, Message msg, Throwable t) {
+        return filter(level);
+    }
+
+    private Result filter(Level eventLevel) {
+        if (eventLevel.isMoreSpecificThan(level) || kustoClientInstance == null) {
+            return onMatch;
+        }
+        double sampleRate = getSampleRate();
+        if (sampleRate >= 1) {
+            return onMatch;
+        }
+        if (eventLevel.isLessSpecificThan(Level.DEBUG)) {
+            sampleRate *= sampleRate;
+        }
+        if (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            return onMatch;
+        }
+        sampledOutEvents.increment();
+        kustoClientInstance.onEventSampledOut();
+        return onMismatch;
+    }
+
+    /*
+     * Also reports the start and the end of the sampling, from the logging thread that sees the change first.
+     */
+    double getSampleRate() {
+        KustoBacklog backlog = kustoClientInstance.getBacklog();
+        long backlogBytes = backlog.getPendingBytes() + backlog.getSpoolBytes();
+        if (backlogBytes <= lowWatermark) {
+            if (sampling.compareAndSet(true, false)) {
+                LOGGER.warn("Ingestion backlog is back under {} bytes, {} events below {} were sampled out", lowWatermark,
+                        sampledOutEvents.sumThenReset(), level);
+            }
+            return 1;
+        }
+        if (sampling.compareAndSet(false, true)) {
+            LOGGER.warn("Ingestion backlog of {} bytes is above {} bytes, sampling events below {}", backlogBytes, lowWatermark, level);
+        }
+        if (backlogBytes >= highWatermark) {
+            return minSampleRate;
+        }
+        double position = (double) (backlogBytes - lowWatermark) / (highWatermark - lowWatermark);
+        return 1 - position * (1 - minSampleRate);
+    }
+
+    /**
+     * @return The number of events sampled out since the backlog last passed the low watermark
+     */
+    long getSampledOutEvents() {
+        return sampledOutEvents.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("KustoBacklogFilter(lowWatermark=%d, highWatermark=%d, minSampleRate=%s, level=%s)", lowWatermark,
+                highWatermark, minSampleRate, level);
+    }
+}
@@ -0,0 +1,188 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import com.microsoft.azure.kusto.ingest.result.IngestionResult;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Ingests the files in the backout directories again, so that files that failed during an outage do not have to be
+ * uploaded manually. The directories are scanned when they are first watched and then on a fixed interval. To avoid
+ * swamping the cluster after a long outage, the replay is limited to a number of files in flight and to a number of
+ * bytes per second. A file is deleted only once it has been ingested successfully, a file that fails again stays in
+ * place for the next scan unless the ingestion moved it away. Only the files directly in the directories are replayed,
+ * not those of their subdirectories.
+ */
+class KustoBackoutReplayer {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private final ScheduledExecutorService scheduler;
+    private final Function<String, CompletableFuture<IngestionResult>> ingestion;
+    private final long intervalMillis;
+    private final long bytesPerSecond;
+    private final int maxConcurrency;
+    private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+
+    // guarded by this
+    private final Deque<Path> pendingFiles = new ArrayDeque<>();
+    private final Set<Path> knownFiles = new HashSet<>();
+    private int inFlight;
+    private double availableBytes;
+    private long lastRefillNanos = System.nanoTime();
+    private boolean dispatchScheduled;
+
+    KustoBackoutReplayer(ScheduledExecutorService scheduler, Function<String, CompletableFuture<IngestionResult>> ingestion,
+            long intervalMillis, long bytesPerSecond, int maxConcurrency) {
+        this.scheduler = scheduler;
+        this.ingestion = ingestion;
+        this.intervalMillis = intervalMillis;
+        this.bytesPerSecond = bytesPerSecond;
+        this.maxConcurrency = maxConcurrency;
+        this.availableBytes = bytesPerSecond;
+    }
+
+    void start() {
+        scheduler.scheduleWithFixedDelay(this::scan, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a backout directory to the replay. A directory that was not watched yet is scanned right away.
+     *
+     * @param directory The backout directory
+     */
+    void watch(Path directory) {
+        if (directories.add(directory.toAbsolutePath().normalize())) {
+            LOGGER.info("Replaying files backed out to {}", directory);
+            execute(this::scan);
+        }
+    }
+
+    synchronized int getPendingFiles() {
+        return pendingFiles.size() + inFlight;
+    }
+
+    void scan() {
+        for (Path directory : directories) {
+            if (Files.notExists(directory)) {
+                continue;
+            }
+            try (DirectoryStream<Path> backedOutFiles = Files.newDirectoryStream(directory, Files::isRegularFile)) {
+                synchronized (this) {
+                    for (Path backedOutFile : backedOutFiles) {
+                        if (knownFiles.add(backedOutFile)) {
+                            pendingFiles.add(backedOutFile);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Could not scan the backout directory {}", directory, e);
+            }
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        List<Path> filesToReplay = new ArrayList<>();
+        synchronized (this) {
+            while (inFlight < maxConcurrency && !pendingFiles.isEmpty()) {
+                Path backedOutFile = pendingFiles.peek();
+                long size = sizeOf(backedOutFile);
+                refill();
+                // a file larger than the budget of one second waits for a full second of budget and goes into debt
+                double requiredBytes = Math.min(size, bytesPerSecond);
+                if (availableBytes < requiredBytes) {
+                    long waitMillis = (long) Math.ceil((requiredBytes - availableBytes) * 1000 / bytesPerSecond);
+                    if (!dispatchScheduled) {
+                        dispatchScheduled = true;
+                        schedule(waitMillis);
+                    }
+                    break;
+                }
+                availableBytes -= size;
+                pendingFiles.poll();
+                inFlight++;
+                filesToReplay.add(backedOutFile);
+            }
+        }
+        // the uploads are started outside of the lock, in sync mode the first attempt runs on this thread
+        filesToReplay.forEach(this::replay);
+    }
+
+    private void replay(Path backedOutFile) {
+        LOGGER.info("Replaying backed out file {}", backedOutFile);
+        ingestion.apply(backedOutFile.toString()).whenComplete((result, error) -> {
+            if (error == null) {
+                try {
+                    Files.deleteIfExists(backedOutFile);
+                } catch (IOException e) {
+                    LOGGER.warn("Could not delete replayed file {}", backedOutFile, e);
+                }
+            } else if (Files.exists(backedOutFile)) {
+                LOGGER.warn("Replay of backed out file {} failed, it will be retried on the next scan", backedOutFile, error);
+            } else {
+                // the ingestion set it aside, for good
+                LOGGER.warn("Replay of backed out file {} failed", backedOutFile, error);
+            }
+            synchronized (this) {
+                inFlight--;
+                knownFiles.remove(backedOutFile);
+            }
+            execute(this::dispatch);
+        });
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        availableBytes = Math.min(bytesPerSecond, availableBytes + (now - lastRefillNanos) * bytesPerSecond / 1e9);
+        lastRefillNanos = now;
+    }
+
+    private void schedule(long delayMillis) {
+        try {
+            scheduler.schedule(() -> {
+                synchronized (this) {
+                    dispatchScheduled = false;
+                }
+                dispatch();
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+            // shutting down, the remaining files are replayed after the next start
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            scheduler.execute(task);
+        } catch (RejectedExecutionException ignored) {
+            // shutting down, the remaining files are replayed after the next start
+        }
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
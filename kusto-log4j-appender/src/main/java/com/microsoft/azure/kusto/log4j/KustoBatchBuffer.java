@@ -0,0 +1,88 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable, growable buffer that layouts encode log events into. The buffer keeps its capacity when it is cleared, so
+ * once it has grown to the batch size no further allocation happens for the batches that follow.
+ */
+class KustoBatchBuffer implements ByteBufferDestination {
+
+    private ByteBuffer byteBuffer;
+    private long firstEventMillis;
+
+    KustoBatchBuffer(int initialCapacity) {
+        this.byteBuffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer() {
+        return byteBuffer;
+    }
+
+    @Override
+    public ByteBuffer drain(ByteBuffer buf) {
+        // nothing is consumed here, the encoder asks for more room so the batch grows
+        ensureCapacity(byteBuffer.capacity());
+        return byteBuffer;
+    }
+
+    @Override
+    public void writeBytes(ByteBuffer data) {
+        ensureCapacity(data.remaining());
+        byteBuffer.put(data);
+    }
+
+    @Override
+    public void writeBytes(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        byteBuffer.put(data, offset, length);
+    }
+
+    /**
+     * Records the arrival time of the first event of the batch, which the age based flush is measured from.
+     *
+     * @param nowMillis The current time
+     */
+    void markEvent(long nowMillis) {
+        if (firstEventMillis == 0) {
+            firstEventMillis = nowMillis;
+        }
+    }
+
+    long getFirstEventMillis() {
+        return firstEventMillis;
+    }
+
+    int size() {
+        return byteBuffer.position();
+    }
+
+    boolean isEmpty() {
+        return byteBuffer.position() == 0;
+    }
+
+    byte[] array() {
+        return byteBuffer.array();
+    }
+
+    void clear() {
+        byteBuffer.clear();
+        firstEventMillis = 0;
+    }
+
+    private void ensureCapacity(int additionalBytes) {
+        if (byteBuffer.remaining() >= additionalBytes) {
+            return;
+        }
+        int newCapacity = Math.max(byteBuffer.capacity() * 2, byteBuffer.position() + additionalBytes);
+        ByteBuffer grown = ByteBuffer.allocate(newCapacity);
+        byteBuffer.flip();
+        grown.put(byteBuffer);
+        byteBuffer = grown;
+    }
+}
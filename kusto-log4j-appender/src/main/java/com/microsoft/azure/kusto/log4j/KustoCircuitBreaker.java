@@ -0,0 +1,124 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops the uploads of a destination while the service looks unreachable, so that an outage does not make every rolled
+ * file run its full sequence of retries. After a number of consecutive transient failures the circuit opens and the
+ * attempts fail right away with a CircuitOpenException, which is not retried: the files go to the backout directory
+ * without a network call. Once the open duration has elapsed a single attempt is let through as a probe (half open),
+ * its success closes the circuit and its failure opens it again for another open duration.
+ * <p>
+ * A permanent failure (e.g. a bad mapping) shows that the service can be reached, it counts as a success here. A local
+ * failure (the file to upload cannot be read) says nothing about the service, it counts neither way.
+ */
+final class KustoCircuitBreaker {
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openDurationNanos;
+    private final LongSupplier nanoClock;
+    private final Consumer<State> stateListener;
+
+    // guarded by this
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAtNanos;
+    private boolean probeInFlight;
+
+    /**
+     * @param failureThreshold The number of consecutive transient failures that open the circuit, 0 to never open it
+     * @param openDurationMillis How long the circuit stays open before a probe is let through
+     * @param stateListener Told about the state changes, called under the lock of the breaker
+     */
+    KustoCircuitBreaker(int failureThreshold, long openDurationMillis, Consumer<State> stateListener) {
+        this(failureThreshold, openDurationMillis, stateListener, System::nanoTime);
+    }
+
+    KustoCircuitBreaker(int failureThreshold, long openDurationMillis, Consumer<State> stateListener, LongSupplier nanoClock) {
+        this.failureThreshold = failureThreshold;
+        this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMillis);
+        this.stateListener = stateListener;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * @return true if the attempt may go to the service, in which case its outcome must be reported with onSuccess,
+     *         onFailure or onLocalFailure
+     */
+    synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (nanoClock.getAsLong() - openedAtNanos < openDurationNanos) {
+                    return false;
+                }
+                transitionTo(State.HALF_OPEN);
+                probeInFlight = true;
+                return true;
+            default:
+                if (probeInFlight) {
+                    return false;
+                }
+                probeInFlight = true;
+                return true;
+        }
+    }
+
+    synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        probeInFlight = false;
+        if (state != State.CLOSED) {
+            transitionTo(State.CLOSED);
+        }
+    }
+
+    synchronized void onFailure() {
+        probeInFlight = false;
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failureThreshold > 0 && consecutiveFailures >= failureThreshold)) {
+            openedAtNanos = nanoClock.getAsLong();
+            transitionTo(State.OPEN);
+        }
+    }
+
+    /**
+     * Reports an attempt that failed before it reached the service. The consecutive failures are kept, and a probe
+     * that failed this way is given back so that the next attempt probes instead.
+     */
+    synchronized void onLocalFailure() {
+        probeInFlight = false;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    private void transitionTo(State newState) {
+        state = newState;
+        stateListener.accept(newState);
+    }
+
+    /**
+     * The failure of an attempt that was not made because the circuit is open.
+     */
+    static final class CircuitOpenException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        CircuitOpenException(String source) {
+            super(String.format("Ingestion circuit is open, %s was not uploaded", source));
+        }
+    }
+}
@@ -5,7 +5,9 @@ package com.microsoft.azure.kusto.log4j;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
 import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.LoaderUtil;
 
 import com.microsoft.azure.kusto.data.http.HttpClientProperties;
 import com.azure.core.http.ProxyOptions;
@@ -18,19 +20,26 @@ import com.microsoft.azure.kusto.ingest.IngestionProperties;
 import com.microsoft.azure.kusto.ingest.exceptions.IngestionClientException;
 import com.microsoft.azure.kusto.ingest.exceptions.IngestionServiceException;
 import com.microsoft.azure.kusto.ingest.result.IngestionResult;
+import com.microsoft.azure.kusto.ingest.result.IngestionStatus;
+import com.microsoft.azure.kusto.ingest.result.IngestionStatusResult;
+import com.microsoft.azure.kusto.ingest.result.OperationStatus;
+import com.microsoft.azure.kusto.ingest.source.CompressionType;
+import com.microsoft.azure.kusto.ingest.source.FileSourceInfo;
 import com.microsoft.azure.kusto.ingest.source.StreamSourceInfo;
 
 import static com.microsoft.azure.kusto.ingest.IngestionMapping.IngestionMappingKind.CSV;
 import static com.microsoft.azure.kusto.ingest.IngestionMapping.IngestionMappingKind.JSON;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
-import io.github.resilience4j.core.IntervalFunction;
 import io.github.resilience4j.retry.Retry;
 import io.github.resilience4j.retry.RetryConfig;
 import io.github.resilience4j.retry.RetryRegistry;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.MalformedURLException;
@@ -38,73 +47,149 @@ import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
 
 /**
- * A singleton class that does all the work to ingest data. It instantiates the Ingest client and all operations that
- * are performed from the perspective of ingestion. Uses an external library for performing queued ingestion retries
+ * A class that does all the work to ingest data into one destination table. It acquires the (shared) Ingest client and
+ * does all operations that are performed from the perspective of ingestion. Uses an external library for performing queued ingestion retries
  * and falls back in case of retries are exhausted to write data to a backout directory where the data can be manually
  * uploaded in case of transient failures manually. To avoid configuration where too many retries can be configured,
  * the retry attempts have been "hard-limited" (opinionated view) at 3 by coding it in the application. The time gap
- * between retries are however configurable.
+ * between retries are however configurable. In async mode the rolled files are queued on a bounded queue and uploaded by
+ * a pool of worker threads, so that the rollover thread is not held for the duration of the upload and its retries. The
+ * waits between retries are scheduled rather than slept, so a file waiting for its next attempt does not hold a thread.
+ * The retry scheduler only times the backoff, it never uploads: the retries go to the ingestion workers, or to retry
+ * workers when there are none or they are saturated.
  */
 public final class KustoClientInstance {
 
     private static final Logger LOGGER = StatusLogger.getLogger();
-    private static final AtomicReference<KustoClientInstance> ATOMIC_INSTANCE = new AtomicReference<>();
+    private static final Map<String, KustoClientInstance> INSTANCES = new ConcurrentHashMap<>();
+    private static final AtomicReference<KustoClientInstance> DEFAULT_INSTANCE = new AtomicReference<>();
     private static final RetryRegistry RETRY_REGISTRY = RetryRegistry.ofDefaults();
 
     static final String INGESTION_RETRIES = "INGESTION_RETRIES";
+    static final String BACKOUT_DIRECTORY = "backout";
+    // under a backout directory, the replayed files the service rejected
+    static final String FAILED_DIRECTORY = "failed";
+    private static final byte[] NEW_LINE = {'\n'};
+    static final String INGESTION_MODE_QUEUED = "queued";
+    static final String INGESTION_MODE_STREAMING = "streaming";
+    static final String INGESTION_MODE_MANAGED_STREAMING = "managedStreaming";
+    static final String CLIENT_INITIALIZATION_EAGER = "eager";
+    static final String CLIENT_INITIALIZATION_BACKGROUND = "background";
+    static final String CLIENT_INITIALIZATION_LAZY = "lazy";
+    // streaming ingestion accepts up to 4 MB of data per request
+    static final long STREAMING_INGESTION_MAX_BYTES = 4L * 1024 * 1024;
 
-    private final IngestClient ingestClient;
+    private final String destinationKey;
+    // the config the instance was created with, the configs of the same destination that follow share the instance
+    private final KustoLog4jConfig kustoLog4jConfig;
+    private final KustoLazyIngestClient ingestClient;
+    // only set in streaming mode, the queued ingestClient then takes the payloads above the streaming limit
+    private final KustoLazyIngestClient streamingIngestClient;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // the strategies that use the instance, guarded by the class lock
+    private final AtomicInteger references = new AtomicInteger();
+    private final long shutdownTimeoutMillis;
     private final IngestionProperties ingestionProperties;
+    private final ExecutorService ingestionExecutor;
+    private final KustoFileCoalescer fileCoalescer;
+    private final ScheduledExecutorService replayScheduler;
+    private final KustoBackoutReplayer backoutReplayer;
+    // null when the uploads are only bounded by the ingestion workers
+    private final Semaphore uploadPermits;
+    // null unless the ingestion status is tracked
+    private final ScheduledExecutorService statusScheduler;
+    private final KustoIngestionStatusTracker statusTracker;
+    // null unless the rolled files are deduplicated
+    private final KustoIngestionIndex ingestionIndex;
+    boolean compressUploads;
     Retry ingestionRetry;
+    ScheduledExecutorService retryScheduler;
+    // runs the retries that cannot go to the ingestion workers, its threads are created on demand
+    ExecutorService retryWorkers;
+    KustoIngestionMetrics ingestionMetrics;
+    KustoCompletionSequencer completionSequencer;
+    KustoCircuitBreaker circuitBreaker;
+    // the files of the backout and spool directories, under the spool quota shared with the other instances
+    KustoSpoolQuota.Owner spoolUsage;
 
-    @SuppressWarnings("unchecked")
-    private KustoClientInstance(KustoLog4jConfig kustoLog4jConfig) throws URISyntaxException {
+    private KustoClientInstance(KustoLog4jConfig kustoLog4jConfig, String destinationKey) throws URISyntaxException {
+        this.destinationKey = destinationKey;
+        this.kustoLog4jConfig = kustoLog4jConfig;
+        this.shutdownTimeoutMillis = TimeUnit.SECONDS.toMillis(kustoLog4jConfig.shutdownTimeoutSeconds);
         // default max attempts is 3 !
-        RetryConfig retryConfig = RetryConfig.custom()
-                .intervalFunction(IntervalFunction.ofExponentialBackoff(kustoLog4jConfig.backOffMinSeconds,
-                        IntervalFunction.DEFAULT_MULTIPLIER, kustoLog4jConfig.backOffMaxSeconds))
-                .retryOnException(this::isTransientException)
+        RetryConfig retryConfig = RetryConfig.<IngestionResult>custom()
+                .intervalBiFunction(new KustoRetryBackoff(TimeUnit.SECONDS.toMillis(kustoLog4jConfig.backOffMinSeconds),
+                        TimeUnit.SECONDS.toMillis(kustoLog4jConfig.backOffMaxSeconds)))
+                .retryOnException(KustoClientInstance::isTransientException)
                 .failAfterMaxAttempts(false)
                 .build();
-        ingestionRetry = RETRY_REGISTRY.retry(INGESTION_RETRIES, retryConfig);
-        boolean useManagedIdentity = StringUtils.isNotBlank(kustoLog4jConfig.managedIdentityId);
-        LOGGER.info("Using ManagedIdentity : {} / UserAuth : {} / CliAuth : {} ", useManagedIdentity, kustoLog4jConfig.useInteractiveAuth,
-                kustoLog4jConfig.useAzCliAuth);
-        ConnectionStringBuilder csb = null;
-        String authType = "AppId / AppKey";
-        if (useManagedIdentity) {
-            authType = "ManagedIdentity";
-            csb = ("system".equalsIgnoreCase(kustoLog4jConfig.managedIdentityId)
-                    ? ConnectionStringBuilder.createWithAadManagedIdentity(kustoLog4jConfig.clusterIngestUrl)
-                    : ConnectionStringBuilder.createWithAadManagedIdentity(kustoLog4jConfig.clusterIngestUrl, kustoLog4jConfig.appId));
-        } else if (kustoLog4jConfig.useInteractiveAuth) {
-            authType = "InteractiveAuth";
-            csb = ConnectionStringBuilder.createWithUserPrompt(kustoLog4jConfig.clusterIngestUrl,
-                    StringUtils.defaultIfBlank(kustoLog4jConfig.appTenant, "organizations"), null);
-        } else if (kustoLog4jConfig.useAzCliAuth) {
-            authType = "AzCliAuth";
-            csb = ConnectionStringBuilder.createWithAzureCli(kustoLog4jConfig.clusterIngestUrl);
-        } else {
-            LOGGER.info("Using AAD based auth as the fallback");
-            csb = ConnectionStringBuilder.createWithAadApplicationCredentials(kustoLog4jConfig.clusterIngestUrl,
-                    kustoLog4jConfig.appId,
-                    kustoLog4jConfig.appKey, kustoLog4jConfig.appTenant);
+        ingestionRetry = RETRY_REGISTRY.retry(String.format("%s_%s_%s", INGESTION_RETRIES, kustoLog4jConfig.dbName, kustoLog4jConfig.tableName),
+                retryConfig);
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(Log4jThreadFactory.createDaemonThreadFactory("KustoIngestionRetry"));
+        retryWorkers = Executors.newCachedThreadPool(Log4jThreadFactory.createDaemonThreadFactory("KustoRetryUpload"));
+        ingestionMetrics = new KustoIngestionMetrics(createIngestionListener(kustoLog4jConfig.ingestionListener), this::getQueuedFiles,
+                this::getQueuedBytes);
+        ingestionMetrics.register(kustoLog4jConfig.clusterIngestUrl, kustoLog4jConfig.dbName, kustoLog4jConfig.tableName,
+                kustoLog4jConfig.logTableMapping);
+        if (kustoLog4jConfig.spoolQuotaBytes > 0) {
+            LOGGER.info("Keeping the backout and spool directories under {} bytes, evicting with priority {}", kustoLog4jConfig.spoolQuotaBytes,
+                    kustoLog4jConfig.spoolPriority);
         }
-        Pair<String, String>[] additionalProperties = new Pair[] {Pair.of("AuthType", authType)};
-        csb.setConnectorDetails("Kusto.Log4j", getPackageVersion(), null, null, false, null, additionalProperties);
-        if (StringUtils.isNotBlank(kustoLog4jConfig.proxyUrl)) {
-            InetSocketAddress proxyAddress = parseProxyUrl(kustoLog4jConfig.proxyUrl);
-            HttpClientProperties proxy = HttpClientProperties.builder().proxy(new ProxyOptions(com.azure.core.http.ProxyOptions.Type.HTTP, proxyAddress))
-                    .build();
-            LOGGER.info("Using proxy : {} ", kustoLog4jConfig.proxyUrl);
-            ingestClient = IngestClientFactory.createClient(csb, proxy);
+        spoolUsage = KustoSpoolQuota.SHARED.register(kustoLog4jConfig.spoolQuotaBytes, kustoLog4jConfig.spoolPriority, ingestionMetrics);
+        circuitBreaker = new KustoCircuitBreaker(kustoLog4jConfig.circuitBreakerFailures,
+                TimeUnit.SECONDS.toMillis(kustoLog4jConfig.circuitBreakerOpenSeconds), this::onCircuitStateChanged);
+        KustoIngestClientSupplier clientSupplier = createIngestClientSupplier(kustoLog4jConfig.ingestClientSupplier);
+        // the clients of a supplier are shared by the appenders that use the same supplier
+        String connectionKey = clientSupplier != null ? kustoLog4jConfig.ingestClientSupplier : getConnectionKey(kustoLog4jConfig);
+        LOGGER.info("Using ingestion mode : {}", StringUtils.defaultIfBlank(kustoLog4jConfig.ingestionMode, INGESTION_MODE_QUEUED));
+        if (INGESTION_MODE_MANAGED_STREAMING.equalsIgnoreCase(kustoLog4jConfig.ingestionMode)) {
+            // the managed streaming client falls back to queued ingestion on its own for large payloads
+            ingestClient = new KustoLazyIngestClient(connectionKey + "|" + INGESTION_MODE_MANAGED_STREAMING,
+                    clientFactory(clientSupplier, INGESTION_MODE_MANAGED_STREAMING,
+                            () -> IngestClientFactory.createManagedStreamingIngestClient(createConnectionStringBuilder(kustoLog4jConfig),
+                                    createHttpClientProperties(kustoLog4jConfig))));
+            streamingIngestClient = null;
         } else {
-            ingestClient = IngestClientFactory.createClient(csb);
+            if (StringUtils.isNotBlank(kustoLog4jConfig.ingestionMode) && !INGESTION_MODE_QUEUED.equalsIgnoreCase(kustoLog4jConfig.ingestionMode)
+                    && !INGESTION_MODE_STREAMING.equalsIgnoreCase(kustoLog4jConfig.ingestionMode)) {
+                LOGGER.warn("Unknown ingestion mode {}, using queued ingestion", kustoLog4jConfig.ingestionMode);
+            }
+            ingestClient = new KustoLazyIngestClient(connectionKey + "|" + INGESTION_MODE_QUEUED,
+                    clientFactory(clientSupplier, INGESTION_MODE_QUEUED,
+                            () -> IngestClientFactory.createClient(createConnectionStringBuilder(kustoLog4jConfig),
+                                    createHttpClientProperties(kustoLog4jConfig))));
+            if (INGESTION_MODE_STREAMING.equalsIgnoreCase(kustoLog4jConfig.ingestionMode)) {
+                streamingIngestClient = new KustoLazyIngestClient(connectionKey + "|" + INGESTION_MODE_STREAMING,
+                        clientFactory(clientSupplier, INGESTION_MODE_STREAMING,
+                                () -> IngestClientFactory.createStreamingIngestClient(createConnectionStringBuilder(kustoLog4jConfig),
+                                        createHttpClientProperties(kustoLog4jConfig))));
+            } else {
+                streamingIngestClient = null;
+            }
         }
+        initializeClients(kustoLog4jConfig.clientInitialization);
         LOGGER.info("Ingesting logs to database : {} & table {}", kustoLog4jConfig.dbName,
                 kustoLog4jConfig.tableName);
         ingestionProperties = new IngestionProperties(kustoLog4jConfig.dbName, kustoLog4jConfig.tableName);
@@ -117,51 +202,717 @@ public final class KustoClientInstance {
             ingestionProperties.getIngestionMapping()
                     .setIngestionMappingReference(kustoLog4jConfig.logTableMapping, mappingType);
         }
+        if (kustoLog4jConfig.statusTracking) {
+            LOGGER.info("Tracking the status of up to {} ingestions, polled every {} seconds", kustoLog4jConfig.statusTrackingCapacity,
+                    kustoLog4jConfig.statusPollIntervalSeconds);
+            // the service only writes the status of the ingestions that report it
+            ingestionProperties.setReportLevel(IngestionProperties.IngestionReportLevel.FAILURES_AND_SUCCESSES);
+            ingestionProperties.setReportMethod(IngestionProperties.IngestionReportMethod.TABLE);
+            statusScheduler = Executors.newSingleThreadScheduledExecutor(Log4jThreadFactory.createDaemonThreadFactory("KustoIngestionStatus"));
+            statusTracker = new KustoIngestionStatusTracker(kustoLog4jConfig.statusTrackingCapacity, ingestionMetrics);
+            statusTracker.start(statusScheduler, TimeUnit.SECONDS.toMillis(kustoLog4jConfig.statusPollIntervalSeconds));
+        } else {
+            statusScheduler = null;
+            statusTracker = null;
+        }
+        if (StringUtils.isNotBlank(kustoLog4jConfig.deduplicationIndex)) {
+            LOGGER.info("Deduplicating rolled files with the index {} of {} file keys", kustoLog4jConfig.deduplicationIndex,
+                    kustoLog4jConfig.deduplicationIndexCapacity);
+            ingestionIndex = KustoIngestionIndex.open(Paths.get(kustoLog4jConfig.deduplicationIndex),
+                    kustoLog4jConfig.deduplicationIndexCapacity);
+        } else {
+            ingestionIndex = null;
+        }
+        compressUploads = kustoLog4jConfig.compressUploads;
+        completionSequencer = new KustoCompletionSequencer();
+        if (kustoLog4jConfig.maxConcurrentUploads > 0) {
+            LOGGER.info("Uploading at most {} files at a time", kustoLog4jConfig.maxConcurrentUploads);
+            uploadPermits = new Semaphore(kustoLog4jConfig.maxConcurrentUploads, true);
+        } else {
+            uploadPermits = null;
+        }
+        if (kustoLog4jConfig.asyncIngestion) {
+            LOGGER.info("Using async ingestion with {} workers and a queue capacity of {}", kustoLog4jConfig.ingestionWorkers,
+                    kustoLog4jConfig.ingestionQueueCapacity);
+            ingestionExecutor = KustoIngestionWorkers.create(kustoLog4jConfig.ingestionWorkers, kustoLog4jConfig.ingestionQueueCapacity,
+                    kustoLog4jConfig.virtualThreads);
+        } else if (kustoLog4jConfig.coalesceBytes > 0) {
+            // the coalescer hands its files over on the retry scheduler, which also runs its timer, the backoff and the
+            // client warm-up: the uploads get a worker of their own rather than blocking it
+            LOGGER.info("Coalescing without async ingestion, uploading on a dedicated worker");
+            ingestionExecutor = KustoIngestionWorkers.create(1, kustoLog4jConfig.ingestionQueueCapacity, kustoLog4jConfig.virtualThreads);
+        } else {
+            ingestionExecutor = null;
+        }
+        if (kustoLog4jConfig.coalesceBytes > 0) {
+            LOGGER.info("Coalescing rolled files up to {} bytes or {} seconds", kustoLog4jConfig.coalesceBytes,
+                    kustoLog4jConfig.coalesceMaxDelaySeconds);
+            fileCoalescer = new KustoFileCoalescer(kustoLog4jConfig.coalesceBytes,
+                    TimeUnit.SECONDS.toMillis(kustoLog4jConfig.coalesceMaxDelaySeconds), retryScheduler, this::ingestCoalescedFiles);
+        } else {
+            fileCoalescer = null;
+        }
+        if (kustoLog4jConfig.replayBackout) {
+            LOGGER.info("Replaying backed out files every {} seconds with {} files in flight and {} bytes per second",
+                    kustoLog4jConfig.replayIntervalSeconds, kustoLog4jConfig.replayConcurrency, kustoLog4jConfig.replayBytesPerSecond);
+            replayScheduler = Executors.newSingleThreadScheduledExecutor(Log4jThreadFactory.createDaemonThreadFactory("KustoBackoutReplay"));
+            backoutReplayer = new KustoBackoutReplayer(replayScheduler, this::replayBackedOutFile,
+                    TimeUnit.SECONDS.toMillis(kustoLog4jConfig.replayIntervalSeconds), kustoLog4jConfig.replayBytesPerSecond,
+                    kustoLog4jConfig.replayConcurrency);
+            backoutReplayer.start();
+            if (StringUtils.isNotBlank(kustoLog4jConfig.replayDirectory)) {
+                backoutReplayer.watch(Paths.get(kustoLog4jConfig.replayDirectory));
+            }
+        } else {
+            replayScheduler = null;
+            backoutReplayer = null;
+        }
+        if (StringUtils.isNotBlank(kustoLog4jConfig.replayDirectory)) {
+            watchBackedOutFiles(Paths.get(kustoLog4jConfig.replayDirectory));
+        }
     }
 
     /**
-     * The instance is created based on the KustoLog4jConfig
+     * The instance is created based on the KustoLog4jConfig. There is one instance per destination (cluster, database,
+     * table and mapping), the instances share their ingest clients when they use the same cluster and credentials. Each
+     * call takes a reference on the instance, which is given back with {@link #release()}. A config of a destination
+     * that already has an instance gets that instance, with the attributes it was created with: the differing attributes
+     * are logged.
      *
      * @param kustoLog4jConfig The config as passed by the application
      * @return The KustoClientInstance that will be operated on in the rest of the application
      * @throws URISyntaxException When the URI passed is invalid
      */
     static KustoClientInstance getInstance(KustoLog4jConfig kustoLog4jConfig) throws URISyntaxException {
-        KustoClientInstance result = ATOMIC_INSTANCE.get();
-        if (result != null) {
-            return result;
-        }
+        String destinationKey = getDestinationKey(kustoLog4jConfig);
         synchronized (KustoClientInstance.class) {
-            if (ATOMIC_INSTANCE.get() == null) {
-                ATOMIC_INSTANCE.set(new KustoClientInstance(kustoLog4jConfig));
+            KustoClientInstance result = INSTANCES.get(destinationKey);
+            if (result == null) {
+                result = new KustoClientInstance(kustoLog4jConfig, destinationKey);
+                INSTANCES.put(destinationKey, result);
+                KustoClientInstance created = result;
+                DEFAULT_INSTANCE.updateAndGet(current -> current == null || current.closed.get() ? created : current);
+            } else {
+                List<String> differing = result.kustoLog4jConfig.getDifferingAttributes(kustoLog4jConfig);
+                if (!differing.isEmpty()) {
+                    LOGGER.warn("Ingestion into {} is already running, its {} are kept until it stops: the new values are ignored",
+                            destinationKey, differing);
+                }
             }
-            return ATOMIC_INSTANCE.get();
+            result.references.incrementAndGet();
+            return result;
         }
     }
 
     /**
-     * The instance that is created with the config is returned for use in parts of the application
+     * The first instance that is created with a config is returned for the parts of the application that are not tied
+     * to a particular appender
      *
      * @return The KustoClientInstance that will be operated on in the rest of the application
      */
     static KustoClientInstance getInstance() {
-        return ATOMIC_INSTANCE.get();
+        return DEFAULT_INSTANCE.get();
+    }
+
+    /*
+     * Eager creation keeps the configuration waiting for the clients, as it used to, and fails it if they cannot be
+     * created. In the background, the clients are created by the retry scheduler (which has nothing to do before the
+     * first upload) so that they are ready by the first rollover. Lazily, they are created by the first upload, for jobs
+     * that may not log enough to roll a file.
+     */
+    private void initializeClients(String clientInitialization) throws URISyntaxException {
+        if (CLIENT_INITIALIZATION_EAGER.equalsIgnoreCase(clientInitialization)) {
+            try {
+                ingestClient.get();
+                if (streamingIngestClient != null) {
+                    streamingIngestClient.get();
+                }
+            } catch (IngestionClientException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof URISyntaxException) {
+                    throw (URISyntaxException) cause;
+                }
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(e);
+            }
+        } else if (CLIENT_INITIALIZATION_LAZY.equalsIgnoreCase(clientInitialization)) {
+            LOGGER.info("Creating the ingest client on the first upload");
+        } else {
+            if (StringUtils.isNotBlank(clientInitialization) && !CLIENT_INITIALIZATION_BACKGROUND.equalsIgnoreCase(clientInitialization)) {
+                LOGGER.warn("Unknown client initialization {}, creating the ingest client in the background", clientInitialization);
+            }
+            ingestClient.warmUp(retryScheduler);
+            if (streamingIngestClient != null) {
+                streamingIngestClient.warmUp(retryScheduler);
+            }
+        }
+    }
+
+    private static KustoIngestionListener createIngestionListener(String className) {
+        if (StringUtils.isBlank(className)) {
+            return null;
+        }
+        try {
+            return LoaderUtil.newCheckedInstanceOf(className, KustoIngestionListener.class);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            LOGGER.error("Could not create the ingestion listener {}, ingestion events are only published through JMX", className, e);
+            return null;
+        }
+    }
+
+    private static KustoIngestClientSupplier createIngestClientSupplier(String className) {
+        if (StringUtils.isBlank(className)) {
+            return null;
+        }
+        try {
+            KustoIngestClientSupplier clientSupplier = LoaderUtil.newCheckedInstanceOf(className, KustoIngestClientSupplier.class);
+            LOGGER.info("Using the ingest clients of {}", className);
+            return clientSupplier;
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            LOGGER.error("Could not create the ingest client supplier {}, using the clients of the Kusto SDK", className, e);
+            return null;
+        }
+    }
+
+    private static KustoIngestClientRegistry.ClientFactory clientFactory(KustoIngestClientSupplier clientSupplier, String ingestionMode,
+            KustoIngestClientRegistry.ClientFactory sdkClientFactory) {
+        return clientSupplier == null ? sdkClientFactory : () -> clientSupplier.createClient(ingestionMode);
+    }
+
+    private int getQueuedFiles() {
+        return fileCoalescer == null ? 0 : fileCoalescer.getPendingFiles();
+    }
+
+    private long getQueuedBytes() {
+        return fileCoalescer == null ? 0 : fileCoalescer.getPendingBytes();
+    }
+
+    /**
+     * @return The pending ingestions and the spool usage of the destination
+     */
+    KustoBacklog getBacklog() {
+        return ingestionMetrics;
+    }
+
+    /**
+     * Counts an event that a KustoBacklogFilter dropped because of the backlog.
+     */
+    void onEventSampledOut() {
+        ingestionMetrics.onSampledOut();
+    }
+
+    /**
+     * @return The number of uploads that are queued, waiting for a retry or in flight, plus the rolled files waiting to
+     *         be coalesced
+     */
+    int getPendingIngestions() {
+        return ingestionMetrics.getPendingIngestions();
+    }
+
+    boolean isAsyncIngestion() {
+        return ingestionExecutor != null || fileCoalescer != null;
+    }
+
+    /**
+     * Hands the rolled file over to the ingestion workers (or to the coalescer when rolled files are coalesced) and
+     * returns immediately.
+     *
+     * @param filePath The rolled file to ingest
+     */
+    void submitRolledFile(String filePath) {
+        if (fileCoalescer != null) {
+            fileCoalescer.add(filePath);
+        } else {
+            ingestRolledFileAsync(filePath);
+        }
     }
 
+    /**
+     * Ingests the coalesced rolled files as one concatenated blob. Archives and files that cannot be read are ingested
+     * (or backed out) on their own, so that they do not fail the others. If the blob fails with a permanent error, the
+     * files are ingested one by one so that only the bad file ends up in the backout directory. If the retries are
+     * exhausted, each file is backed out.
+     *
+     * @param filePaths The rolled files in the order they were rolled
+     */
+    void ingestCoalescedFiles(List<String> filePaths) {
+        List<String> coalescedFiles = new ArrayList<>();
+        for (String filePath : filePaths) {
+            Path rolledFile = resolveRolledFile(filePath);
+            if (getArchiveCompressionType(rolledFile) != null || !Files.isReadable(rolledFile)) {
+                ingestRolledFileAsync(filePath);
+            } else {
+                coalescedFiles.add(filePath);
+            }
+        }
+        if (coalescedFiles.size() <= 1) {
+            coalescedFiles.forEach(this::ingestRolledFileAsync);
+            return;
+        }
+        String source = String.format("%d coalesced files", coalescedFiles.size());
+        long coalescedBytes = coalescedFiles.stream().mapToLong(KustoClientInstance::sizeOfRolledFile).sum();
+        ingestionMetrics.onIngestionStarted(coalescedBytes);
+        completionSequencer.inOrder(executeWithRetries(source, () -> ingestFiles(coalescedFiles), true),
+                (result, error) -> {
+                    ingestionMetrics.onIngestionCompleted(coalescedBytes);
+                    if (error == null) {
+                        LOGGER.debug("Ingested {} : {}", source, coalescedFiles);
+                    } else if (isTransientException(error) || error instanceof KustoCircuitBreaker.CircuitOpenException) {
+                        LOGGER.warn("Ingestion of {} failed post retries", source, error);
+                        ingestionMetrics.onFailed(source, error);
+                        coalescedFiles.forEach(this::backOutFile);
+                    } else {
+                        LOGGER.warn("Ingestion of {} failed, ingesting the files one by one", source, error);
+                        coalescedFiles.forEach(this::ingestRolledFileAsync);
+                    }
+                });
+    }
+
+    /**
+     * Ingests the rolled file without blocking the caller. Each attempt runs on the ingestion workers (or on the calling
+     * thread when async ingestion is not configured) and the backoff between attempts is scheduled on the retry
+     * scheduler. If the retries are exhausted the file is moved to the backout directory before the returned future
+     * completes exceptionally. Files are uploaded in parallel, but their completions (backout, metrics and the returned
+     * future) are released in the order the files were submitted. A spooled file that is ingested again is not evicted
+     * by the spool quota meanwhile.
+     *
+     * @param filePath The rolled file to ingest
+     * @return A future that completes with the result of the successful attempt
+     */
+    CompletableFuture<IngestionResult> ingestRolledFileAsync(String filePath) {
+        long bytes = sizeOfRolledFile(filePath);
+        Path file = Paths.get(filePath);
+        spoolUsage.pin(file);
+        ingestionMetrics.onIngestionStarted(bytes);
+        return completionSequencer.inOrder(executeWithRetries(filePath, () -> ingestLogs(filePath), true), (result, error) -> {
+            ingestionMetrics.onIngestionCompleted(bytes);
+            if (error != null) {
+                ingestionMetrics.onFailed(filePath, error);
+                backOutFile(filePath);
+            }
+            spoolUsage.unpin(file);
+        });
+    }
+
+    /**
+     * Ingests a batch of serialized log events straight from memory, with the same retries as rolled files. The batch
+     * must not be modified until the returned future completes. On failure nothing is backed out, the caller decides
+     * where the batch goes. Unlike a rolled file, a batch that finds the ingestion workers saturated is not uploaded on
+     * the calling thread: it fails with a RejectedExecutionException, without retries, so the caller can spool it.
+     *
+     * @param batch  The buffer holding the serialized events
+     * @param length The number of bytes of the buffer to ingest
+     * @return A future that completes with the result of the successful attempt
+     */
+    CompletableFuture<IngestionResult> ingestBatchAsync(byte[] batch, int length) {
+        String source = "in-memory batch";
+        ingestionMetrics.onIngestionStarted(length);
+        return completionSequencer.inOrder(executeWithRetries(source, () -> ingestBytes(batch, length), false), (result, error) -> {
+            ingestionMetrics.onIngestionCompleted(length);
+            if (error != null) {
+                ingestionMetrics.onFailed(source, error);
+            }
+        });
+    }
+
+    /**
+     * Ingests a file from a backout directory with the same retries as rolled files. Unlike rolled files, a file that
+     * fails with a transient error is left where it is, for a later pass. A file the service rejects (a bad mapping,
+     * malformed data) would fail on every pass, it is moved to the failed directory under its backout directory, which
+     * is not replayed. The file is not evicted by the spool quota while it is replayed.
+     *
+     * @param filePath The backed out file to ingest
+     * @return A future that completes with the result of the successful attempt
+     */
+    CompletableFuture<IngestionResult> replayBackedOutFile(String filePath) {
+        Path file = Paths.get(filePath);
+        spoolUsage.pin(file);
+        return executeWithRetries(filePath, () -> ingestLogs(filePath), true).whenComplete((result, error) -> {
+            spoolUsage.unpin(file);
+            if (error == null) {
+                // the replay deletes the file
+                spoolUsage.remove(Paths.get(filePath));
+            } else if (!(error instanceof KustoCircuitBreaker.CircuitOpenException)) {
+                // the file was not even tried while the circuit is open, it is replayed on a later pass
+                ingestionMetrics.onFailed(filePath, error);
+                if (!isTransientException(error)) {
+                    setAsideFailedFile(Paths.get(filePath));
+                }
+            }
+        });
+    }
+
+    private void setAsideFailedFile(Path backedOutFile) {
+        Path failedFile = backedOutFile.resolveSibling(FAILED_DIRECTORY).resolve(backedOutFile.getFileName());
+        try {
+            Files.createDirectories(failedFile.getParent());
+            Files.move(backedOutFile, failedFile, REPLACE_EXISTING);
+            // still on the disk, still under the spool quota
+            spoolUsage.remove(backedOutFile);
+            spoolUsage.add(failedFile);
+            LOGGER.warn("Replay of {} was rejected by the service, moved it to {}", backedOutFile, failedFile);
+        } catch (IOException e) {
+            LOGGER.warn("Could not move the rejected file {} to {}", backedOutFile, failedFile, e);
+        }
+    }
+
+    /**
+     * Makes the backout directory next to the rolled files known to the replay, if backed out files are replayed.
+     *
+     * @param rolledFileDirectory The directory the rolled files are written to
+     */
+    void watchBackoutDirectory(Path rolledFileDirectory) {
+        watchBackedOutFiles(rolledFileDirectory.resolve(BACKOUT_DIRECTORY));
+        if (backoutReplayer != null) {
+            backoutReplayer.watch(rolledFileDirectory.resolve(BACKOUT_DIRECTORY));
+        }
+    }
+
+    /*
+     * The replayed files the service rejected are set aside under the directory, they still take up the disk.
+     */
+    private void watchBackedOutFiles(Path backoutDirectory) {
+        spoolUsage.watch(backoutDirectory);
+        spoolUsage.watch(backoutDirectory.resolve(FAILED_DIRECTORY));
+    }
+
+    /**
+     * Counts the files of a spool directory (of a KustoAppender) towards the spool quota and the backlog.
+     *
+     * @param spoolDirectory The directory where batches are spooled
+     */
+    void watchSpoolDirectory(Path spoolDirectory) {
+        spoolUsage.watch(spoolDirectory);
+    }
+
+    /**
+     * Counts a batch that was just spooled, which may evict older files to stay under the spool quota.
+     *
+     * @param spoolFile The spooled batch
+     */
+    void addSpooledFile(Path spoolFile) {
+        spoolUsage.add(spoolFile);
+    }
+
+    /**
+     * @param spoolFile A spooled batch that was ingested and deleted
+     */
+    void removeSpooledFile(Path spoolFile) {
+        spoolUsage.remove(spoolFile);
+    }
+
+    private static long sizeOfRolledFile(String filePath) {
+        return sizeOf(resolveRolledFile(filePath));
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            // deleted in the meantime
+            return 0;
+        }
+    }
+
+    /*
+     * Runs the attempts with the retries of the instance. The failure of an attempt is kept so that the retry that
+     * follows it can be reported along with its cause.
+     */
+    private CompletableFuture<IngestionResult> executeWithRetries(String source, Callable<IngestionResult> ingestCall,
+            boolean callerRunsWhenSaturated) {
+        AtomicReference<Throwable> lastFailure = new AtomicReference<>();
+        AtomicInteger attempts = new AtomicInteger();
+        return ingestionRetry.executeCompletionStage(retryScheduler, () -> {
+            Throwable previousFailure = lastFailure.getAndSet(null);
+            if (previousFailure != null) {
+                ingestionMetrics.onRetry(source, previousFailure);
+            }
+            boolean retry = attempts.getAndIncrement() > 0;
+            return attemptIngestion(source, () -> {
+                try {
+                    return ingestCall.call();
+                } catch (Exception e) {
+                    lastFailure.set(e);
+                    throw e;
+                }
+            }, retry, callerRunsWhenSaturated);
+        }).toCompletableFuture();
+    }
+
+    /*
+     * If the queue is full (or the workers are shutting down) the first attempt is run on the calling thread instead, so
+     * that back pressure is applied rather than dropping the file. The callers that have somewhere else to put the data
+     * (in-memory batches are spooled) get the rejection instead. A retry is called on the retry scheduler, which would be
+     * held by the upload: without ingestion workers, or when they are saturated, it goes to the retry workers.
+     */
+    private CompletableFuture<IngestionResult> attemptIngestion(String source, Callable<IngestionResult> ingestCall, boolean retry,
+            boolean callerRunsWhenSaturated) {
+        CompletableFuture<IngestionResult> attempt = new CompletableFuture<>();
+        Runnable ingestion = () -> {
+            try {
+                attempt.complete(callThroughCircuitBreaker(source, ingestCall));
+            } catch (Exception e) {
+                attempt.completeExceptionally(e);
+            }
+        };
+        if (ingestionExecutor == null) {
+            if (retry) {
+                runOnRetryWorker(source, ingestion);
+            } else {
+                ingestion.run();
+            }
+            return attempt;
+        }
+        try {
+            ingestionExecutor.execute(ingestion);
+        } catch (RejectedExecutionException e) {
+            if (retry && callerRunsWhenSaturated) {
+                runOnRetryWorker(source, ingestion);
+                return attempt;
+            }
+            if (!callerRunsWhenSaturated) {
+                LOGGER.warn("Ingestion queue is full or shut down, handing {} back", source);
+                attempt.completeExceptionally(e);
+                return attempt;
+            }
+            LOGGER.warn("Ingestion queue is full or shut down, ingesting {} on the calling thread", source);
+            ingestion.run();
+        }
+        return attempt;
+    }
+
+    private void runOnRetryWorker(String source, Runnable ingestion) {
+        try {
+            retryWorkers.execute(ingestion);
+        } catch (RejectedExecutionException e) {
+            // closing, the ingestion is abandoned and waits for nothing but this attempt
+            LOGGER.debug("Retry workers are shut down, retrying {} on the retry scheduler", source);
+            ingestion.run();
+        }
+    }
+
+    /*
+     * The circuit breaker is asked before the upload permit, so that an attempt made while the circuit is open fails
+     * without waiting for the uploads in flight. Only the failures to reach the service (network, throttling, errors of
+     * the service) count towards opening it: a rolled file that cannot be read is a problem of the local disk.
+     */
+    private IngestionResult callThroughCircuitBreaker(String source, Callable<IngestionResult> ingestCall) throws Exception {
+        if (!circuitBreaker.tryAcquire()) {
+            ingestionMetrics.onShortCircuited();
+            throw new KustoCircuitBreaker.CircuitOpenException(source);
+        }
+        try {
+            IngestionResult ingestionResult = callWithPermit(ingestCall);
+            circuitBreaker.onSuccess();
+            return ingestionResult;
+        } catch (Exception e) {
+            if (!isTransientException(e)) {
+                // the service answered
+                circuitBreaker.onSuccess();
+            } else if (KustoRetryBackoff.classify(e) == KustoRetryBackoff.FailureKind.LOCAL) {
+                circuitBreaker.onLocalFailure();
+            } else {
+                circuitBreaker.onFailure();
+            }
+            throw e;
+        }
+    }
+
+    private void onCircuitStateChanged(KustoCircuitBreaker.State state) {
+        if (state == KustoCircuitBreaker.State.OPEN) {
+            LOGGER.warn("Ingestion into {} keeps failing, uploads fail without a network call until a probe succeeds", destinationKey);
+        } else {
+            LOGGER.info("Ingestion circuit of {} is {}", destinationKey, state);
+        }
+        ingestionMetrics.onCircuitStateChanged(state);
+    }
+
+    /*
+     * The permits cap the uploads of the destination whatever thread runs them: the workers, a rollover thread when the
+     * queue is full or in synchronous mode, the replay. They are fair, so waiting uploads start in the order they came.
+     */
+    private IngestionResult callWithPermit(Callable<IngestionResult> ingestCall) throws Exception {
+        if (uploadPermits == null) {
+            return ingestCall.call();
+        }
+        uploadPermits.acquire();
+        try {
+            return ingestCall.call();
+        } finally {
+            uploadPermits.release();
+        }
+    }
+
+    /**
+     * Ingests the rolled file and waits for it, for synchronous ingestion. The attempts, retries, metrics and backout
+     * are those of {@link #ingestRolledFileAsync(String)}: the calling thread runs the first attempt, then waits while
+     * the retries run on the retry workers once their backoff has elapsed.
+     *
+     * @param filePath The rolled file to ingest
+     */
     void ingestRolledFile(String filePath) {
         try {
-            ingestionRetry.executeCheckedSupplier(() -> ingestLogs(filePath));
-        } catch (Throwable e) {
-            backOutFile(filePath);
+            ingestRolledFileAsync(filePath).join();
+        } catch (CompletionException e) {
+            // counted as failed and backed out before the future completed
+            LOGGER.debug("Ingestion of {} failed", filePath, e);
         }
     }
 
+    /*
+     * The rolled file is handed to the client as a file, rather than as a stream: the client then knows its exact size
+     * (the service plans its batches with it, an archive is estimated from its extension) and uploads it straight from
+     * the disk, gzipping it on the way when it is not an archive.
+     */
     IngestionResult ingestLogs(String filePath) throws IngestionClientException, IngestionServiceException,
             IOException {
-        try (InputStream inputStream = Files.newInputStream(Paths.get(filePath))) {
+        Path rolledFile = resolveRolledFile(filePath);
+        long rawSize = Files.size(rolledFile);
+        IngestionProperties fileIngestionProperties = ingestionProperties;
+        String fileKey = null;
+        if (ingestionIndex != null) {
+            fileKey = KustoIngestionIndex.key(rolledFile);
+            if (ingestionIndex.isAcknowledged(fileKey)) {
+                LOGGER.info("{} was ingested already (file key {}), skipping it", filePath, fileKey);
+                ingestionMetrics.onDuplicateSkipped(filePath);
+                IngestionStatus skipped = new IngestionStatus();
+                skipped.setStatus(OperationStatus.Skipped);
+                return new IngestionStatusResult(skipped);
+            }
+            fileIngestionProperties = tagWithFileKey(fileKey);
+            ingestionIndex.record(fileKey, KustoIngestionIndex.State.UPLOADING);
+        }
+        FileSourceInfo fileSourceInfo = new FileSourceInfo(rolledFile.toString());
+        long uploadStart = System.nanoTime();
+        IngestionResult ingestionResult;
+        try {
+            ingestionResult = clientFor(rawSize).ingestFromFile(fileSourceInfo, fileIngestionProperties);
+        } catch (IngestionClientException | IngestionServiceException | RuntimeException e) {
+            if (fileKey != null) {
+                // the attempt is over, the next one (if any) marks the file as uploading again
+                ingestionIndex.record(fileKey, KustoIngestionIndex.State.FAILED);
+            }
+            throw e;
+        }
+        ingestionMetrics.onIngested(filePath, 1, rawSize, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - uploadStart));
+        if (fileKey != null) {
+            ingestionIndex.record(fileKey, KustoIngestionIndex.State.ACKNOWLEDGED);
+        }
+        trackStatus(filePath, ingestionResult);
+        return ingestionResult;
+    }
+
+    /*
+     * The key goes along as an ingest-by tag and the service is asked not to ingest a blob with a tag it has already:
+     * an upload that was accepted although the client saw it fail, then retried, or replayed from the backout
+     * directory, is dropped by the service.
+     */
+    private IngestionProperties tagWithFileKey(String fileKey) {
+        IngestionProperties taggedProperties = new IngestionProperties(ingestionProperties);
+        List<String> tags = Collections.singletonList(fileKey);
+        taggedProperties.setIngestByTags(tags);
+        taggedProperties.setIngestIfNotExists(tags);
+        return taggedProperties;
+    }
+
+    /*
+     * The files are streamed one after the other. A file that does not end with a new line gets one, so that its last
+     * record is not merged with the first record of the next file.
+     */
+    IngestionResult ingestFiles(List<String> filePaths) throws IngestionClientException, IngestionServiceException,
+            IOException {
+        List<InputStream> streams = new ArrayList<>();
+        long rawSize = 0;
+        try {
+            for (String filePath : filePaths) {
+                Path rolledFile = Paths.get(filePath);
+                rawSize += Files.size(rolledFile);
+                streams.add(Files.newInputStream(rolledFile));
+                if (!endsWithNewLine(rolledFile)) {
+                    streams.add(new ByteArrayInputStream(NEW_LINE));
+                }
+            }
+        } catch (IOException e) {
+            for (InputStream stream : streams) {
+                stream.close();
+            }
+            throw e;
+        }
+        return ingestStream(String.format("%d coalesced files", filePaths.size()), filePaths.size(),
+                new SequenceInputStream(Collections.enumeration(streams)), rawSize);
+    }
+
+    IngestionResult ingestBytes(byte[] batch, int length) throws IngestionClientException, IngestionServiceException,
+            IOException {
+        return ingestStream("in-memory batch", 1, new ByteArrayInputStream(batch, 0, length), length);
+    }
+
+    /*
+     * Coalesced files and in-memory batches have no file of their own to hand to the client, they are streamed and
+     * optionally gzipped in flight.
+     */
+    private IngestionResult ingestStream(String source, int files, InputStream data, long rawSize)
+            throws IngestionClientException, IngestionServiceException, IOException {
+        try (InputStream inputStream = compressUploads
+                ? new KustoGzipInputStream(data, Deflater.DEFAULT_COMPRESSION)
+                : data) {
             StreamSourceInfo streamSourceInfo = new StreamSourceInfo(inputStream);
-            return ingestClient.ingestFromStream(streamSourceInfo, ingestionProperties);
+            if (compressUploads) {
+                streamSourceInfo.setCompressionType(CompressionType.gz);
+            }
+            long uploadStart = System.nanoTime();
+            IngestionResult ingestionResult = clientFor(rawSize).ingestFromStream(streamSourceInfo, ingestionProperties);
+            ingestionMetrics.onIngested(source, files, rawSize, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - uploadStart));
+            trackStatus(source, ingestionResult);
+            return ingestionResult;
+        }
+    }
+
+    private void trackStatus(String source, IngestionResult ingestionResult) {
+        if (statusTracker != null) {
+            statusTracker.track(source, ingestionResult);
+        }
+    }
+
+    /*
+     * When the rollover strategy compresses rolled files (file pattern ending with .gz or .zip), the asynchronous
+     * compress action may have replaced the rolled file with its archive by the time it is ingested or backed out.
+     */
+    private static Path resolveRolledFile(String filePath) {
+        Path rolledFile = Paths.get(filePath);
+        if (Files.notExists(rolledFile)) {
+            for (CompressionType compressionType : CompressionType.values()) {
+                Path archive = Paths.get(String.format("%s.%s", filePath, compressionType.name()));
+                if (Files.exists(archive)) {
+                    return archive;
+                }
+            }
         }
+        return rolledFile;
+    }
+
+    private IngestClient clientFor(long rawSize) throws IngestionClientException {
+        return streamingIngestClient != null && rawSize <= STREAMING_INGESTION_MAX_BYTES ? streamingIngestClient.get() : ingestClient.get();
+    }
+
+    private static boolean endsWithNewLine(Path file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file.toFile(), "r")) {
+            long length = randomAccessFile.length();
+            if (length == 0) {
+                return true;
+            }
+            randomAccessFile.seek(length - 1);
+            return randomAccessFile.read() == NEW_LINE[0];
+        }
+    }
+
+    private static CompressionType getArchiveCompressionType(Path rolledFile) {
+        String fileName = rolledFile.getFileName().toString();
+        for (CompressionType compressionType : CompressionType.values()) {
+            if (fileName.endsWith("." + compressionType.name())) {
+                return compressionType;
+            }
+        }
+        return null;
     }
 
     /**
@@ -171,32 +922,180 @@ public final class KustoClientInstance {
      */
     void backOutFile(String filePath) {
         LOGGER.warn("Ingestion failed post retries for file {}. Attempting to move this file to backout", filePath);
-        Path pathOfFile = Paths.get(filePath);
-        String targetDirectory = String.format("%s%sbackout%s", pathOfFile.getParent(), File.separator, File.separator);
+        Path pathOfFile = resolveRolledFile(filePath);
+        String targetDirectory = String.format("%s%s%s%s", pathOfFile.getParent(), File.separator, BACKOUT_DIRECTORY, File.separator);
         String targetPath = String.format("%s%s", targetDirectory, pathOfFile.getFileName());
         try {
             Files.createDirectories(Paths.get(targetDirectory));
             Files.move(pathOfFile, Paths.get(targetPath), REPLACE_EXISTING);
+            ingestionMetrics.onBackout(filePath);
+            // a spooled batch that is backed out moves within the spool area
+            spoolUsage.remove(pathOfFile);
+            spoolUsage.add(Paths.get(targetPath));
+            if (backoutReplayer != null) {
+                backoutReplayer.watch(Paths.get(targetDirectory));
+            }
         } catch (IOException e) {
             LOGGER.error("Ingestion failed post retries for file {}. Backout failed for the file to path {}", filePath,
                     targetPath, e);
         }
     }
 
+    /**
+     * Gives back a reference taken with {@link #getInstance(KustoLog4jConfig)}. The instance is closed when its last
+     * reference is given back, so that a strategy that stops (e.g. on reconfiguration) does not close the uploads of
+     * the strategies that still use it.
+     */
+    void release() {
+        synchronized (KustoClientInstance.class) {
+            if (references.decrementAndGet() > 0) {
+                return;
+            }
+            // a strategy created from now on gets a new instance rather than this closing one
+            INSTANCES.remove(destinationKey, this);
+            DEFAULT_INSTANCE.compareAndSet(this, null);
+        }
+        close();
+    }
+
+    /**
+     * @return How long the pending ingestions are waited for on close, in milliseconds
+     */
+    long getShutdownTimeoutMillis() {
+        return shutdownTimeoutMillis;
+    }
+
+    /**
+     * Closes the instance once, after draining the pending ingestions: the coalesced files are handed over, then the
+     * uploads in flight and the retries are waited for, in parallel on the workers, until the shutdown timeout. The
+     * ingestions still pending then are abandoned: their rolled files are backed out (and in-memory batches spooled by
+     * the appender) so that they are replayed later. An abandoned upload may still complete, at-least-once delivery
+     * can then ingest it twice.
+     */
     void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (replayScheduler != null) {
+            // replays in flight are abandoned, the files stay in the backout directory
+            replayScheduler.shutdownNow();
+        }
+        if (fileCoalescer != null) {
+            fileCoalescer.flush();
+        }
+        boolean drained = false;
         try {
-            ingestClient.close();
-        } catch (IOException e) {
-            LOGGER.warn("Closing ingest client caused an error.", e);
+            drained = completionSequencer.awaitCompletions(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!drained) {
+            int abandoned = completionSequencer.abandon(new IOException(
+                    String.format("Ingestion into %s was still pending on shutdown", destinationKey)));
+            LOGGER.warn("{} ingestions into {} did not complete in {} ms, backing them out", abandoned, destinationKey,
+                    shutdownTimeoutMillis);
         }
+        // nothing waits for the retries and uploads left, they belong to abandoned ingestions
+        retryScheduler.shutdownNow();
+        retryWorkers.shutdownNow();
+        if (statusScheduler != null) {
+            statusScheduler.shutdownNow();
+        }
+        if (ingestionExecutor != null) {
+            ingestionExecutor.shutdownNow();
+        }
+        ingestClient.release();
+        if (streamingIngestClient != null) {
+            streamingIngestClient.release();
+        }
+        if (ingestionIndex != null) {
+            ingestionIndex.close();
+        }
+        spoolUsage.close();
+        ingestionMetrics.unregister();
+        INSTANCES.remove(destinationKey, this);
     }
 
-    private boolean isTransientException(Throwable exception) {
+    /**
+     * @param exception The failure of an ingestion attempt
+     * @return If the attempt is worth retrying: anything but an error the service reports as permanent (a bad mapping,
+     *         malformed data), an open circuit or saturated workers
+     */
+    static boolean isTransientException(Throwable exception) {
+        if (exception instanceof KustoCircuitBreaker.CircuitOpenException) {
+            // retrying would only wait for the circuit to close
+            return false;
+        }
+        if (exception instanceof RejectedExecutionException) {
+            // only the attempts that are handed back are rejected, their caller spools the data rather than waiting
+            return false;
+        }
         Throwable innerException = exception.getCause();
         return !(innerException instanceof KustoDataExceptionBase &&
                 ((KustoDataExceptionBase) innerException).isPermanent());
     }
 
+    /*
+     * Called when a client is created, since resolving the proxy host may wait for the network.
+     */
+    private static HttpClientProperties createHttpClientProperties(KustoLog4jConfig kustoLog4jConfig) {
+        if (StringUtils.isBlank(kustoLog4jConfig.proxyUrl)) {
+            return null;
+        }
+        InetSocketAddress proxyAddress = parseProxyUrl(kustoLog4jConfig.proxyUrl);
+        LOGGER.info("Using proxy : {} ", kustoLog4jConfig.proxyUrl);
+        return HttpClientProperties.builder().proxy(new ProxyOptions(com.azure.core.http.ProxyOptions.Type.HTTP, proxyAddress))
+                .build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConnectionStringBuilder createConnectionStringBuilder(KustoLog4jConfig kustoLog4jConfig) {
+        boolean useManagedIdentity = StringUtils.isNotBlank(kustoLog4jConfig.managedIdentityId);
+        LOGGER.info("Using ManagedIdentity : {} / UserAuth : {} / CliAuth : {} ", useManagedIdentity, kustoLog4jConfig.useInteractiveAuth,
+                kustoLog4jConfig.useAzCliAuth);
+        ConnectionStringBuilder csb = null;
+        String authType = "AppId / AppKey";
+        if (useManagedIdentity) {
+            authType = "ManagedIdentity";
+            csb = ("system".equalsIgnoreCase(kustoLog4jConfig.managedIdentityId)
+                    ? ConnectionStringBuilder.createWithAadManagedIdentity(kustoLog4jConfig.clusterIngestUrl)
+                    : ConnectionStringBuilder.createWithAadManagedIdentity(kustoLog4jConfig.clusterIngestUrl, kustoLog4jConfig.appId));
+        } else if (kustoLog4jConfig.useInteractiveAuth) {
+            authType = "InteractiveAuth";
+            csb = ConnectionStringBuilder.createWithUserPrompt(kustoLog4jConfig.clusterIngestUrl,
+                    StringUtils.defaultIfBlank(kustoLog4jConfig.appTenant, "organizations"), null);
+        } else if (kustoLog4jConfig.useAzCliAuth) {
+            authType = "AzCliAuth";
+            csb = ConnectionStringBuilder.createWithAzureCli(kustoLog4jConfig.clusterIngestUrl);
+        } else {
+            LOGGER.info("Using AAD based auth as the fallback");
+            csb = ConnectionStringBuilder.createWithAadApplicationCredentials(kustoLog4jConfig.clusterIngestUrl,
+                    kustoLog4jConfig.appId,
+                    kustoLog4jConfig.appKey, kustoLog4jConfig.appTenant);
+        }
+        Pair<String, String>[] additionalProperties = new Pair[] {Pair.of("AuthType", authType)};
+        csb.setConnectorDetails("Kusto.Log4j", getPackageVersion(), null, null, false, null, additionalProperties);
+        return csb;
+    }
+
+    /*
+     * Appenders with the same cluster, credentials and proxy share their ingest clients. The key stays in memory, the
+     * app key only takes part through its hash.
+     */
+    private static String getConnectionKey(KustoLog4jConfig kustoLog4jConfig) {
+        return String.join("|", kustoLog4jConfig.clusterIngestUrl, kustoLog4jConfig.appId, String.valueOf(Objects.hashCode(kustoLog4jConfig.appKey)),
+                kustoLog4jConfig.appTenant, kustoLog4jConfig.managedIdentityId, String.valueOf(kustoLog4jConfig.useInteractiveAuth),
+                String.valueOf(kustoLog4jConfig.useAzCliAuth), kustoLog4jConfig.proxyUrl);
+    }
+
+    /*
+     * Appenders that ingest into the same table with the same mapping share their instance.
+     */
+    private static String getDestinationKey(KustoLog4jConfig kustoLog4jConfig) {
+        return String.join("|", kustoLog4jConfig.clusterIngestUrl, kustoLog4jConfig.dbName, kustoLog4jConfig.tableName,
+                kustoLog4jConfig.logTableMapping, kustoLog4jConfig.mappingType);
+    }
+
     private static String getPackageVersion() {
         try {
             Properties props = new Properties();
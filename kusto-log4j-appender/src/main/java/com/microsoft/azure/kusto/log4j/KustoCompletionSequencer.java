@@ -0,0 +1,147 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Releases the completions of uploads that run in parallel in the order the uploads were submitted. The completion of an
+ * upload (its callback, then the dependents of the returned future) only runs once the completions of all the uploads
+ * submitted before it have run, so that backouts and metrics happen in the order the files were rolled whatever the
+ * order in which the uploads finish. The uploads themselves are not held back.
+ * <p>
+ * The completions are run one at a time, outside of the lock, by the thread that finished the upload at the head of
+ * the queue (or the one that was running completions when it did).
+ */
+final class KustoCompletionSequencer {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    // guarded by this
+    private final Deque<Completion<?>> completions = new ArrayDeque<>();
+    private boolean draining;
+
+    /**
+     * @param upload   The upload, in submission order
+     * @param callback Run with the result or the failure of the upload once the previous completions have run
+     * @return A future that completes like the upload, after the callback and the previous completions have run
+     */
+    <T> CompletableFuture<T> inOrder(CompletableFuture<T> upload, BiConsumer<? super T, ? super Throwable> callback) {
+        Completion<T> completion = new Completion<>(callback);
+        synchronized (this) {
+            completions.addLast(completion);
+        }
+        upload.whenComplete((result, error) -> {
+            completion.result = result;
+            completion.error = error;
+            completion.done = true;
+            drain();
+        });
+        return completion.ordered;
+    }
+
+    int getPendingCompletions() {
+        synchronized (this) {
+            return completions.size();
+        }
+    }
+
+    /**
+     * @param timeout  How long to wait at most
+     * @param timeUnit The unit of the timeout
+     * @return true if all the completions have run, false if some are still pending after the timeout
+     * @throws InterruptedException If interrupted while waiting
+     */
+    synchronized boolean awaitCompletions(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+        while (!completions.isEmpty() || draining) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Runs the pending completions right away, in order, with the given failure instead of the outcome of their upload.
+     * The uploads are left running but their outcome is ignored.
+     *
+     * @param cause The failure the pending completions are run with
+     * @return The number of completions that were abandoned
+     */
+    int abandon(Throwable cause) {
+        Completion<?>[] abandoned;
+        synchronized (this) {
+            abandoned = completions.toArray(new Completion<?>[0]);
+            completions.clear();
+            notifyAll();
+        }
+        for (Completion<?> completion : abandoned) {
+            completion.run(null, cause);
+        }
+        return abandoned.length;
+    }
+
+    private void drain() {
+        while (true) {
+            Completion<?> head;
+            synchronized (this) {
+                head = completions.peekFirst();
+                if (draining || head == null || !head.done) {
+                    return;
+                }
+                completions.removeFirst();
+                draining = true;
+            }
+            try {
+                head.run();
+            } finally {
+                synchronized (this) {
+                    draining = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private static final class Completion<T> {
+        private final BiConsumer<? super T, ? super Throwable> callback;
+        private final CompletableFuture<T> ordered = new CompletableFuture<>();
+        private T result;
+        private Throwable error;
+        // written after result and error, read by the draining thread
+        private volatile boolean done;
+
+        private Completion(BiConsumer<? super T, ? super Throwable> callback) {
+            this.callback = callback;
+        }
+
+        private void run() {
+            run(result, error);
+        }
+
+        // an abandoned completion is run with the abandon cause, whatever its upload writes to the fields meanwhile
+        private void run(T result, Throwable error) {
+            try {
+                callback.accept(result, error);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Ingestion completion failed", e);
+            }
+            // the dependents of the ordered future run here, before the next completion is released
+            if (error != null) {
+                ordered.completeExceptionally(error);
+            } else {
+                ordered.complete(result);
+            }
+        }
+    }
+}
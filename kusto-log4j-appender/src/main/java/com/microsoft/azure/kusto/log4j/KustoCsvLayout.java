@@ -0,0 +1,135 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.layout.AbstractStringLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A layout that writes each event as one CSV record with the fields in the order of the ordinals of the CSV ingestion
+ * mapping. Unlike CsvLogEventLayout with quoteMode="ALL", a value is only quoted when it contains a comma, a quote or a
+ * line break, and the record is written into a StringBuilder that is reused by the thread and encoded into the
+ * appender's ByteBufferDestination. Only events with an exception allocate (for the stack trace).
+ * <p>
+ * The context map and stack are written as JSON, so that they can be ingested into dynamic columns.
+ */
+@Plugin(name = "KustoCsvLayout", category = Node.CATEGORY, elementType = Layout.ELEMENT_TYPE, printObject = true)
+public final class KustoCsvLayout extends AbstractStringLayout {
+
+    // a column that is always empty, to keep the ordinals of a mapping without paying for a field
+    static final String EMPTY_COLUMN = "-";
+    // the columns of CsvLogEventLayout, the source is left empty since it requires the location of every event
+    static final String DEFAULT_COLUMNS = "timenanos,timemillis,level,threadid,threadname,threadpriority,formattedmessage,loggerfqcn,"
+            + "loggername,marker,thrownproxy,-,contextmap,contextstack";
+    private static final String CONTENT_TYPE = "text/csv; charset=UTF-8";
+    private static final char DELIMITER = ',';
+    private static final char QUOTE = '"';
+
+    // null for the empty columns
+    private final KustoLogEventField[] fields;
+    private final boolean requiresLocation;
+
+    private KustoCsvLayout(KustoLogEventField[] fields) {
+        super(StandardCharsets.UTF_8);
+        this.fields = fields;
+        this.requiresLocation = Arrays.asList(fields).contains(KustoLogEventField.SOURCE);
+    }
+
+    /**
+     * @param columns The fields to write in the order of the mapping ordinals, - for a column that stays empty.
+     *                Defaults to the columns of CsvLogEventLayout, with the source left empty
+     * @return KustoCsvLayout that writes the columns
+     */
+    @PluginFactory
+    public static KustoCsvLayout createLayout(@PluginAttribute("columns") final String columns) {
+        String[] columnSpecs = StringUtils.defaultIfBlank(columns, DEFAULT_COLUMNS).split(",");
+        KustoLogEventField[] fields = new KustoLogEventField[columnSpecs.length];
+        for (int i = 0; i < columnSpecs.length; i++) {
+            String columnSpec = columnSpecs[i].trim();
+            fields[i] = EMPTY_COLUMN.equals(columnSpec) ? null : KustoLogEventField.forName(columnSpec);
+        }
+        return new KustoCsvLayout(fields);
+    }
+
+    @Override
+    public String toSerializable(LogEvent event) {
+        StringBuilder text = getStringBuilder();
+        format(event, text);
+        return text.toString();
+    }
+
+    @Override
+    public void encode(LogEvent event, ByteBufferDestination destination) {
+        StringBuilder text = getStringBuilder();
+        format(event, text);
+        getStringBuilderEncoder().encode(text, destination);
+    }
+
+    private void format(LogEvent event, StringBuilder text) {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                text.append(DELIMITER);
+            }
+            KustoLogEventField field = fields[i];
+            if (field == null) {
+                continue;
+            }
+            if (field.getKind() == KustoLogEventField.Kind.NUMBER) {
+                field.formatTo(event, text);
+            } else {
+                StringBuilder value = KustoLogEventField.getFieldBuffer();
+                if (field.formatTo(event, value)) {
+                    appendCsvValue(value, text);
+                }
+                KustoLogEventField.releaseFieldBuffer(value);
+            }
+        }
+        text.append('\n');
+    }
+
+    private static void appendCsvValue(CharSequence value, StringBuilder text) {
+        if (!requiresQuotes(value)) {
+            text.append(value);
+            return;
+        }
+        text.append(QUOTE);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == QUOTE) {
+                text.append(QUOTE);
+            }
+            text.append(c);
+        }
+        text.append(QUOTE);
+    }
+
+    private static boolean requiresQuotes(CharSequence value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == DELIMITER || c == QUOTE || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean requiresLocation() {
+        return requiresLocation;
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+}
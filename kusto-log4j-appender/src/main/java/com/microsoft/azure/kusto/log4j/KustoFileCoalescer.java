@@ -0,0 +1,102 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Gathers rolled files so that many small files are ingested as one blob. The gathered files are handed over for
+ * ingestion once their total size reaches the target size, or once the oldest of them has waited for the maximum
+ * delay, whichever comes first.
+ */
+class KustoFileCoalescer {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private final long targetBytes;
+    private final long maxDelayMillis;
+    private final ScheduledExecutorService scheduler;
+    private final Consumer<List<String>> flushAction;
+
+    private List<String> pendingFiles = new ArrayList<>();
+    private long pendingBytes;
+    // copies of the counts, updated under the lock and read without it on the logging path (by the KustoBacklogFilter)
+    private volatile int pendingFilesSnapshot;
+    private volatile long pendingBytesSnapshot;
+    private ScheduledFuture<?> delayedFlush;
+
+    KustoFileCoalescer(long targetBytes, long maxDelayMillis, ScheduledExecutorService scheduler, Consumer<List<String>> flushAction) {
+        this.targetBytes = targetBytes;
+        this.maxDelayMillis = maxDelayMillis;
+        this.scheduler = scheduler;
+        this.flushAction = flushAction;
+    }
+
+    void add(String filePath) {
+        boolean targetReached;
+        synchronized (this) {
+            pendingFiles.add(filePath);
+            pendingBytes += sizeOf(filePath);
+            pendingFilesSnapshot = pendingFiles.size();
+            pendingBytesSnapshot = pendingBytes;
+            targetReached = pendingBytes >= targetBytes;
+            if (!targetReached && delayedFlush == null) {
+                delayedFlush = scheduler.schedule(this::flush, maxDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (targetReached) {
+            flush();
+        }
+    }
+
+    /**
+     * Hands over the gathered files for ingestion, regardless of their size and age.
+     */
+    void flush() {
+        List<String> filesToIngest;
+        synchronized (this) {
+            if (delayedFlush != null) {
+                delayedFlush.cancel(false);
+                delayedFlush = null;
+            }
+            if (pendingFiles.isEmpty()) {
+                return;
+            }
+            filesToIngest = pendingFiles;
+            LOGGER.debug("Coalesced {} rolled files of {} bytes", filesToIngest.size(), pendingBytes);
+            pendingFiles = new ArrayList<>();
+            pendingBytes = 0;
+            pendingFilesSnapshot = 0;
+            pendingBytesSnapshot = 0;
+        }
+        flushAction.accept(filesToIngest);
+    }
+
+    int getPendingFiles() {
+        return pendingFilesSnapshot;
+    }
+
+    long getPendingBytes() {
+        return pendingBytesSnapshot;
+    }
+
+    private static long sizeOf(String filePath) {
+        try {
+            return Files.size(Paths.get(filePath));
+        } catch (IOException e) {
+            // the file may have been replaced by its archive already, it then only counts towards the delay
+            return 0;
+        }
+    }
+}
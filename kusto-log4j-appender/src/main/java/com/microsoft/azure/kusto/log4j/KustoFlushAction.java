@@ -12,11 +12,19 @@ class KustoFlushAction extends AbstractAction {
     private final Action delegate;
     private final String fileName;
 
+    // null when the action is not tied to a strategy, the default instance is used then
+    private final KustoClientInstance kustoClientInstance;
+
     private boolean ingestComplete;
 
     public KustoFlushAction(final Action delegate, final String fileName) {
+        this(delegate, fileName, null);
+    }
+
+    KustoFlushAction(final Action delegate, final String fileName, final KustoClientInstance kustoClientInstance) {
         this.delegate = delegate;
         this.fileName = fileName;
+        this.kustoClientInstance = kustoClientInstance;
         this.ingestComplete = false;
     }
 
@@ -24,16 +32,24 @@ class KustoFlushAction extends AbstractAction {
     public boolean execute() throws IOException {
         boolean execute = delegate.execute();
         if (execute) {
-            KustoClientInstance.getInstance().ingestRolledFile(fileName);
+            KustoClientInstance clientInstance = getKustoClientInstance();
+            if (clientInstance.isAsyncIngestion()) {
+                clientInstance.submitRolledFile(fileName);
+            } else {
+                clientInstance.ingestRolledFile(fileName);
+            }
         }
         // reaches here on completion, else IOException gets thrown
         ingestComplete = true;
         return execute;
     }
 
+    /*
+     * The instance is shared by the rollovers of the strategy (and maybe others), it is drained and closed when the
+     * strategies that use it stop, not when an action is closed.
+     */
     @Override
     public synchronized void close() {
-        KustoClientInstance.getInstance().close();
         delegate.close();
     }
 
@@ -41,4 +57,8 @@ class KustoFlushAction extends AbstractAction {
     public boolean isComplete() {
         return this.ingestComplete;
     }
+
+    private KustoClientInstance getKustoClientInstance() {
+        return kustoClientInstance != null ? kustoClientInstance : KustoClientInstance.getInstance();
+    }
 }
@@ -0,0 +1,97 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+/**
+ * An input stream that gzip compresses the wrapped stream as it is read. Unlike a GZIPOutputStream connected through a
+ * pipe, the compression happens on the reading (uploading) thread and needs neither an extra thread nor a temporary
+ * file. The output is a single gzip member as described in RFC 1952.
+ */
+class KustoGzipInputStream extends InputStream {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final int TRAILER_SIZE = 8;
+
+    private final CRC32 crc = new CRC32();
+    private final Deflater deflater;
+    private final DeflaterInputStream deflatedStream;
+    private final byte[] trailer = new byte[TRAILER_SIZE];
+    private int headerPosition;
+    // -1 until the deflated data is exhausted and the trailer is computed
+    private int trailerPosition = -1;
+
+    KustoGzipInputStream(InputStream inputStream, int compressionLevel) {
+        this.deflater = new Deflater(compressionLevel, true);
+        this.deflatedStream = new DeflaterInputStream(new CheckedInputStream(inputStream, crc), deflater, BUFFER_SIZE);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = read(single, 0, 1);
+        return read == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (headerPosition < GZIP_HEADER.length) {
+            int count = Math.min(len, GZIP_HEADER.length - headerPosition);
+            System.arraycopy(GZIP_HEADER, headerPosition, b, off, count);
+            headerPosition += count;
+            return count;
+        }
+        if (trailerPosition < 0) {
+            int count = deflatedStream.read(b, off, len);
+            if (count >= 0) {
+                return count;
+            }
+            writeTrailer();
+        }
+        if (trailerPosition >= TRAILER_SIZE) {
+            return -1;
+        }
+        int count = Math.min(len, TRAILER_SIZE - trailerPosition);
+        System.arraycopy(trailer, trailerPosition, b, off, count);
+        trailerPosition += count;
+        return count;
+    }
+
+    /**
+     * @return The number of uncompressed bytes consumed from the wrapped stream so far
+     */
+    long getBytesRead() {
+        return deflater.getBytesRead();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            deflatedStream.close();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeTrailer() {
+        writeIntLittleEndian(crc.getValue(), 0);
+        writeIntLittleEndian(deflater.getBytesRead(), 4);
+        trailerPosition = 0;
+    }
+
+    private void writeIntLittleEndian(long value, int offset) {
+        for (int i = 0; i < 4; i++) {
+            trailer[offset + i] = (byte) (value >> (8 * i));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import com.microsoft.azure.kusto.ingest.IngestClient;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Shares ingest clients between the appenders that ingest into the same cluster with the same credentials, so that each
+ * appender can have its own database, table and mapping without creating its own HTTP client. The clients are reference
+ * counted and closed when the last appender using them releases them.
+ */
+final class KustoIngestClientRegistry {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    // guarded by the class lock
+    private static final Map<String, SharedClient> CLIENTS = new HashMap<>();
+
+    private KustoIngestClientRegistry() {
+    }
+
+    @FunctionalInterface
+    interface ClientFactory {
+        IngestClient create() throws URISyntaxException;
+    }
+
+    /**
+     * Returns the client registered for the key, creating it if this is the first use. The client is created outside of
+     * the registry lock, the callers that want the client of the same key in the meantime wait for it.
+     *
+     * @param clientKey     The cluster, credentials and kind of client
+     * @param clientFactory Creates the client when there is none for the key yet
+     * @return The shared client
+     * @throws URISyntaxException When the URI passed is invalid
+     */
+    static IngestClient acquire(String clientKey, ClientFactory clientFactory) throws URISyntaxException {
+        SharedClient sharedClient;
+        boolean create;
+        synchronized (KustoIngestClientRegistry.class) {
+            sharedClient = CLIENTS.get(clientKey);
+            create = sharedClient == null;
+            if (create) {
+                sharedClient = new SharedClient();
+                CLIENTS.put(clientKey, sharedClient);
+            } else {
+                LOGGER.info("Reusing the ingest client for {}", clientKey);
+            }
+            sharedClient.references++;
+        }
+        if (create) {
+            try {
+                sharedClient.ingestClient.complete(clientFactory.create());
+            } catch (URISyntaxException | RuntimeException | Error e) {
+                // the next acquire tries again
+                synchronized (KustoIngestClientRegistry.class) {
+                    CLIENTS.remove(clientKey, sharedClient);
+                }
+                sharedClient.ingestClient.completeExceptionally(e);
+                throw e;
+            }
+        }
+        try {
+            return sharedClient.ingestClient.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof URISyntaxException) {
+                throw (URISyntaxException) cause;
+            }
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+        }
+    }
+
+    /**
+     * Releases a client acquired for the key, closing it if no one else uses it.
+     *
+     * @param clientKey The key the client was acquired with
+     */
+    static synchronized void release(String clientKey) {
+        SharedClient sharedClient = CLIENTS.get(clientKey);
+        if (sharedClient == null || --sharedClient.references > 0) {
+            return;
+        }
+        CLIENTS.remove(clientKey);
+        try {
+            // the client is created, the reference released was taken by an acquire that returned it
+            sharedClient.ingestClient.join().close();
+        } catch (IOException e) {
+            LOGGER.warn("Closing ingest client caused an error.", e);
+        }
+    }
+
+    private static final class SharedClient {
+        // completed by the first acquire of the key
+        private final CompletableFuture<IngestClient> ingestClient = new CompletableFuture<>();
+        // guarded by the class lock
+        private int references;
+    }
+}
@@ -0,0 +1,21 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import com.microsoft.azure.kusto.ingest.IngestClient;
+
+/**
+ * Creates the ingest clients of the appender instead of the Kusto SDK, for example to ingest into an in-process fake
+ * service in load tests or to wrap the SDK clients. The supplier is set with the ingestClientSupplier attribute of the
+ * KustoStrategy and must have a public no argument constructor. The credentials and the proxy of the KustoStrategy are
+ * then not used, the cluster, database and table are still passed with each ingestion. A client is created once per
+ * kind and supplier, shared by the appenders that use the same supplier, and closed when the last of them stops.
+ */
+public interface KustoIngestClientSupplier {
+
+    /**
+     * @param ingestionMode The kind of client: queued, streaming or managedStreaming
+     * @return The ingest client
+     */
+    IngestClient createClient(String ingestionMode);
+}
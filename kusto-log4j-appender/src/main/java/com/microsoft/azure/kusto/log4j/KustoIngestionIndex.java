@@ -0,0 +1,262 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small local index of the keys of the files that were uploaded, with their ingestion state, so that a file whose
+ * ingestion was acknowledged already (a backed out file replayed by hand or by the replay, a spool file) is not
+ * ingested twice. A file is keyed by its name, size and last modification time, which a backout or a replay keeps, so
+ * it is not read an extra time before its upload. The index keeps the most recent keys up to its capacity, in memory
+ * and in an append-only file that is compacted once it has grown to twice the capacity. The file is best effort: a
+ * failure to write it is logged and the index keeps working in memory.
+ * <p>
+ * The destinations that are configured with the same index file share one index, opened with
+ * {@link #open(Path, int)}, so that they do not append to the file on their own.
+ */
+final class KustoIngestionIndex {
+
+    enum State {
+        // the upload started, the service may or may not have accepted the file
+        UPLOADING,
+        ACKNOWLEDGED,
+        // the upload failed, the file was backed out (or left where it was) and may be ingested again
+        FAILED
+    }
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // the indexes in use by their canonical path, guarded by the class lock
+    private static final Map<Path, KustoIngestionIndex> OPEN_INDEXES = new HashMap<>();
+
+    private final Path indexFile;
+    private final int capacity;
+    // the destinations that use the index, guarded by the class lock
+    private int references;
+    // guarded by this, the most recently updated key last
+    private final Map<String, State> states = new LinkedHashMap<>();
+    private Writer writer;
+    private int linesWritten;
+
+    /**
+     * @param indexFile The file the index is loaded from and appended to
+     * @param capacity  The number of keys kept, the least recently updated is forgotten first
+     */
+    KustoIngestionIndex(Path indexFile, int capacity) {
+        this.indexFile = indexFile;
+        this.capacity = Math.max(1, capacity);
+        load();
+    }
+
+    /**
+     * Opens the index of the file, or takes a reference on the index another destination opened with the same file.
+     * Each call is paired with a {@link #close()}.
+     *
+     * @param indexFile The file the index is loaded from and appended to
+     * @param capacity  The number of keys kept, the first destination to open the index sets it
+     * @return The index of the file
+     */
+    static synchronized KustoIngestionIndex open(Path indexFile, int capacity) {
+        Path canonicalFile = canonicalPath(indexFile);
+        KustoIngestionIndex index = OPEN_INDEXES.get(canonicalFile);
+        if (index == null) {
+            index = new KustoIngestionIndex(canonicalFile, capacity);
+            OPEN_INDEXES.put(canonicalFile, index);
+        } else if (index.capacity != Math.max(1, capacity)) {
+            LOGGER.warn("The ingestion index {} is shared with another destination, keeping its capacity of {} keys", canonicalFile,
+                    index.capacity);
+        }
+        index.references++;
+        return index;
+    }
+
+    /*
+     * The same file may be configured through different relative paths or links, its directory is resolved since the
+     * file itself may not exist yet.
+     */
+    private static Path canonicalPath(Path indexFile) {
+        Path absoluteFile = indexFile.toAbsolutePath().normalize();
+        if (absoluteFile.getParent() == null) {
+            return absoluteFile;
+        }
+        try {
+            Files.createDirectories(absoluteFile.getParent());
+            return absoluteFile.getParent().toRealPath().resolve(absoluteFile.getFileName());
+        } catch (IOException e) {
+            // the index is then only kept in memory, see load
+            return absoluteFile;
+        }
+    }
+
+    /**
+     * Keys a file by its name, size and last modification time, without reading it.
+     *
+     * @param file The file to key
+     * @return The hex encoded SHA-256 of the name, size and last modification time of the file
+     * @throws IOException If the attributes of the file cannot be read
+     */
+    static String key(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        MessageDigest digest = newDigest();
+        digest.update(String.format("%s %d %d", file.getFileName(), attributes.size(), attributes.lastModifiedTime().toMillis())
+                .getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform implements SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    synchronized boolean isAcknowledged(String fileKey) {
+        return states.get(fileKey) == State.ACKNOWLEDGED;
+    }
+
+    synchronized State getState(String fileKey) {
+        return states.get(fileKey);
+    }
+
+    synchronized int size() {
+        return states.size();
+    }
+
+    synchronized void record(String fileKey, State state) {
+        put(fileKey, state);
+        if (writer == null) {
+            return;
+        }
+        try {
+            if (linesWritten >= 2 * capacity) {
+                compact();
+            } else {
+                writeLine(writer, fileKey, state);
+                writer.flush();
+                linesWritten++;
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Could not write the ingestion index {}, it is only kept in memory", indexFile, e);
+            closeWriter();
+        }
+    }
+
+    /**
+     * Gives back a reference taken with {@link #open(Path, int)}, the file is closed with the last one.
+     */
+    void close() {
+        synchronized (KustoIngestionIndex.class) {
+            if (--references > 0) {
+                return;
+            }
+            OPEN_INDEXES.remove(indexFile, this);
+        }
+        synchronized (this) {
+            closeWriter();
+        }
+    }
+
+    private void put(String fileKey, State state) {
+        // re-inserted so that the key becomes the most recent one
+        states.remove(fileKey);
+        states.put(fileKey, state);
+        Iterator<String> eldest = states.keySet().iterator();
+        while (states.size() > capacity) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    private void load() {
+        try {
+            if (indexFile.getParent() != null) {
+                Files.createDirectories(indexFile.getParent());
+            }
+            if (Files.exists(indexFile)) {
+                try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] fields = line.split(" ");
+                        if (fields.length == 2) {
+                            try {
+                                put(fields[0], State.valueOf(fields[1]));
+                                linesWritten++;
+                            } catch (IllegalArgumentException e) {
+                                // a line cut short by a crash
+                            }
+                        }
+                    }
+                }
+                LOGGER.info("Loaded {} file keys from the ingestion index {}", states.size(), indexFile);
+            }
+            writer = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            LOGGER.warn("Could not open the ingestion index {}, it is only kept in memory", indexFile, e);
+        }
+    }
+
+    /*
+     * Rewrites the file with the keys in memory and swaps it in, so that a crash leaves either file complete.
+     */
+    private void compact() throws IOException {
+        closeWriter();
+        Path compacted = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (Writer compactedWriter = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, State> entry : states.entrySet()) {
+                writeLine(compactedWriter, entry.getKey(), entry.getValue());
+            }
+        }
+        Files.move(compacted, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        linesWritten = states.size();
+        writer = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private static void writeLine(Writer writer, String fileKey, State state) throws IOException {
+        writer.write(fileKey);
+        writer.write(' ');
+        writer.write(state.name());
+        writer.write('\n');
+    }
+
+    private void closeWriter() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            LOGGER.debug("Could not close the ingestion index {}", indexFile, e);
+        }
+        writer = null;
+    }
+}
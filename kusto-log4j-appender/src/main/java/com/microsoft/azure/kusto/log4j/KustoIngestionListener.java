@@ -0,0 +1,103 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+/**
+ * Receives the ingestion events of one destination table, so that they can be forwarded to the metrics system of the
+ * application. The listener is set with the ingestionListener attribute of the KustoStrategy and must have a public no
+ * argument constructor. The callbacks are invoked on the ingestion threads and must return quickly, an exception thrown
+ * by a callback is logged and otherwise ignored.
+ */
+public interface KustoIngestionListener {
+
+    /**
+     * Called when an upload succeeded.
+     *
+     * @param source        The rolled file, or a description of the data that was ingested
+     * @param bytes         The number of (uncompressed) bytes that were ingested
+     * @param latencyMillis The duration of the successful upload in milliseconds
+     */
+    default void onIngested(String source, long bytes, long latencyMillis) {
+    }
+
+    /**
+     * Called before an upload is retried after a transient failure.
+     *
+     * @param source The rolled file, or a description of the data that is retried
+     * @param cause  The failure of the previous attempt
+     */
+    default void onRetry(String source, Throwable cause) {
+    }
+
+    /**
+     * Called when an upload failed for good, either with a permanent error or after the retries were exhausted.
+     *
+     * @param source The rolled file, or a description of the data that failed
+     * @param cause  The failure of the last attempt
+     */
+    default void onFailed(String source, Throwable cause) {
+    }
+
+    /**
+     * Called when a rolled file has been moved to the backout directory.
+     *
+     * @param source The rolled file that was backed out
+     */
+    default void onBackout(String source) {
+    }
+
+    /**
+     * Called when the number of uploads that are queued, waiting for a retry or in flight changes.
+     *
+     * @param pendingIngestions The current backlog
+     */
+    default void onBacklogChanged(int pendingIngestions) {
+    }
+
+    /**
+     * Called when the circuit breaker of the destination changes state: OPEN after consecutive failures (uploads then fail
+     * without a network call), HALF_OPEN when a probe is let through, CLOSED when uploads go through again.
+     *
+     * @param state The new state
+     */
+    default void onCircuitStateChanged(String state) {
+    }
+
+    /**
+     * Called when the service reports a tracked ingestion as ingested, if statusTracking is enabled. Called from the
+     * status polling thread.
+     *
+     * @param source        The rolled file, or a description of the data that was ingested
+     * @param latencyMillis The time from the end of the upload to the ingestion reported by the service
+     */
+    default void onIngestionConfirmed(String source, long latencyMillis) {
+    }
+
+    /**
+     * Called when the service reports that a tracked ingestion failed after it was queued, if statusTracking is enabled.
+     * The data is not backed out, it has been uploaded already. Called from the status polling thread.
+     *
+     * @param source  The rolled file, or a description of the data that failed
+     * @param details The error code and details reported by the service
+     */
+    default void onLateFailure(String source, String details) {
+    }
+
+    /**
+     * Called when a rolled file is not uploaded because the deduplication index has its content as ingested already.
+     *
+     * @param source The rolled file that was skipped
+     */
+    default void onDuplicateSkipped(String source) {
+    }
+
+    /**
+     * Called when a backed out or spooled file was deleted to keep the backout and spool directories under the spool
+     * quota. Its data is lost.
+     *
+     * @param source The file that was deleted
+     * @param bytes  The size of the file
+     */
+    default void onEvicted(String source, long bytes) {
+    }
+}
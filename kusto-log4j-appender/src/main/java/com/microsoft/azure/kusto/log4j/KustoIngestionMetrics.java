@@ -0,0 +1,387 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts the ingestions of one destination table, publishes the counts as an MXBean and forwards the events to the
+ * KustoIngestionListener of the application (if any). The counters are updated from the ingestion threads without
+ * locking.
+ */
+final class KustoIngestionMetrics implements KustoIngestionMetricsMXBean, KustoBacklog {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    static final String OBJECT_NAME_DOMAIN = "com.microsoft.azure.kusto.log4j";
+    // upper bounds of the latency buckets, the last bucket takes the rest
+    static final long[] LATENCY_BUCKETS_MILLIS = {100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+    // queued ingestion batches the data for minutes, the buckets of the queued to ingested latency are wider
+    static final long[] INGESTION_LATENCY_BUCKETS_MILLIS = {5000, 15000, 30000, 60000, 120000, 300000, 600000, 1800000};
+
+    private final KustoIngestionListener listener;
+    private final IntSupplier queuedFiles;
+    private final LongSupplier queuedBytes;
+    private final LongAdder filesIngested = new LongAdder();
+    private final LongAdder bytesIngested = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder backouts = new LongAdder();
+    private final LongAdder totalLatencyMillis = new LongAdder();
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+    private final LongAdder[] latencyBuckets = new LongAdder[LATENCY_BUCKETS_MILLIS.length + 1];
+    private final AtomicInteger pendingIngestions = new AtomicInteger();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong spoolBytes = new AtomicLong();
+    private final LongAdder sampledOutEvents = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder evictedBytes = new LongAdder();
+    private final LongAdder circuitOpenings = new LongAdder();
+    private final LongAdder shortCircuitedAttempts = new LongAdder();
+    private volatile KustoCircuitBreaker.State circuitState = KustoCircuitBreaker.State.CLOSED;
+    private final LongAdder confirmedIngestions = new LongAdder();
+    private final LongAdder lateFailures = new LongAdder();
+    private final LongAdder untrackedIngestions = new LongAdder();
+    private final LongAdder totalIngestionLatencyMillis = new LongAdder();
+    private final AtomicLong maxIngestionLatencyMillis = new AtomicLong();
+    private final LongAdder[] ingestionLatencyBuckets = new LongAdder[INGESTION_LATENCY_BUCKETS_MILLIS.length + 1];
+    private volatile int trackedIngestions;
+    private final LongAdder skippedDuplicates = new LongAdder();
+    private ObjectName objectName;
+
+    KustoIngestionMetrics(KustoIngestionListener listener, IntSupplier queuedFiles) {
+        this(listener, queuedFiles, () -> 0);
+    }
+
+    /**
+     * @param listener    The listener of the application, may be null
+     * @param queuedFiles The number of rolled files that wait outside of the upload pipeline (to be coalesced)
+     * @param queuedBytes The bytes of these files
+     */
+    KustoIngestionMetrics(KustoIngestionListener listener, IntSupplier queuedFiles, LongSupplier queuedBytes) {
+        this.listener = listener;
+        this.queuedFiles = queuedFiles;
+        this.queuedBytes = queuedBytes;
+        for (int i = 0; i < latencyBuckets.length; i++) {
+            latencyBuckets[i] = new LongAdder();
+        }
+        for (int i = 0; i < ingestionLatencyBuckets.length; i++) {
+            ingestionLatencyBuckets[i] = new LongAdder();
+        }
+    }
+
+    void onIngested(String source, int files, long bytes, long latencyMillis) {
+        filesIngested.add(files);
+        bytesIngested.add(bytes);
+        totalLatencyMillis.add(latencyMillis);
+        maxLatencyMillis.accumulateAndGet(latencyMillis, Math::max);
+        latencyBuckets[getLatencyBucket(LATENCY_BUCKETS_MILLIS, latencyMillis)].increment();
+        notifyListener(l -> l.onIngested(source, bytes, latencyMillis));
+    }
+
+    void onRetry(String source, Throwable cause) {
+        retries.increment();
+        notifyListener(l -> l.onRetry(source, cause));
+    }
+
+    void onFailed(String source, Throwable cause) {
+        failures.increment();
+        notifyListener(l -> l.onFailed(source, cause));
+    }
+
+    void onBackout(String source) {
+        backouts.increment();
+        notifyListener(l -> l.onBackout(source));
+    }
+
+    void onDuplicateSkipped(String source) {
+        skippedDuplicates.increment();
+        notifyListener(l -> l.onDuplicateSkipped(source));
+    }
+
+    void onShortCircuited() {
+        shortCircuitedAttempts.increment();
+    }
+
+    void onCircuitStateChanged(KustoCircuitBreaker.State state) {
+        circuitState = state;
+        if (state == KustoCircuitBreaker.State.OPEN) {
+            circuitOpenings.increment();
+        }
+        notifyListener(l -> l.onCircuitStateChanged(state.name()));
+    }
+
+    void onIngestionConfirmed(String source, long latencyMillis) {
+        confirmedIngestions.increment();
+        totalIngestionLatencyMillis.add(latencyMillis);
+        maxIngestionLatencyMillis.accumulateAndGet(latencyMillis, Math::max);
+        ingestionLatencyBuckets[getLatencyBucket(INGESTION_LATENCY_BUCKETS_MILLIS, latencyMillis)].increment();
+        notifyListener(l -> l.onIngestionConfirmed(source, latencyMillis));
+    }
+
+    void onLateFailure(String source, String details) {
+        lateFailures.increment();
+        notifyListener(l -> l.onLateFailure(source, details));
+    }
+
+    void onStatusUntracked() {
+        untrackedIngestions.increment();
+    }
+
+    void onTrackedIngestionsChanged(int tracked) {
+        trackedIngestions = tracked;
+    }
+
+    void onIngestionStarted(long bytes) {
+        pendingBytes.addAndGet(bytes);
+        onBacklogChanged(pendingIngestions.incrementAndGet());
+    }
+
+    void onIngestionCompleted(long bytes) {
+        pendingBytes.addAndGet(-bytes);
+        onBacklogChanged(pendingIngestions.decrementAndGet());
+    }
+
+    void onSpoolUsageChanged(long bytes) {
+        spoolBytes.set(bytes);
+    }
+
+    void onEvicted(String source, long bytes) {
+        evictions.increment();
+        evictedBytes.add(bytes);
+        notifyListener(l -> l.onEvicted(source, bytes));
+    }
+
+    void onSampledOut() {
+        sampledOutEvents.increment();
+    }
+
+    private void onBacklogChanged(int pending) {
+        notifyListener(l -> l.onBacklogChanged(pending + queuedFiles.getAsInt()));
+    }
+
+    /*
+     * The listener of the application is called from the ingestion threads, a failing listener must not fail the
+     * ingestion.
+     */
+    private void notifyListener(Consumer<KustoIngestionListener> event) {
+        if (listener != null) {
+            try {
+                event.accept(listener);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Ingestion listener failed", e);
+            }
+        }
+    }
+
+    static int getLatencyBucket(long[] bucketsMillis, long latencyMillis) {
+        for (int i = 0; i < bucketsMillis.length; i++) {
+            if (latencyMillis <= bucketsMillis[i]) {
+                return i;
+            }
+        }
+        return bucketsMillis.length;
+    }
+
+    /**
+     * Registers the MXBean with the platform MBean server, named after the destination. If a bean is already registered
+     * under that name (by an instance of another configuration that is still running), an instance key is added to the
+     * name rather than taking it over: the bean of another instance is never unregistered. Failures are logged, metrics
+     * are not worth failing the configuration.
+     *
+     * @param cluster  The ingestion endpoint of the cluster
+     * @param database The database
+     * @param table    The table
+     * @param mapping  The ingestion mapping, may be null
+     */
+    void register(String cluster, String database, String table, String mapping) {
+        try {
+            String name = String.format("%s:type=KustoIngestion,cluster=%s,database=%s,table=%s", OBJECT_NAME_DOMAIN, ObjectName.quote(cluster),
+                    ObjectName.quote(database), ObjectName.quote(table));
+            if (mapping != null && !mapping.trim().isEmpty()) {
+                name += ",mapping=" + ObjectName.quote(mapping);
+            }
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName candidate = new ObjectName(name);
+            for (int instance = 2; objectName == null; instance++) {
+                try {
+                    mBeanServer.registerMBean(this, candidate);
+                    objectName = candidate;
+                } catch (InstanceAlreadyExistsException e) {
+                    candidate = new ObjectName(name + ",instance=" + instance);
+                }
+            }
+        } catch (JMException | SecurityException e) {
+            LOGGER.warn("Could not register the ingestion metrics of {}.{}", database, table, e);
+        }
+    }
+
+    void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException | SecurityException e) {
+            LOGGER.debug("Could not unregister {}", objectName, e);
+        }
+        objectName = null;
+    }
+
+    ObjectName getObjectName() {
+        return objectName;
+    }
+
+    @Override
+    public long getFilesIngested() {
+        return filesIngested.sum();
+    }
+
+    @Override
+    public long getBytesIngested() {
+        return bytesIngested.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public long getBackouts() {
+        return backouts.sum();
+    }
+
+    @Override
+    public int getPendingIngestions() {
+        return pendingIngestions.get() + queuedFiles.getAsInt();
+    }
+
+    @Override
+    public long getPendingBytes() {
+        return pendingBytes.get() + queuedBytes.getAsLong();
+    }
+
+    @Override
+    public long getSpoolBytes() {
+        return spoolBytes.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getEvictedBytes() {
+        return evictedBytes.sum();
+    }
+
+    @Override
+    public long getSampledOutEvents() {
+        return sampledOutEvents.sum();
+    }
+
+    @Override
+    public String getCircuitState() {
+        return circuitState.name();
+    }
+
+    @Override
+    public long getCircuitOpenings() {
+        return circuitOpenings.sum();
+    }
+
+    @Override
+    public long getShortCircuitedAttempts() {
+        return shortCircuitedAttempts.sum();
+    }
+
+    @Override
+    public long getMaxUploadLatencyMillis() {
+        return maxLatencyMillis.get();
+    }
+
+    @Override
+    public double getMeanUploadLatencyMillis() {
+        long uploads = 0;
+        for (LongAdder latencyBucket : latencyBuckets) {
+            uploads += latencyBucket.sum();
+        }
+        return uploads == 0 ? 0 : (double) totalLatencyMillis.sum() / uploads;
+    }
+
+    @Override
+    public Map<String, Long> getUploadLatencyHistogram() {
+        return toHistogram(LATENCY_BUCKETS_MILLIS, latencyBuckets);
+    }
+
+    @Override
+    public long getSkippedDuplicates() {
+        return skippedDuplicates.sum();
+    }
+
+    @Override
+    public long getConfirmedIngestions() {
+        return confirmedIngestions.sum();
+    }
+
+    @Override
+    public long getLateFailures() {
+        return lateFailures.sum();
+    }
+
+    @Override
+    public long getUntrackedIngestions() {
+        return untrackedIngestions.sum();
+    }
+
+    @Override
+    public int getTrackedIngestions() {
+        return trackedIngestions;
+    }
+
+    @Override
+    public long getMaxIngestionLatencyMillis() {
+        return maxIngestionLatencyMillis.get();
+    }
+
+    @Override
+    public double getMeanIngestionLatencyMillis() {
+        long confirmed = confirmedIngestions.sum();
+        return confirmed == 0 ? 0 : (double) totalIngestionLatencyMillis.sum() / confirmed;
+    }
+
+    @Override
+    public Map<String, Long> getIngestionLatencyHistogram() {
+        return toHistogram(INGESTION_LATENCY_BUCKETS_MILLIS, ingestionLatencyBuckets);
+    }
+
+    private static Map<String, Long> toHistogram(long[] bucketsMillis, LongAdder[] buckets) {
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < bucketsMillis.length; i++) {
+            histogram.put(String.valueOf(bucketsMillis[i]), buckets[i].sum());
+        }
+        histogram.put("+Inf", buckets[bucketsMillis.length].sum());
+        return histogram;
+    }
+}
@@ -0,0 +1,111 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import java.util.Map;
+
+/**
+ * The ingestion metrics of one destination table, registered with the platform MBean server under
+ * com.microsoft.azure.kusto.log4j:type=KustoIngestion,cluster=&lt;cluster&gt;,database=&lt;database&gt;,table=&lt;table&gt;
+ * with a mapping key when a mapping is set, and an instance key when two configurations ingest into the same destination
+ */
+public interface KustoIngestionMetricsMXBean {
+
+    long getFilesIngested();
+
+    long getBytesIngested();
+
+    long getRetries();
+
+    long getFailures();
+
+    long getBackouts();
+
+    /**
+     * @return The number of uploads that are queued, waiting for a retry or in flight, plus the rolled files waiting to
+     *         be coalesced
+     */
+    int getPendingIngestions();
+
+    /**
+     * @return The (uncompressed) bytes of the pending ingestions
+     */
+    long getPendingBytes();
+
+    /**
+     * @return The bytes of the files in the backout and spool directories
+     */
+    long getSpoolBytes();
+
+    /**
+     * @return The number of backed out or spooled files that were deleted to keep the directories under the spool quota
+     */
+    long getEvictions();
+
+    long getEvictedBytes();
+
+    /**
+     * @return The number of events a KustoBacklogFilter dropped while the backlog was above its low watermark
+     */
+    long getSampledOutEvents();
+
+    /**
+     * @return CLOSED while uploads go through, OPEN while they are failed without a network call after consecutive
+     *         failures, HALF_OPEN while a probe is in flight
+     */
+    String getCircuitState();
+
+    long getCircuitOpenings();
+
+    /**
+     * @return The number of upload attempts that were failed without a network call because the circuit was open
+     */
+    long getShortCircuitedAttempts();
+
+    long getMaxUploadLatencyMillis();
+
+    double getMeanUploadLatencyMillis();
+
+    /**
+     * @return The number of successful uploads per latency bucket, keyed by the upper bound of the bucket in
+     *         milliseconds ("+Inf" for the last one)
+     */
+    Map<String, Long> getUploadLatencyHistogram();
+
+    /**
+     * @return The number of files that were not uploaded because the ingestion index had them as ingested already
+     */
+    long getSkippedDuplicates();
+
+    /**
+     * @return The number of ingestions the service reported as ingested, when the ingestion status is tracked
+     */
+    long getConfirmedIngestions();
+
+    /**
+     * @return The number of ingestions that were queued successfully but that the service then failed to ingest (in
+     *         whole or in part), when the ingestion status is tracked
+     */
+    long getLateFailures();
+
+    /**
+     * @return The number of ingestions whose status was no longer followed, because the cache was full or because they
+     *         were still pending after the maximum tracking time
+     */
+    long getUntrackedIngestions();
+
+    /**
+     * @return The number of ingestions whose status is being followed
+     */
+    int getTrackedIngestions();
+
+    long getMaxIngestionLatencyMillis();
+
+    double getMeanIngestionLatencyMillis();
+
+    /**
+     * @return The number of confirmed ingestions per latency bucket, from the end of the upload to the ingestion
+     *         reported by the service, keyed by the upper bound of the bucket in milliseconds ("+Inf" for the last one)
+     */
+    Map<String, Long> getIngestionLatencyHistogram();
+}
@@ -0,0 +1,175 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import com.microsoft.azure.kusto.ingest.result.IngestionResult;
+import com.microsoft.azure.kusto.ingest.result.IngestionStatus;
+import com.microsoft.azure.kusto.ingest.result.OperationStatus;
+
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Follows the queued ingestions until the service reports them as ingested or failed, so that the latency from queueing
+ * to ingestion and the failures that happen after queueing show in the metrics. The results are kept in a bounded
+ * cache, the oldest result is dropped when the cache is full, and so is a result that is still pending after the
+ * maximum tracking time. Their status is polled in batches on a scheduler of its own, so neither the logging threads
+ * nor the uploads wait for the status queries.
+ */
+class KustoIngestionStatusTracker {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    // the number of results whose status is queried per poll
+    static final int POLL_BATCH_SIZE = 64;
+    static final long MAX_TRACKING_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final int capacity;
+    private final KustoIngestionMetrics ingestionMetrics;
+    private final LongSupplier clock;
+
+    // guarded by this, the next result to poll first
+    private final Deque<TrackedIngestion> trackedIngestions = new ArrayDeque<>();
+
+    KustoIngestionStatusTracker(int capacity, KustoIngestionMetrics ingestionMetrics) {
+        this(capacity, ingestionMetrics, System::currentTimeMillis);
+    }
+
+    KustoIngestionStatusTracker(int capacity, KustoIngestionMetrics ingestionMetrics, LongSupplier clock) {
+        this.capacity = Math.max(1, capacity);
+        this.ingestionMetrics = ingestionMetrics;
+        this.clock = clock;
+    }
+
+    void start(ScheduledExecutorService scheduler, long pollIntervalMillis) {
+        scheduler.scheduleWithFixedDelay(this::poll, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds the result of a successful upload. Only the cache is updated, the status is queried by the next polls.
+     *
+     * @param source The rolled file, or a description of the data that was uploaded
+     * @param result The result returned by the ingest client
+     */
+    void track(String source, IngestionResult result) {
+        if (result == null) {
+            return;
+        }
+        TrackedIngestion trackedIngestion = new TrackedIngestion(source, result, clock.getAsLong());
+        int tracked;
+        int evicted = 0;
+        synchronized (this) {
+            trackedIngestions.addLast(trackedIngestion);
+            while (trackedIngestions.size() > capacity) {
+                trackedIngestions.removeFirst();
+                evicted++;
+            }
+            tracked = trackedIngestions.size();
+        }
+        for (int i = 0; i < evicted; i++) {
+            ingestionMetrics.onStatusUntracked();
+        }
+        ingestionMetrics.onTrackedIngestionsChanged(tracked);
+    }
+
+    synchronized int getTrackedIngestions() {
+        return trackedIngestions.size();
+    }
+
+    /**
+     * Queries the status of the next batch of results. The results that are still pending go back to the end of the
+     * cache, so that every result is polled in turn.
+     */
+    void poll() {
+        List<TrackedIngestion> batch = new ArrayList<>();
+        synchronized (this) {
+            while (batch.size() < POLL_BATCH_SIZE && !trackedIngestions.isEmpty()) {
+                batch.add(trackedIngestions.removeFirst());
+            }
+        }
+        List<TrackedIngestion> pending = new ArrayList<>();
+        for (TrackedIngestion trackedIngestion : batch) {
+            try {
+                if (!isFinal(trackedIngestion)) {
+                    pending.add(trackedIngestion);
+                }
+            } catch (URISyntaxException | RuntimeException e) {
+                // the status table may be unreachable for a while, the result is polled again
+                LOGGER.debug("Could not get the ingestion status of {}", trackedIngestion.source, e);
+                pending.add(trackedIngestion);
+            }
+        }
+        long now = clock.getAsLong();
+        int tracked;
+        int dropped = 0;
+        synchronized (this) {
+            for (TrackedIngestion trackedIngestion : pending) {
+                if (now - trackedIngestion.queuedAtMillis >= MAX_TRACKING_MILLIS) {
+                    LOGGER.warn("Ingestion of {} is still pending after {} ms, no longer tracking it", trackedIngestion.source,
+                            now - trackedIngestion.queuedAtMillis);
+                    dropped++;
+                } else if (trackedIngestions.size() >= capacity) {
+                    // the cache was filled by newer results in the meantime, the older result goes
+                    dropped++;
+                } else {
+                    trackedIngestions.addLast(trackedIngestion);
+                }
+            }
+            tracked = trackedIngestions.size();
+        }
+        for (int i = 0; i < dropped; i++) {
+            ingestionMetrics.onStatusUntracked();
+        }
+        ingestionMetrics.onTrackedIngestionsChanged(tracked);
+    }
+
+    /*
+     * A result is final once none of its statuses is pending or queued. Each final status is reported once, with the
+     * time the service last updated it.
+     */
+    private boolean isFinal(TrackedIngestion trackedIngestion) throws URISyntaxException {
+        List<IngestionStatus> statuses = trackedIngestion.result.getIngestionStatusCollection();
+        if (statuses == null) {
+            return false;
+        }
+        for (IngestionStatus status : statuses) {
+            OperationStatus operationStatus = status.getStatus();
+            if (operationStatus == null || operationStatus == OperationStatus.Pending || operationStatus == OperationStatus.Queued) {
+                return false;
+            }
+        }
+        for (IngestionStatus status : statuses) {
+            long ingestedAtMillis = status.getUpdatedOn() != null ? status.getUpdatedOn().toEpochMilli() : clock.getAsLong();
+            long latencyMillis = Math.max(0, ingestedAtMillis - trackedIngestion.queuedAtMillis);
+            if (status.getStatus() == OperationStatus.Failed || status.getStatus() == OperationStatus.PartiallySucceeded) {
+                LOGGER.warn("Ingestion of {} {} after it was queued: {} {}", trackedIngestion.source, status.getStatus(),
+                        status.getErrorCodeString(), status.getDetails());
+                ingestionMetrics.onLateFailure(trackedIngestion.source, String.format("%s %s", status.getErrorCodeString(),
+                        status.getDetails()));
+            } else {
+                ingestionMetrics.onIngestionConfirmed(trackedIngestion.source, latencyMillis);
+            }
+        }
+        return true;
+    }
+
+    private static final class TrackedIngestion {
+        private final String source;
+        private final IngestionResult result;
+        private final long queuedAtMillis;
+
+        private TrackedIngestion(String source, IngestionResult result, long queuedAtMillis) {
+            this.source = source;
+            this.result = result;
+            this.queuedAtMillis = queuedAtMillis;
+        }
+    }
+}
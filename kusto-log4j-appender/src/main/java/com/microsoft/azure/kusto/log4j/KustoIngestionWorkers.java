@@ -0,0 +1,161 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the executor the upload attempts run on in async mode. The uploads block on reading the file and on HTTP, so
+ * on Java 21 and later each attempt can get a virtual thread of its own: ingestionWorkers attempts upload at the same
+ * time, and up to ingestionQueueCapacity more wait for their turn, parked without holding a platform thread. Virtual
+ * threads are looked up by reflection so that the library still runs on Java 8. When they are not available, the
+ * attempts run on a pool of ingestionWorkers platform threads with a queue of ingestionQueueCapacity.
+ * <p>
+ * Either way the executor rejects an attempt when the workers and the queue are full, and the caller then runs it
+ * itself, as back pressure. With a queue capacity of 0 an attempt is only handed over to an idle worker.
+ */
+final class KustoIngestionWorkers {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    private static final String THREAD_NAME_PREFIX = "KustoIngestion";
+
+    private KustoIngestionWorkers() {
+    }
+
+    /**
+     * @param workers        The number of attempts that upload at the same time
+     * @param queueCapacity  The number of attempts that wait for a worker, 0 (or less) for none
+     * @param virtualThreads If the attempts run on virtual threads when the JVM has them
+     * @return The executor of the upload attempts
+     */
+    static ExecutorService create(int workers, int queueCapacity, boolean virtualThreads) {
+        queueCapacity = Math.max(0, queueCapacity);
+        if (virtualThreads) {
+            ThreadFactory virtualThreadFactory = createVirtualThreadFactory();
+            if (virtualThreadFactory != null) {
+                LOGGER.info("Uploading on virtual threads, {} at a time", workers);
+                return new BoundedExecutor(newThreadPerTaskExecutor(virtualThreadFactory), workers, queueCapacity);
+            }
+            LOGGER.info("Virtual threads are not available on Java {}, uploading on {} platform threads",
+                    System.getProperty("java.version"), workers);
+        }
+        // an ArrayBlockingQueue needs a capacity of at least 1, a SynchronousQueue hands the attempt over or rejects it
+        BlockingQueue<Runnable> queue = queueCapacity > 0 ? new ArrayBlockingQueue<>(queueCapacity) : new SynchronousQueue<>();
+        return new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, queue,
+                Log4jThreadFactory.createDaemonThreadFactory(THREAD_NAME_PREFIX));
+    }
+
+    /**
+     * @return If the JVM runs virtual threads (Java 21 and later, or an earlier version with preview features enabled)
+     */
+    static boolean isVirtualThreadSupported() {
+        return createVirtualThreadFactory() != null;
+    }
+
+    /*
+     * Thread.ofVirtual().name(prefix, 0).factory(), or null when the JVM does not have it or has it as a disabled
+     * preview.
+     */
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, THREAD_NAME_PREFIX + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newThreadPerTaskExecutor(ThreadFactory threadFactory) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            // Java 21 has both or neither
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * Starts a thread per attempt, but admits at most workers + queueCapacity attempts and lets workers of them run at a
+     * time. An attempt that waits for its turn is parked on the semaphore, which does not hold a platform thread.
+     */
+    static final class BoundedExecutor extends AbstractExecutorService {
+        private final ExecutorService delegate;
+        private final Semaphore admissions;
+        private final Semaphore running;
+
+        BoundedExecutor(ExecutorService delegate, int workers, int queueCapacity) {
+            this.delegate = delegate;
+            this.admissions = new Semaphore(workers + queueCapacity);
+            this.running = new Semaphore(workers, true);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            if (!admissions.tryAcquire()) {
+                throw new RejectedExecutionException("All the ingestion workers are busy and the queue is full");
+            }
+            try {
+                delegate.execute(() -> {
+                    try {
+                        running.acquire();
+                        try {
+                            task.run();
+                        } finally {
+                            running.release();
+                        }
+                    } catch (InterruptedException e) {
+                        // shutting down, the attempt is dropped like the attempts still queued in a thread pool
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        admissions.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                admissions.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
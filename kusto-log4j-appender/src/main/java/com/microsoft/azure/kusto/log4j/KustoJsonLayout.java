@@ -0,0 +1,143 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.layout.AbstractStringLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A layout that writes each event as one line of JSON (the multijson format of Kusto) with exactly the columns of the
+ * ingestion mapping. The columns are configured as a comma separated list of column=field pairs, e.g.
+ * columns="Timestamp=timestamp,Level=level,Message=formattedmessage". A column without a field takes the field of the
+ * same name. getIngestionMapping() returns the JSON mapping that reads these columns.
+ * <p>
+ * The layout is garbage free: the event is written into a StringBuilder that is reused by the thread and encoded into
+ * the appender's ByteBufferDestination. Only events with an exception allocate (for the stack trace).
+ */
+@Plugin(name = "KustoJsonLayout", category = Node.CATEGORY, elementType = Layout.ELEMENT_TYPE, printObject = true)
+public final class KustoJsonLayout extends AbstractStringLayout {
+
+    // the columns of CsvLogEventLayout, except the source that requires the location of every event
+    static final String DEFAULT_COLUMNS = "timenanos,timemillis,level,threadid,threadname,threadpriority,formattedmessage,loggerfqcn,"
+            + "loggername,marker,thrownproxy,contextmap,contextstack";
+    private static final String CONTENT_TYPE = "application/json; charset=UTF-8";
+
+    private final String[] columns;
+    // the column names as they are written, quoted and followed by the colon
+    private final String[] keys;
+    private final KustoLogEventField[] fields;
+    private final boolean requiresLocation;
+
+    private KustoJsonLayout(String[] columns, KustoLogEventField[] fields) {
+        super(StandardCharsets.UTF_8);
+        this.columns = columns;
+        this.fields = fields;
+        this.keys = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            StringBuilder key = new StringBuilder();
+            KustoLogEventField.appendJsonString(columns[i], key);
+            keys[i] = key.append(':').toString();
+        }
+        this.requiresLocation = Arrays.asList(fields).contains(KustoLogEventField.SOURCE);
+    }
+
+    /**
+     * @param columns The columns to write as column=field pairs (or field names), in the order of the mapping. Defaults
+     *                to the columns of CsvLogEventLayout without source
+     * @return KustoJsonLayout that writes the columns
+     */
+    @PluginFactory
+    public static KustoJsonLayout createLayout(@PluginAttribute("columns") final String columns) {
+        String[] columnSpecs = StringUtils.defaultIfBlank(columns, DEFAULT_COLUMNS).split(",");
+        String[] columnNames = new String[columnSpecs.length];
+        KustoLogEventField[] fields = new KustoLogEventField[columnSpecs.length];
+        for (int i = 0; i < columnSpecs.length; i++) {
+            String columnSpec = columnSpecs[i].trim();
+            int separator = columnSpec.indexOf('=');
+            columnNames[i] = separator < 0 ? columnSpec : columnSpec.substring(0, separator).trim();
+            fields[i] = KustoLogEventField.forName(separator < 0 ? columnSpec : columnSpec.substring(separator + 1));
+        }
+        return new KustoJsonLayout(columnNames, fields);
+    }
+
+    @Override
+    public String toSerializable(LogEvent event) {
+        StringBuilder text = getStringBuilder();
+        format(event, text);
+        return text.toString();
+    }
+
+    @Override
+    public void encode(LogEvent event, ByteBufferDestination destination) {
+        StringBuilder text = getStringBuilder();
+        format(event, text);
+        getStringBuilderEncoder().encode(text, destination);
+    }
+
+    private void format(LogEvent event, StringBuilder text) {
+        text.append('{');
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(keys[i]);
+            KustoLogEventField field = fields[i];
+            if (field.getKind() == KustoLogEventField.Kind.STRING) {
+                // the value is formatted on the side and escaped into the line
+                StringBuilder value = KustoLogEventField.getFieldBuffer();
+                if (field.formatTo(event, value)) {
+                    KustoLogEventField.appendJsonString(value, text);
+                } else {
+                    text.append("null");
+                }
+                KustoLogEventField.releaseFieldBuffer(value);
+            } else {
+                int start = text.length();
+                if (!field.formatTo(event, text)) {
+                    text.setLength(start);
+                    text.append("null");
+                }
+            }
+        }
+        text.append("}\n");
+    }
+
+    @Override
+    public boolean requiresLocation() {
+        return requiresLocation;
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    /**
+     * @return The JSON ingestion mapping that reads the columns written by the layout, to create the mapping with
+     *         .create table &lt;table&gt; ingestion json mapping '&lt;name&gt;' '&lt;mapping&gt;'
+     */
+    public String getIngestionMapping() {
+        StringBuilder mapping = new StringBuilder("[");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                mapping.append(',');
+            }
+            mapping.append("{\"column\":");
+            KustoLogEventField.appendJsonString(columns[i], mapping);
+            mapping.append(",\"Properties\":{\"Path\":");
+            KustoLogEventField.appendJsonString(String.format("$['%s']", columns[i]), mapping);
+            mapping.append("}}");
+        }
+        return mapping.append(']').toString();
+    }
+}
@@ -0,0 +1,84 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import com.microsoft.azure.kusto.ingest.IngestClient;
+import com.microsoft.azure.kusto.ingest.exceptions.IngestionClientException;
+
+import java.net.URISyntaxException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An ingest client of the registry that is only acquired when it is first needed, so that the configuration does not
+ * wait for the credentials and the HTTP client to be set up. The client can be warmed up on a background thread: the
+ * queued client then starts fetching its ingestion resources and identity token before the first rollover. A failed
+ * creation is tried again on the next use.
+ */
+final class KustoLazyIngestClient {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private final String clientKey;
+    private final KustoIngestClientRegistry.ClientFactory clientFactory;
+    // guarded by this
+    private IngestClient ingestClient;
+    private boolean released;
+
+    KustoLazyIngestClient(String clientKey, KustoIngestClientRegistry.ClientFactory clientFactory) {
+        this.clientKey = clientKey;
+        this.clientFactory = clientFactory;
+    }
+
+    /**
+     * @return The client, acquired from the registry on the first call
+     * @throws IngestionClientException When the client cannot be created, or was released
+     */
+    synchronized IngestClient get() throws IngestionClientException {
+        if (ingestClient == null) {
+            if (released) {
+                throw new IngestionClientException(String.format("The ingest client for %s is closed", clientKey));
+            }
+            try {
+                ingestClient = KustoIngestClientRegistry.acquire(clientKey, clientFactory);
+            } catch (URISyntaxException | RuntimeException e) {
+                throw new IngestionClientException(String.format("Could not create the ingest client for %s", clientKey), e);
+            }
+        }
+        return ingestClient;
+    }
+
+    /**
+     * Creates the client on the executor, unless it is created already.
+     *
+     * @param executor The thread that creates the client
+     */
+    void warmUp(Executor executor) {
+        try {
+            executor.execute(() -> {
+                try {
+                    get();
+                    LOGGER.debug("Warmed up the ingest client for {}", clientKey);
+                } catch (IngestionClientException e) {
+                    LOGGER.error("Warming up the ingest client failed, it is created again on the first upload", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Not warming up the ingest client for {}, shutting down", clientKey);
+        }
+    }
+
+    /**
+     * Gives the client back to the registry if it was acquired. The client cannot be used afterwards.
+     */
+    synchronized void release() {
+        released = true;
+        if (ingestClient != null) {
+            KustoIngestClientRegistry.release(clientKey);
+            ingestClient = null;
+        }
+    }
+}
@@ -2,6 +2,12 @@
 // Licensed under the MIT License.
 package com.microsoft.azure.kusto.log4j;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
 class KustoLog4jConfig {
 
     final String clusterIngestUrl;
@@ -19,25 +25,366 @@ class KustoLog4jConfig {
     final Boolean useInteractiveAuth;
     final String managedIdentityId;
     final Boolean useAzCliAuth;
+    final Boolean asyncIngestion;
+    final Integer ingestionQueueCapacity;
+    final Integer ingestionWorkers;
+    final Boolean compressUploads;
+    final Long coalesceBytes;
+    final Integer coalesceMaxDelaySeconds;
+    final String ingestionMode;
+    final Boolean replayBackout;
+    final Integer replayIntervalSeconds;
+    final Long replayBytesPerSecond;
+    final Integer replayConcurrency;
+    final String replayDirectory;
+    final String ingestionListener;
+    final Integer maxConcurrentUploads;
+    final Integer circuitBreakerFailures;
+    final Integer circuitBreakerOpenSeconds;
+    final Integer shutdownTimeoutSeconds;
+    final String clientInitialization;
+    final Boolean statusTracking;
+    final Integer statusTrackingCapacity;
+    final Integer statusPollIntervalSeconds;
+    final String deduplicationIndex;
+    final Integer deduplicationIndexCapacity;
+    final Long spoolQuotaBytes;
+    final Integer spoolPriority;
+    final Boolean virtualThreads;
+    final String ingestClientSupplier;
+
+    private KustoLog4jConfig(Builder builder) {
+        this.clusterIngestUrl = builder.clusterIngestUrl;
+        this.appId = builder.appId;
+        this.appKey = builder.appKey;
+        this.appTenant = builder.appTenant;
+        this.dbName = builder.dbName;
+        this.tableName = builder.tableName;
+        this.logTableMapping = builder.logTableMapping;
+        this.mappingType = builder.mappingType;
+        this.proxyUrl = builder.proxyUrl;
+        this.backOffMinSeconds = builder.backOffMinSeconds;
+        this.backOffMaxSeconds = builder.backOffMaxSeconds;
+        this.flushImmediately = builder.flushImmediately;
+        this.useInteractiveAuth = builder.useInteractiveAuth;
+        this.managedIdentityId = builder.managedIdentityId;
+        this.useAzCliAuth = builder.useAzCliAuth;
+        this.asyncIngestion = builder.asyncIngestion;
+        this.ingestionQueueCapacity = builder.ingestionQueueCapacity;
+        this.ingestionWorkers = builder.ingestionWorkers;
+        this.compressUploads = builder.compressUploads;
+        this.coalesceBytes = builder.coalesceBytes;
+        this.coalesceMaxDelaySeconds = builder.coalesceMaxDelaySeconds;
+        this.ingestionMode = builder.ingestionMode;
+        this.replayBackout = builder.replayBackout;
+        this.replayIntervalSeconds = builder.replayIntervalSeconds;
+        this.replayBytesPerSecond = builder.replayBytesPerSecond;
+        this.replayConcurrency = builder.replayConcurrency;
+        this.replayDirectory = builder.replayDirectory;
+        this.ingestionListener = builder.ingestionListener;
+        this.maxConcurrentUploads = builder.maxConcurrentUploads;
+        this.circuitBreakerFailures = builder.circuitBreakerFailures;
+        this.circuitBreakerOpenSeconds = builder.circuitBreakerOpenSeconds;
+        this.shutdownTimeoutSeconds = builder.shutdownTimeoutSeconds;
+        this.clientInitialization = builder.clientInitialization;
+        this.statusTracking = builder.statusTracking;
+        this.statusTrackingCapacity = builder.statusTrackingCapacity;
+        this.statusPollIntervalSeconds = builder.statusPollIntervalSeconds;
+        this.deduplicationIndex = builder.deduplicationIndex;
+        this.deduplicationIndexCapacity = builder.deduplicationIndexCapacity;
+        this.spoolQuotaBytes = builder.spoolQuotaBytes;
+        this.spoolPriority = builder.spoolPriority;
+        this.virtualThreads = builder.virtualThreads;
+        this.ingestClientSupplier = builder.ingestClientSupplier;
+    }
+
+    static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * @param other Another config
+     * @return The names of the attributes whose values differ in the other config, in declaration order
+     */
+    List<String> getDifferingAttributes(KustoLog4jConfig other) {
+        List<String> differing = new ArrayList<>();
+        for (Field field : KustoLog4jConfig.class.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) {
+                continue;
+            }
+            try {
+                if (!Objects.equals(field.get(this), field.get(other))) {
+                    differing.add(field.getName());
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return differing;
+    }
+
+    /**
+     * Collects the attributes of a config, the attributes that are not set are null.
+     */
+    static final class Builder {
+        private String clusterIngestUrl;
+        private String appId;
+        private String appKey;
+        private String appTenant;
+        private String dbName;
+        private String tableName;
+        private String logTableMapping;
+        private String mappingType;
+        private String proxyUrl;
+        private Integer backOffMinSeconds;
+        private Integer backOffMaxSeconds;
+        private Boolean flushImmediately;
+        private Boolean useInteractiveAuth;
+        private String managedIdentityId;
+        private Boolean useAzCliAuth;
+        private Boolean asyncIngestion;
+        private Integer ingestionQueueCapacity;
+        private Integer ingestionWorkers;
+        private Boolean compressUploads;
+        private Long coalesceBytes;
+        private Integer coalesceMaxDelaySeconds;
+        private String ingestionMode;
+        private Boolean replayBackout;
+        private Integer replayIntervalSeconds;
+        private Long replayBytesPerSecond;
+        private Integer replayConcurrency;
+        private String replayDirectory;
+        private String ingestionListener;
+        private Integer maxConcurrentUploads;
+        private Integer circuitBreakerFailures;
+        private Integer circuitBreakerOpenSeconds;
+        private Integer shutdownTimeoutSeconds;
+        private String clientInitialization;
+        private Boolean statusTracking;
+        private Integer statusTrackingCapacity;
+        private Integer statusPollIntervalSeconds;
+        private String deduplicationIndex;
+        private Integer deduplicationIndexCapacity;
+        private Long spoolQuotaBytes;
+        private Integer spoolPriority;
+        private Boolean virtualThreads;
+        private String ingestClientSupplier;
+
+        private Builder() {
+        }
+
+        Builder setClusterIngestUrl(String clusterIngestUrl) {
+            this.clusterIngestUrl = clusterIngestUrl;
+            return this;
+        }
+
+        Builder setAppId(String appId) {
+            this.appId = appId;
+            return this;
+        }
+
+        Builder setAppKey(String appKey) {
+            this.appKey = appKey;
+            return this;
+        }
+
+        Builder setAppTenant(String appTenant) {
+            this.appTenant = appTenant;
+            return this;
+        }
+
+        Builder setDbName(String dbName) {
+            this.dbName = dbName;
+            return this;
+        }
+
+        Builder setTableName(String tableName) {
+            this.tableName = tableName;
+            return this;
+        }
+
+        Builder setLogTableMapping(String logTableMapping) {
+            this.logTableMapping = logTableMapping;
+            return this;
+        }
+
+        Builder setMappingType(String mappingType) {
+            this.mappingType = mappingType;
+            return this;
+        }
+
+        Builder setProxyUrl(String proxyUrl) {
+            this.proxyUrl = proxyUrl;
+            return this;
+        }
+
+        Builder setBackOffMinSeconds(Integer backOffMinSeconds) {
+            this.backOffMinSeconds = backOffMinSeconds;
+            return this;
+        }
+
+        Builder setBackOffMaxSeconds(Integer backOffMaxSeconds) {
+            this.backOffMaxSeconds = backOffMaxSeconds;
+            return this;
+        }
+
+        Builder setFlushImmediately(Boolean flushImmediately) {
+            this.flushImmediately = flushImmediately;
+            return this;
+        }
+
+        Builder setUseInteractiveAuth(Boolean useInteractiveAuth) {
+            this.useInteractiveAuth = useInteractiveAuth;
+            return this;
+        }
+
+        Builder setManagedIdentityId(String managedIdentityId) {
+            this.managedIdentityId = managedIdentityId;
+            return this;
+        }
+
+        Builder setUseAzCliAuth(Boolean useAzCliAuth) {
+            this.useAzCliAuth = useAzCliAuth;
+            return this;
+        }
+
+        Builder setAsyncIngestion(Boolean asyncIngestion) {
+            this.asyncIngestion = asyncIngestion;
+            return this;
+        }
+
+        Builder setIngestionQueueCapacity(Integer ingestionQueueCapacity) {
+            this.ingestionQueueCapacity = ingestionQueueCapacity;
+            return this;
+        }
+
+        Builder setIngestionWorkers(Integer ingestionWorkers) {
+            this.ingestionWorkers = ingestionWorkers;
+            return this;
+        }
+
+        Builder setCompressUploads(Boolean compressUploads) {
+            this.compressUploads = compressUploads;
+            return this;
+        }
+
+        Builder setCoalesceBytes(Long coalesceBytes) {
+            this.coalesceBytes = coalesceBytes;
+            return this;
+        }
+
+        Builder setCoalesceMaxDelaySeconds(Integer coalesceMaxDelaySeconds) {
+            this.coalesceMaxDelaySeconds = coalesceMaxDelaySeconds;
+            return this;
+        }
+
+        Builder setIngestionMode(String ingestionMode) {
+            this.ingestionMode = ingestionMode;
+            return this;
+        }
+
+        Builder setReplayBackout(Boolean replayBackout) {
+            this.replayBackout = replayBackout;
+            return this;
+        }
+
+        Builder setReplayIntervalSeconds(Integer replayIntervalSeconds) {
+            this.replayIntervalSeconds = replayIntervalSeconds;
+            return this;
+        }
+
+        Builder setReplayBytesPerSecond(Long replayBytesPerSecond) {
+            this.replayBytesPerSecond = replayBytesPerSecond;
+            return this;
+        }
+
+        Builder setReplayConcurrency(Integer replayConcurrency) {
+            this.replayConcurrency = replayConcurrency;
+            return this;
+        }
+
+        Builder setReplayDirectory(String replayDirectory) {
+            this.replayDirectory = replayDirectory;
+            return this;
+        }
+
+        Builder setIngestionListener(String ingestionListener) {
+            this.ingestionListener = ingestionListener;
+            return this;
+        }
+
+        Builder setMaxConcurrentUploads(Integer maxConcurrentUploads) {
+            this.maxConcurrentUploads = maxConcurrentUploads;
+            return this;
+        }
+
+        Builder setCircuitBreakerFailures(Integer circuitBreakerFailures) {
+            this.circuitBreakerFailures = circuitBreakerFailures;
+            return this;
+        }
+
+        Builder setCircuitBreakerOpenSeconds(Integer circuitBreakerOpenSeconds) {
+            this.circuitBreakerOpenSeconds = circuitBreakerOpenSeconds;
+            return this;
+        }
+
+        Builder setShutdownTimeoutSeconds(Integer shutdownTimeoutSeconds) {
+            this.shutdownTimeoutSeconds = shutdownTimeoutSeconds;
+            return this;
+        }
+
+        Builder setClientInitialization(String clientInitialization) {
+            this.clientInitialization = clientInitialization;
+            return this;
+        }
+
+        Builder setStatusTracking(Boolean statusTracking) {
+            this.statusTracking = statusTracking;
+            return this;
+        }
+
+        Builder setStatusTrackingCapacity(Integer statusTrackingCapacity) {
+            this.statusTrackingCapacity = statusTrackingCapacity;
+            return this;
+        }
+
+        Builder setStatusPollIntervalSeconds(Integer statusPollIntervalSeconds) {
+            this.statusPollIntervalSeconds = statusPollIntervalSeconds;
+            return this;
+        }
+
+        Builder setDeduplicationIndex(String deduplicationIndex) {
+            this.deduplicationIndex = deduplicationIndex;
+            return this;
+        }
+
+        Builder setDeduplicationIndexCapacity(Integer deduplicationIndexCapacity) {
+            this.deduplicationIndexCapacity = deduplicationIndexCapacity;
+            return this;
+        }
+
+        Builder setSpoolQuotaBytes(Long spoolQuotaBytes) {
+            this.spoolQuotaBytes = spoolQuotaBytes;
+            return this;
+        }
+
+        Builder setSpoolPriority(Integer spoolPriority) {
+            this.spoolPriority = spoolPriority;
+            return this;
+        }
+
+        Builder setVirtualThreads(Boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        Builder setIngestClientSupplier(String ingestClientSupplier) {
+            this.ingestClientSupplier = ingestClientSupplier;
+            return this;
+        }
 
-    KustoLog4jConfig(String clusterIngestUrl, String appId, String appKey, String appTenant, Boolean useInteractiveAuth, Boolean useAzCliAuth,
-            String managedIdentityId,
-            String dbName, String tableName, String logTableMapping, String mappingType, Boolean flushImmediately,
-            String proxyUrl, Integer backOffMinSeconds, Integer backOffMaxSeconds) {
-        this.clusterIngestUrl = clusterIngestUrl;
-        this.appId = appId;
-        this.appKey = appKey;
-        this.appTenant = appTenant;
-        this.dbName = dbName;
-        this.tableName = tableName;
-        this.logTableMapping = logTableMapping;
-        this.mappingType = mappingType;
-        this.flushImmediately = flushImmediately;
-        this.useAzCliAuth = useAzCliAuth;
-        this.proxyUrl = proxyUrl;
-        this.backOffMaxSeconds = backOffMaxSeconds;
-        this.backOffMinSeconds = backOffMinSeconds;
-        this.useInteractiveAuth = useInteractiveAuth;
-        this.managedIdentityId = managedIdentityId;
+        KustoLog4jConfig build() {
+            return new KustoLog4jConfig(this);
+        }
     }
 }
@@ -0,0 +1,304 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.time.Instant;
+import org.apache.logging.log4j.core.util.Constants;
+import org.apache.logging.log4j.core.util.JsonUtils;
+import org.apache.logging.log4j.core.util.StringBuilderWriter;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.apache.logging.log4j.util.StringBuilders;
+import org.apache.logging.log4j.util.TriConsumer;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The values of a log event that the Kusto layouts can write to a column. The names are those of the columns written by
+ * CsvLogEventLayout, so that existing tables and mappings keep working, plus timestamp for an ISO 8601 datetime. The
+ * values are appended to a StringBuilder without creating intermediate strings, the stack trace of a thrown exception
+ * being the exception.
+ */
+enum KustoLogEventField {
+
+    TIMENANOS(Kind.NUMBER) {
+        @Override
+        boolean formatTo(LogEvent event, StringBuilder text) {
+            text.append(event.getNanoTime());
+            return true;
+        }
+    },
+    TIMEMILLIS(Kind.NUMBER) {
+        @Override
+        boolean formatTo(LogEvent event, StringBuilder text) {
+            text.append(event.getTimeMillis());
+            return true;
+        }
+    },
+    TIMESTAMP(Kind.STRING) {
+        @Override
+        boolean formatTo(LogEvent event, StringBuilder text) {
+            Instant instant = event.getInstant();
+            appendTimestamp(instant.getEpochSecond(), instant.getNanoOfSecond(), text);
+            return true;
+        }
+    },
+    LEVEL(Kind.STRING) {
+        @Override
+        boolean formatTo(LogEvent event, StringBuilder text) {
+            text.append(event.getLevel().name());
+            return true;
+        }
+    },
+    THREADID(Kind.NUMBER) {
+        @Override
+        boolean formatTo(LogEvent event, StringBuilder text) {
+            text.append(event.getThreadId());
+            return true;
+        }
+    },
+    THREADNAME(Kind.STRING) {
+        @Override
+        boolean formatTo(LogEvent event, StringBuilder text) {
+            return appendNullable(event.getThreadName(), text);
+        }
+    },
+    THREADPRIORITY(Kind.NUMBER) {
+        @Override
+        boolean formatTo(LogEvent event, StringBuilder text) {
+            text.append(event.getThreadPriority());
+            return true;
+        }
+    },
+    FORMATTEDMESSAGE(Kind.STRING) {
+        @Override
+        boolean formatTo(LogEvent event, StringBuilder text) {
+            Message message = event.getMessage();
+            if (message == null) {
+                return false;
+            }
+            if (message instanceof StringBuilderFormattable) {
+                ((StringBuilderFormattable) message).formatTo(text);
+            } else {
+                text.append(message.getFormattedMessage());
+            }
+            return true;
+        }
+    },
+    LOGGERFQCN(Kind.STRING) {
+        @Override
+        boolean formatTo(LogEvent event, StringBuilder text) {
+            return appendNullable(event.getLoggerFqcn(), text);
+        }
+    },
+    LOGGERNAME(Kind.STRING) {
+        @Override
+        boolean formatTo(LogEvent event, StringBuilder text) {
+            return appendNullable(event.getLoggerName(), text);
+        }
+    },
+    MARKER(Kind.STRING) {
+        @Override
+        boolean formatTo(LogEvent event, StringBuilder text) {
+            return event.getMarker() != null && appendNullable(event.getMarker().getName(), text);
+        }
+    },
+    THROWNPROXY(Kind.STRING) {
+        @Override
+        boolean formatTo(LogEvent event, StringBuilder text) {
+            Throwable thrown = event.getThrown();
+            if (thrown == null) {
+                return false;
+            }
+            thrown.printStackTrace(new PrintWriter(new StringBuilderWriter(text)));
+            return true;
+        }
+    },
+    SOURCE(Kind.STRING) {
+        @Override
+        boolean formatTo(LogEvent event, StringBuilder text) {
+            StackTraceElement source = event.getSource();
+            if (source == null) {
+                return false;
+            }
+            text.append(source.getClassName()).append('.').append(source.getMethodName()).append('(');
+            if (source.getFileName() != null) {
+                text.append(source.getFileName()).append(':').append(source.getLineNumber());
+            } else {
+                text.append("Unknown Source");
+            }
+            text.append(')');
+            return true;
+        }
+    },
+    CONTEXTMAP(Kind.JSON) {
+        @Override
+        boolean formatTo(LogEvent event, StringBuilder text) {
+            text.append('{');
+            int start = text.length();
+            event.getContextData().forEach(CONTEXT_ENTRY_WRITER, text);
+            if (text.length() > start) {
+                // drop the separator written after the last entry
+                text.setLength(text.length() - 1);
+            }
+            text.append('}');
+            return true;
+        }
+    },
+    CONTEXTSTACK(Kind.JSON) {
+        @Override
+        boolean formatTo(LogEvent event, StringBuilder text) {
+            ThreadContext.ContextStack contextStack = event.getContextStack();
+            text.append('[');
+            if (contextStack != null && contextStack.getDepth() > 0) {
+                boolean first = true;
+                for (String item : contextStack.asList()) {
+                    if (!first) {
+                        text.append(',');
+                    }
+                    first = false;
+                    appendJsonString(item, text);
+                }
+            }
+            text.append(']');
+            return true;
+        }
+    };
+
+    /**
+     * How a value is written: numbers and JSON are written as they are in JSON, strings are quoted.
+     */
+    enum Kind {
+        NUMBER,
+        STRING,
+        JSON
+    }
+
+    private static final TriConsumer<String, Object, StringBuilder> CONTEXT_ENTRY_WRITER = (key, value, text) -> {
+        appendJsonString(key, text);
+        text.append(':');
+        if (value == null) {
+            text.append("null");
+        } else {
+            appendJsonString(value instanceof CharSequence ? (CharSequence) value : String.valueOf(value), text);
+        }
+        text.append(',');
+    };
+    private static final ThreadLocal<StringBuilder> FIELD_BUFFER = new ThreadLocal<>();
+    private static final int DEFAULT_FIELD_BUFFER_SIZE = 1024;
+    private static final int MAX_FIELD_BUFFER_SIZE = 64 * 1024;
+    private static final int NANOS_PER_TICK = 100;
+
+    private final Kind kind;
+
+    KustoLogEventField(Kind kind) {
+        this.kind = kind;
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Appends the value of the field for the event.
+     *
+     * @param event The event to read the value from
+     * @param text  The buffer to append the value to, it is not escaped
+     * @return false if the event has no value for the field (nothing is appended then)
+     */
+    abstract boolean formatTo(LogEvent event, StringBuilder text);
+
+    /**
+     * @param name The name of a field, case insensitive
+     * @return The field
+     * @throws IllegalArgumentException When there is no such field
+     */
+    static KustoLogEventField forName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("Unknown log event field %s, expected one of %s", name,
+                    Arrays.toString(values()).toLowerCase(Locale.ROOT)), e);
+        }
+    }
+
+    /**
+     * A buffer per thread in which a value is formatted before it is escaped into the layout's buffer. As with the
+     * buffers of the layouts, no thread local is kept in web applications.
+     */
+    static StringBuilder getFieldBuffer() {
+        if (!Constants.ENABLE_THREADLOCALS) {
+            return new StringBuilder(DEFAULT_FIELD_BUFFER_SIZE);
+        }
+        StringBuilder fieldBuffer = FIELD_BUFFER.get();
+        if (fieldBuffer == null) {
+            fieldBuffer = new StringBuilder(DEFAULT_FIELD_BUFFER_SIZE);
+            FIELD_BUFFER.set(fieldBuffer);
+        }
+        fieldBuffer.setLength(0);
+        return fieldBuffer;
+    }
+
+    static void releaseFieldBuffer(StringBuilder fieldBuffer) {
+        // a huge message or stack trace does not keep its buffer for the life of the thread
+        StringBuilders.trimToMaxSize(fieldBuffer, MAX_FIELD_BUFFER_SIZE);
+    }
+
+    static void appendJsonString(CharSequence value, StringBuilder text) {
+        text.append('"');
+        JsonUtils.quoteAsString(value, text);
+        text.append('"');
+    }
+
+    private static boolean appendNullable(String value, StringBuilder text) {
+        if (value == null) {
+            return false;
+        }
+        text.append(value);
+        return true;
+    }
+
+    /*
+     * yyyy-MM-ddTHH:mm:ss.fffffffZ in UTC, with the 100 ns precision of a Kusto datetime.
+     */
+    static void appendTimestamp(long epochSecond, int nanoOfSecond, StringBuilder text) {
+        long epochDay = Math.floorDiv(epochSecond, 86400L);
+        int secondOfDay = (int) Math.floorMod(epochSecond, 86400L);
+        // civil from days (Howard Hinnant), for the proleptic Gregorian calendar
+        long shiftedDay = epochDay + 719468;
+        long era = Math.floorDiv(shiftedDay, 146097);
+        long dayOfEra = shiftedDay - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        text.append(year).append('-');
+        appendPadded(month, 2, text);
+        text.append('-');
+        appendPadded(day, 2, text);
+        text.append('T');
+        appendPadded(secondOfDay / 3600, 2, text);
+        text.append(':');
+        appendPadded(secondOfDay / 60 % 60, 2, text);
+        text.append(':');
+        appendPadded(secondOfDay % 60, 2, text);
+        text.append('.');
+        appendPadded(nanoOfSecond / NANOS_PER_TICK, 7, text);
+        text.append('Z');
+    }
+
+    private static void appendPadded(int value, int digits, StringBuilder text) {
+        for (int limit = 10; digits > 1; digits--, limit *= 10) {
+            if (value < limit) {
+                text.append('0');
+            }
+        }
+        text.append(value);
+    }
+}
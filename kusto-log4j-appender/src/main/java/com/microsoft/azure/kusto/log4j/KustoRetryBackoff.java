@@ -0,0 +1,181 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import com.azure.core.exception.HttpResponseException;
+import com.azure.core.http.HttpResponse;
+import com.microsoft.azure.kusto.ingest.result.IngestionResult;
+
+import io.github.resilience4j.core.IntervalBiFunction;
+import io.vavr.control.Either;
+import java.io.FileNotFoundException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.file.FileSystemException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/**
+ * The wait before an ingestion attempt is retried, chosen from the failure of the previous attempt:
+ * <ul>
+ * <li>throttled (HTTP 429 or 503, or a throttling error of the service): the retry-after hint of the response, or the
+ * longest backoff when there is none</li>
+ * <li>connection error (refused, unreachable host, timeout): a quarter of the backoff, such blips are short</li>
+ * <li>anything else: the exponential backoff between the min and max backoff</li>
+ * </ul>
+ * Local file errors (a missing or unreadable file) are told apart as well, they say nothing about the service and are
+ * not counted by the circuit breaker. They wait the exponential backoff.
+ * The waits are randomized so that the JVMs of a fleet that failed together do not retry together. A retry-after hint
+ * is only ever lengthened, never shortened. A wait is at least a millisecond, since the asynchronous retries of
+ * resilience4j give up on a wait of 0 instead of retrying at once.
+ */
+final class KustoRetryBackoff implements IntervalBiFunction<IngestionResult> {
+
+    enum FailureKind {
+        THROTTLED,
+        CONNECTION,
+        LOCAL,
+        OTHER
+    }
+
+    static final double MULTIPLIER = 1.5;
+    static final double RANDOMIZATION_FACTOR = 0.5;
+    static final int CONNECTION_BACKOFF_DIVISOR = 4;
+    static final long MIN_WAIT_MILLIS = 1;
+    // in milliseconds first, then the standard header in seconds or as an HTTP date
+    private static final String[] RETRY_AFTER_MILLIS_HEADERS = {"retry-after-ms", "x-ms-retry-after-ms"};
+    private static final String RETRY_AFTER_HEADER = "Retry-After";
+    // the causes are walked up to this depth, which also stops on a cycle
+    private static final int MAX_CAUSE_DEPTH = 16;
+
+    private final long minBackoffMillis;
+    private final long maxBackoffMillis;
+    private final DoubleSupplier random;
+
+    KustoRetryBackoff(long minBackoffMillis, long maxBackoffMillis) {
+        this(minBackoffMillis, maxBackoffMillis, () -> ThreadLocalRandom.current().nextDouble());
+    }
+
+    KustoRetryBackoff(long minBackoffMillis, long maxBackoffMillis, DoubleSupplier random) {
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = Math.max(minBackoffMillis, maxBackoffMillis);
+        this.random = random;
+    }
+
+    /**
+     * @param attempt The number of the attempt that failed, from 1
+     * @param outcome The failure of the attempt (or its result when a result is retried)
+     * @return The wait in milliseconds, at least MIN_WAIT_MILLIS
+     */
+    @Override
+    public Long apply(Integer attempt, Either<Throwable, IngestionResult> outcome) {
+        return Math.max(MIN_WAIT_MILLIS, getWaitMillis(attempt, outcome));
+    }
+
+    private long getWaitMillis(Integer attempt, Either<Throwable, IngestionResult> outcome) {
+        Throwable failure = outcome != null && outcome.isLeft() ? outcome.getLeft() : null;
+        long backoff = (long) Math.min(maxBackoffMillis, minBackoffMillis * Math.pow(MULTIPLIER, Math.max(0, attempt - 1)));
+        switch (classify(failure)) {
+            case THROTTLED:
+                long retryAfter = getRetryAfterMillis(failure);
+                long wait = retryAfter >= 0 ? retryAfter : maxBackoffMillis;
+                return wait + (long) (wait * RANDOMIZATION_FACTOR * random.getAsDouble());
+            case CONNECTION:
+                return randomize(backoff / CONNECTION_BACKOFF_DIVISOR);
+            default:
+                return randomize(backoff);
+        }
+    }
+
+    private long randomize(long wait) {
+        // uniform within +/- RANDOMIZATION_FACTOR of the wait
+        return Math.max(0, (long) (wait * (1 + RANDOMIZATION_FACTOR * (2 * random.getAsDouble() - 1))));
+    }
+
+    static FailureKind classify(Throwable failure) {
+        boolean connection = false;
+        boolean local = false;
+        Throwable cause = failure;
+        for (int depth = 0; cause != null && depth < MAX_CAUSE_DEPTH; depth++, cause = cause.getCause()) {
+            if (isThrottle(cause)) {
+                return FailureKind.THROTTLED;
+            }
+            // refused, reset, unreachable (SocketException), unknown host or timed out
+            connection |= cause instanceof SocketException || cause instanceof UnknownHostException
+                    || cause instanceof SocketTimeoutException;
+            // no such file, access denied and the other errors of the file system
+            local |= cause instanceof FileSystemException || cause instanceof FileNotFoundException;
+        }
+        if (connection) {
+            return FailureKind.CONNECTION;
+        }
+        return local ? FailureKind.LOCAL : FailureKind.OTHER;
+    }
+
+    private static boolean isThrottle(Throwable cause) {
+        if (cause instanceof HttpResponseException) {
+            HttpResponse response = ((HttpResponseException) cause).getResponse();
+            if (response != null && (response.getStatusCode() == 429 || response.getStatusCode() == 503)) {
+                return true;
+            }
+        }
+        // the Kusto exceptions only carry the error of the service in their message
+        String message = cause.getMessage();
+        if (message == null) {
+            return false;
+        }
+        String lowerCaseMessage = message.toLowerCase(Locale.ROOT);
+        return lowerCaseMessage.contains("throttl") || lowerCaseMessage.contains("too many requests")
+                || lowerCaseMessage.contains("toomanyrequests");
+    }
+
+    /*
+     * The first retry-after header found along the causes, -1 if there is none.
+     */
+    static long getRetryAfterMillis(Throwable failure) {
+        Throwable cause = failure;
+        for (int depth = 0; cause != null && depth < MAX_CAUSE_DEPTH; depth++, cause = cause.getCause()) {
+            if (cause instanceof HttpResponseException && ((HttpResponseException) cause).getResponse() != null) {
+                long retryAfter = parseRetryAfter(((HttpResponseException) cause).getResponse());
+                if (retryAfter >= 0) {
+                    return retryAfter;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static long parseRetryAfter(HttpResponse response) {
+        for (String header : RETRY_AFTER_MILLIS_HEADERS) {
+            String value = response.getHeaderValue(header);
+            if (value != null) {
+                try {
+                    return Math.max(0, Long.parseLong(value.trim()));
+                } catch (NumberFormatException ignored) {
+                    // try the next header
+                }
+            }
+        }
+        String value = response.getHeaderValue(RETRY_AFTER_HEADER);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value.trim())));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime retryAt = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(ZonedDateTime.now(retryAt.getZone()), retryAt).toMillis());
+            } catch (DateTimeParseException ignored) {
+                return -1;
+            }
+        }
+    }
+}
@@ -11,9 +11,16 @@ class KustoRolloverDescription implements RolloverDescription {
 
     private final String fileName;
 
+    private final KustoClientInstance kustoClientInstance;
+
     KustoRolloverDescription(final RolloverDescription delegate, String fileName) {
+        this(delegate, fileName, null);
+    }
+
+    KustoRolloverDescription(final RolloverDescription delegate, String fileName, KustoClientInstance kustoClientInstance) {
         this.delegate = delegate;
         this.fileName = fileName;
+        this.kustoClientInstance = kustoClientInstance;
     }
 
     @Override
@@ -33,7 +40,7 @@ class KustoRolloverDescription implements RolloverDescription {
         if (delegateAction == null) {
             return null;
         }
-        return new KustoFlushAction(delegateAction, this.fileName);
+        return new KustoFlushAction(delegateAction, this.fileName, this.kustoClientInstance);
     }
 
     // The asynchronous action is for compressing, we don't need to hook here
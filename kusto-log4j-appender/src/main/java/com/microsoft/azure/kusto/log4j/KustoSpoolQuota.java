@@ -0,0 +1,282 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps the size of the backout and spool directories of all the destinations under a byte quota, since they share the
+ * disk of the node. The files are counted in memory as they are backed out, spooled, replayed and deleted; a directory
+ * is only listed when it is first watched, to count the files left by a previous run. When a file takes the usage over
+ * the quota, files are deleted (evicted) until it is under again: the files of the destination with the lowest
+ * spoolPriority first and, within a priority, the oldest first. With the default priority of every destination this is
+ * oldest first. The files being ingested (a replay of a backed out or spooled file) are pinned and never evicted, so
+ * the usage can stay over the quota until they are done. The quota is the smallest one configured, a destination
+ * without quota only counts its files.
+ */
+final class KustoSpoolQuota {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    private static final Comparator<SpooledFile> EVICTION_ORDER = Comparator.<SpooledFile> comparingInt(file -> file.owner.priority)
+            .thenComparingLong(file -> file.modifiedMillis)
+            .thenComparingLong(file -> file.sequence);
+
+    /**
+     * The quota shared by the destinations of the JVM.
+     */
+    static final KustoSpoolQuota SHARED = new KustoSpoolQuota();
+
+    // guarded by this
+    private final Set<Owner> owners = new HashSet<>();
+    private final Map<Path, SpooledFile> files = new HashMap<>();
+    private final TreeSet<SpooledFile> evictionOrder = new TreeSet<>(EVICTION_ORDER);
+    // the files being ingested, with the number of ingestions of each
+    private final Map<Path, Integer> pinnedFiles = new HashMap<>();
+    private long usedBytes;
+    private long quotaBytes;
+    // orders the files added within the same millisecond
+    private long sequence;
+
+    /**
+     * @param quotaBytes The quota of the destination, 0 for none
+     * @param priority   The priority of the files of the destination, the lowest are evicted first
+     * @param metrics    The metrics the usage and the evictions of the destination are reported to
+     * @return The owner that the destination adds and removes its files with
+     */
+    synchronized Owner register(long quotaBytes, int priority, KustoIngestionMetrics metrics) {
+        Owner owner = new Owner(quotaBytes, priority, metrics);
+        owners.add(owner);
+        updateQuota();
+        return owner;
+    }
+
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    synchronized long getQuotaBytes() {
+        return quotaBytes;
+    }
+
+    private void updateQuota() {
+        long smallest = 0;
+        for (Owner owner : owners) {
+            if (owner.quotaBytes > 0 && (smallest == 0 || owner.quotaBytes < smallest)) {
+                smallest = owner.quotaBytes;
+            }
+        }
+        quotaBytes = smallest;
+    }
+
+    private void add(Owner owner, Path file, long modifiedMillis) {
+        Path path = file.toAbsolutePath().normalize();
+        long size = sizeOf(path);
+        List<SpooledFile> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (!owners.contains(owner)) {
+                return;
+            }
+            remove(path);
+            SpooledFile spooledFile = new SpooledFile(owner, path, size, modifiedMillis, sequence++);
+            files.put(path, spooledFile);
+            evictionOrder.add(spooledFile);
+            usedBytes += size;
+            owner.usedBytes += size;
+            Iterator<SpooledFile> candidates = evictionOrder.iterator();
+            while (quotaBytes > 0 && usedBytes > quotaBytes && candidates.hasNext()) {
+                SpooledFile victim = candidates.next();
+                if (pinnedFiles.containsKey(victim.path)) {
+                    continue;
+                }
+                candidates.remove();
+                files.remove(victim.path);
+                uncount(victim);
+                evicted.add(victim);
+            }
+        }
+        // the files are deleted and the metrics updated outside of the lock
+        owner.metrics.onSpoolUsageChanged(owner.getUsedBytes());
+        for (SpooledFile victim : evicted) {
+            evict(victim);
+        }
+    }
+
+    private SpooledFile remove(Path path) {
+        SpooledFile spooledFile = files.remove(path);
+        if (spooledFile != null) {
+            evictionOrder.remove(spooledFile);
+            uncount(spooledFile);
+        }
+        return spooledFile;
+    }
+
+    private void uncount(SpooledFile spooledFile) {
+        usedBytes -= spooledFile.size;
+        spooledFile.owner.usedBytes -= spooledFile.size;
+    }
+
+    private void evict(SpooledFile victim) {
+        try {
+            Files.deleteIfExists(victim.path);
+            LOGGER.warn("Spool quota of {} bytes exceeded, deleted {} ({} bytes)", getQuotaBytes(), victim.path, victim.size);
+        } catch (IOException e) {
+            LOGGER.error("Spool quota of {} bytes exceeded, could not delete {}", getQuotaBytes(), victim.path, e);
+        }
+        victim.owner.metrics.onEvicted(victim.path.toString(), victim.size);
+        victim.owner.metrics.onSpoolUsageChanged(victim.owner.getUsedBytes());
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The files of one destination.
+     */
+    final class Owner {
+        private final long quotaBytes;
+        private final int priority;
+        private final KustoIngestionMetrics metrics;
+        // guarded by the quota
+        private final Set<Path> directories = new HashSet<>();
+        private long usedBytes;
+
+        private Owner(long quotaBytes, int priority, KustoIngestionMetrics metrics) {
+            this.quotaBytes = quotaBytes;
+            this.priority = priority;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Counts a file that was just backed out or spooled, and evicts files if the quota is exceeded.
+         *
+         * @param file The file
+         */
+        void add(Path file) {
+            KustoSpoolQuota.this.add(this, file, System.currentTimeMillis());
+        }
+
+        /**
+         * Stops counting a file that was ingested (and is deleted) or moved away.
+         *
+         * @param file The file
+         */
+        void remove(Path file) {
+            synchronized (KustoSpoolQuota.this) {
+                KustoSpoolQuota.this.remove(file.toAbsolutePath().normalize());
+            }
+            metrics.onSpoolUsageChanged(getUsedBytes());
+        }
+
+        /**
+         * Keeps a file from being evicted while it is being ingested. Each pin is paired with an {@link #unpin(Path)}.
+         *
+         * @param file The file, counted or not
+         */
+        void pin(Path file) {
+            synchronized (KustoSpoolQuota.this) {
+                pinnedFiles.merge(file.toAbsolutePath().normalize(), 1, Integer::sum);
+            }
+        }
+
+        /**
+         * @param file A file whose ingestion completed, which may be evicted again unless another ingestion pinned it
+         */
+        void unpin(Path file) {
+            synchronized (KustoSpoolQuota.this) {
+                pinnedFiles.computeIfPresent(file.toAbsolutePath().normalize(), (path, pins) -> pins == 1 ? null : pins - 1);
+            }
+        }
+
+        /**
+         * Counts the files already in a directory, the first time the directory is watched. The subdirectories are not
+         * listed, they are watched on their own.
+         *
+         * @param directory A backout or spool directory
+         */
+        void watch(Path directory) {
+            Path normalized = directory.toAbsolutePath().normalize();
+            synchronized (KustoSpoolQuota.this) {
+                if (!directories.add(normalized)) {
+                    return;
+                }
+            }
+            if (Files.notExists(normalized)) {
+                return;
+            }
+            try (DirectoryStream<Path> spooledFiles = Files.newDirectoryStream(normalized, Files::isRegularFile)) {
+                for (Path spooledFile : spooledFiles) {
+                    synchronized (KustoSpoolQuota.this) {
+                        if (files.containsKey(spooledFile)) {
+                            continue;
+                        }
+                    }
+                    KustoSpoolQuota.this.add(this, spooledFile, Files.getLastModifiedTime(spooledFile).toMillis());
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Could not count the files of {} towards the spool quota", normalized, e);
+            }
+        }
+
+        long getUsedBytes() {
+            synchronized (KustoSpoolQuota.this) {
+                return usedBytes;
+            }
+        }
+
+        /**
+         * Forgets the files of the destination, which stay on disk and are counted again by the next run.
+         */
+        void close() {
+            synchronized (KustoSpoolQuota.this) {
+                owners.remove(this);
+                Iterator<SpooledFile> iterator = files.values().iterator();
+                while (iterator.hasNext()) {
+                    SpooledFile spooledFile = iterator.next();
+                    if (spooledFile.owner == this) {
+                        iterator.remove();
+                        evictionOrder.remove(spooledFile);
+                        KustoSpoolQuota.this.usedBytes -= spooledFile.size;
+                    }
+                }
+                usedBytes = 0;
+                updateQuota();
+            }
+        }
+    }
+
+    private static final class SpooledFile {
+        private final Owner owner;
+        private final Path path;
+        private final long size;
+        private final long modifiedMillis;
+        private final long sequence;
+
+        private SpooledFile(Owner owner, Path path, long size, long modifiedMillis, long sequence) {
+            this.owner = owner;
+            this.path = path;
+            this.size = size;
+            this.modifiedMillis = modifiedMillis;
+            this.sequence = sequence;
+        }
+    }
+}
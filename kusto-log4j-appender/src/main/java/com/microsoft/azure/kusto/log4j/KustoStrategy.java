@@ -3,7 +3,9 @@
 package com.microsoft.azure.kusto.log4j;
 
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
 import org.apache.logging.log4j.core.appender.rolling.DefaultRolloverStrategy;
+import org.apache.logging.log4j.core.appender.rolling.FileSize;
 import org.apache.logging.log4j.core.appender.rolling.RollingFileManager;
 import org.apache.logging.log4j.core.appender.rolling.RolloverDescription;
 import org.apache.logging.log4j.core.appender.rolling.action.FileRenameAction;
@@ -13,11 +15,20 @@ import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginConfiguration;
 import org.apache.logging.log4j.core.config.plugins.PluginFactory;
 import org.apache.logging.log4j.core.lookup.StrSubstitutor;
+import org.apache.logging.log4j.spi.LoggerContextShutdownAware;
 import org.apache.logging.log4j.status.StatusLogger;
 
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.Deflater;
 
 /*
@@ -36,6 +47,27 @@ public class KustoStrategy extends DefaultRolloverStrategy {
     private static final Boolean DEFAULT_FLUSH_IMMEDIATELY = false;
     private static final Boolean DEFAULT_INTERACTIVE_AUTH = false;
     private static final int DEFAULT_BACKOFF_MAX_TIME_MINUTES = 60;
+    private static final Boolean DEFAULT_ASYNC_INGESTION = false;
+    private static final int DEFAULT_INGESTION_QUEUE_CAPACITY = 64;
+    private static final int DEFAULT_INGESTION_WORKERS = 2;
+    private static final Boolean DEFAULT_COMPRESS_UPLOADS = false;
+    private static final long DEFAULT_COALESCE_SIZE = 0;
+    private static final int DEFAULT_COALESCE_MAX_DELAY_SECONDS = 60;
+    private static final Boolean DEFAULT_REPLAY_BACKOUT = false;
+    private static final int DEFAULT_REPLAY_INTERVAL_SECONDS = 5 * 60;
+    private static final long DEFAULT_REPLAY_BYTES_PER_SECOND = 1024 * 1024;
+    private static final int DEFAULT_REPLAY_CONCURRENCY = 1;
+    private static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 0;
+    private static final int DEFAULT_CIRCUIT_BREAKER_FAILURES = 5;
+    private static final int DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS = 60;
+    private static final int DEFAULT_SHUTDOWN_TIMEOUT_SECONDS = 30;
+    private static final Boolean DEFAULT_STATUS_TRACKING = false;
+    private static final int DEFAULT_STATUS_TRACKING_CAPACITY = 1000;
+    private static final int DEFAULT_STATUS_POLL_INTERVAL_SECONDS = 30;
+    private static final int DEFAULT_DEDUPLICATION_INDEX_CAPACITY = 10000;
+    private static final long DEFAULT_SPOOL_QUOTA = 0;
+    private static final int DEFAULT_SPOOL_PRIORITY = 0;
+    private static final Boolean DEFAULT_VIRTUAL_THREADS = false;
 
     /* Constants in use */
     private static final String LOG4J2_ADX_APP_ID = "LOG4J2_ADX_APP_ID";
@@ -43,12 +75,15 @@ public class KustoStrategy extends DefaultRolloverStrategy {
     private static final String LOG4J2_ADX_TENANT_ID = "LOG4J2_ADX_TENANT_ID";
     private static final String LOG4J2_ADX_INGEST_CLUSTER_URL = "LOG4J2_ADX_INGEST_CLUSTER_URL";
 
+    private final KustoClientInstance kustoClientInstance;
+    private final AtomicBoolean released = new AtomicBoolean();
+
     protected KustoStrategy(int minIndex, int maxIndex, boolean useMax, int compressionLevel, StrSubstitutor subst,
             KustoLog4jConfig kustoLog4jConfig) {
         super(minIndex, maxIndex, useMax, compressionLevel, subst, null, true, "");
         try {
-            KustoClientInstance initializedInstance = KustoClientInstance.getInstance(kustoLog4jConfig);
-            Objects.requireNonNull(initializedInstance, "Kusto initialized instance cannot be null");
+            kustoClientInstance = KustoClientInstance.getInstance(kustoLog4jConfig);
+            Objects.requireNonNull(kustoClientInstance, "Kusto initialized instance cannot be null");
         } catch (URISyntaxException e) {
             LOGGER.error("Could not initialize ingest client", e);
             throw new RuntimeException(e);
@@ -67,8 +102,36 @@ public class KustoStrategy extends DefaultRolloverStrategy {
      * @param mappingType       JSON or CSV mapping type
      * @param flushImmediately  If the ingestion flush happens immediately
      * @param proxyUrl          If the application is behind a proxy, the proxy URL
-     * @param backOffMinSeconds The lower bound minutes to wait before retry of ingestion
-     * @param backOffMaxSeconds The upper bound minutes to wait for retry before giving up
+     * @param backOffMinSeconds The lower bound seconds to wait before retry of ingestion
+     * @param backOffMaxSeconds The upper bound seconds to wait for retry before giving up
+     * @param asyncIngestion    If rolled files are handed to background workers instead of ingested on the rollover thread
+     * @param ingestionQueueCapacity The number of rolled files that can wait for a worker in async mode
+     * @param ingestionWorkers  The number of threads uploading rolled files in async mode
+     * @param compressUploads   If rolled files are gzip compressed while they are uploaded
+     * @param coalesceSize      The size (e.g 64 MB) up to which rolled files are gathered and ingested as one blob
+     * @param coalesceMaxDelaySeconds The maximum time a rolled file waits for others to be ingested with
+     * @param ingestionMode     queued (default), streaming or managedStreaming
+     * @param replayBackout     If files in the backout directory are ingested again in the background
+     * @param replayIntervalSeconds The interval at which the backout directories are scanned
+     * @param replayBytesPerSecond  The size (e.g 1 MB) of backed out files replayed per second
+     * @param replayConcurrency The number of backed out files replayed at the same time
+     * @param replayDirectory   A backout directory to replay from startup, others are picked up on rollover
+     * @param ingestionListener The class name of a KustoIngestionListener that receives the ingestion events
+     * @param maxConcurrentUploads The maximum number of uploads in flight for the destination table, 0 for no cap
+     * @param circuitBreakerFailures The number of consecutive transient failures that stop the uploads, 0 to never stop
+     * @param circuitBreakerOpenSeconds How long the uploads are stopped before one is tried again
+     * @param shutdownTimeoutSeconds How long the pending uploads are waited for on shutdown before they are backed out
+     * @param clientInitialization background (default), lazy or eager creation of the ingest client
+     * @param statusTracking    If the status of the queued ingestions is followed until they are ingested
+     * @param statusTrackingCapacity The number of ingestions whose status is followed at most
+     * @param statusPollIntervalSeconds The interval at which the status of the tracked ingestions is polled
+     * @param deduplicationIndex The file that keeps the keys of the ingested files, to skip files ingested already
+     * @param deduplicationIndexCapacity The number of file keys kept in the index
+     * @param spoolQuota The size (e.g 10 GB) the backout and spool directories of all destinations are kept under
+     * @param spoolPriority The priority of the backed out and spooled files of this destination, the lowest are evicted
+     *            first when the spool quota is exceeded
+     * @param virtualThreads If the async uploads run on virtual threads on Java 21 and later
+     * @param ingestClientSupplier The class name of a KustoIngestClientSupplier that creates the ingest clients
      * @param config            The config and policy used for the logging
      * @return KustoStrategy that ingests the rolling files created
      */
@@ -88,6 +151,33 @@ public class KustoStrategy extends DefaultRolloverStrategy {
             @PluginAttribute("proxyUrl") final String proxyUrl,
             @PluginAttribute("backOffMinSeconds") String backOffMinSeconds,
             @PluginAttribute("backOffMaxSeconds") String backOffMaxSeconds,
+            @PluginAttribute("asyncIngestion") final String asyncIngestion,
+            @PluginAttribute("ingestionQueueCapacity") final String ingestionQueueCapacity,
+            @PluginAttribute("ingestionWorkers") final String ingestionWorkers,
+            @PluginAttribute("compressUploads") final String compressUploads,
+            @PluginAttribute("coalesceSize") final String coalesceSize,
+            @PluginAttribute("coalesceMaxDelaySeconds") final String coalesceMaxDelaySeconds,
+            @PluginAttribute("ingestionMode") final String ingestionMode,
+            @PluginAttribute("replayBackout") final String replayBackout,
+            @PluginAttribute("replayIntervalSeconds") final String replayIntervalSeconds,
+            @PluginAttribute("replayBytesPerSecond") final String replayBytesPerSecond,
+            @PluginAttribute("replayConcurrency") final String replayConcurrency,
+            @PluginAttribute("replayDirectory") final String replayDirectory,
+            @PluginAttribute("ingestionListener") final String ingestionListener,
+            @PluginAttribute("maxConcurrentUploads") final String maxConcurrentUploads,
+            @PluginAttribute("circuitBreakerFailures") final String circuitBreakerFailures,
+            @PluginAttribute("circuitBreakerOpenSeconds") final String circuitBreakerOpenSeconds,
+            @PluginAttribute("shutdownTimeoutSeconds") final String shutdownTimeoutSeconds,
+            @PluginAttribute("clientInitialization") final String clientInitialization,
+            @PluginAttribute("statusTracking") final String statusTracking,
+            @PluginAttribute("statusTrackingCapacity") final String statusTrackingCapacity,
+            @PluginAttribute("statusPollIntervalSeconds") final String statusPollIntervalSeconds,
+            @PluginAttribute("deduplicationIndex") final String deduplicationIndex,
+            @PluginAttribute("deduplicationIndexCapacity") final String deduplicationIndexCapacity,
+            @PluginAttribute("spoolQuota") final String spoolQuota,
+            @PluginAttribute("spoolPriority") final String spoolPriority,
+            @PluginAttribute("virtualThreads") final String virtualThreads,
+            @PluginAttribute("ingestClientSupplier") final String ingestClientSupplier,
             @PluginConfiguration final Configuration config) {
         Integer backOffMax = backOffMaxSeconds != null && !backOffMaxSeconds.trim().isEmpty() ? Integer.parseInt(backOffMaxSeconds)
                 : DEFAULT_BACKOFF_MAX_TIME_MINUTES;
@@ -103,31 +193,120 @@ public class KustoStrategy extends DefaultRolloverStrategy {
         boolean useAzCliAuthVal = useAzCliAuth != null && !Objects.requireNonNull(useAzCliAuth).trim().isEmpty()
                 ? Boolean.valueOf(useAzCliAuth)
                 : DEFAULT_INTERACTIVE_AUTH;
+        boolean asyncIngestionVal = parseBoolean(asyncIngestion, DEFAULT_ASYNC_INGESTION);
+        int ingestionQueueCapacityVal = parseInt(ingestionQueueCapacity, DEFAULT_INGESTION_QUEUE_CAPACITY);
+        int ingestionWorkersVal = parseInt(ingestionWorkers, DEFAULT_INGESTION_WORKERS);
+        boolean compressUploadsVal = parseBoolean(compressUploads, DEFAULT_COMPRESS_UPLOADS);
+        long coalesceBytes = parseSize(coalesceSize, DEFAULT_COALESCE_SIZE);
+        int coalesceMaxDelay = parseInt(coalesceMaxDelaySeconds, DEFAULT_COALESCE_MAX_DELAY_SECONDS);
+        boolean replayBackoutVal = parseBoolean(replayBackout, DEFAULT_REPLAY_BACKOUT);
+        int replayInterval = parseInt(replayIntervalSeconds, DEFAULT_REPLAY_INTERVAL_SECONDS);
+        long replayBytes = parseSize(replayBytesPerSecond, DEFAULT_REPLAY_BYTES_PER_SECOND);
+        int replayConcurrencyVal = parseInt(replayConcurrency, DEFAULT_REPLAY_CONCURRENCY);
+        int maxConcurrentUploadsVal = parseInt(maxConcurrentUploads, DEFAULT_MAX_CONCURRENT_UPLOADS);
+        int circuitBreakerFailuresVal = parseInt(circuitBreakerFailures, DEFAULT_CIRCUIT_BREAKER_FAILURES);
+        int circuitBreakerOpen = parseInt(circuitBreakerOpenSeconds, DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS);
+        int shutdownTimeout = parseInt(shutdownTimeoutSeconds, DEFAULT_SHUTDOWN_TIMEOUT_SECONDS);
+        boolean statusTrackingVal = parseBoolean(statusTracking, DEFAULT_STATUS_TRACKING);
+        int statusTrackingCapacityVal = parseInt(statusTrackingCapacity, DEFAULT_STATUS_TRACKING_CAPACITY);
+        int statusPollInterval = parseInt(statusPollIntervalSeconds, DEFAULT_STATUS_POLL_INTERVAL_SECONDS);
+        int deduplicationIndexCapacityVal = parseInt(deduplicationIndexCapacity, DEFAULT_DEDUPLICATION_INDEX_CAPACITY);
+        long spoolQuotaBytes = parseSize(spoolQuota, DEFAULT_SPOOL_QUOTA);
+        int spoolPriorityVal = parseInt(spoolPriority, DEFAULT_SPOOL_PRIORITY);
+        boolean virtualThreadsVal = parseBoolean(virtualThreads, DEFAULT_VIRTUAL_THREADS);
+
+        KustoLog4jConfig kustoLog4jConfig = KustoLog4jConfig.newBuilder()
+                .setClusterIngestUrl(getOrEnvVar(clusterIngestUrl, LOG4J2_ADX_INGEST_CLUSTER_URL))
+                .setAppId(getOrEnvVar(appId, LOG4J2_ADX_APP_ID))
+                .setAppKey(getOrEnvVar(appKey, LOG4J2_ADX_APP_KEY))
+                .setAppTenant(getOrEnvVar(appTenant, LOG4J2_ADX_TENANT_ID))
+                .setUseInteractiveAuth(useInteractiveAuthVal)
+                .setUseAzCliAuth(useAzCliAuthVal)
+                .setManagedIdentityId(managedIdentityId)
+                .setDbName(dbName)
+                .setTableName(tableName)
+                .setLogTableMapping(logTableMapping)
+                .setMappingType(mappingType)
+                .setFlushImmediately(flushImmediatelyIngestion)
+                .setProxyUrl(proxyUrl)
+                .setBackOffMinSeconds(backOffMin)
+                .setBackOffMaxSeconds(backOffMax)
+                .setAsyncIngestion(asyncIngestionVal)
+                .setIngestionQueueCapacity(ingestionQueueCapacityVal)
+                .setIngestionWorkers(ingestionWorkersVal)
+                .setCompressUploads(compressUploadsVal)
+                .setCoalesceBytes(coalesceBytes)
+                .setCoalesceMaxDelaySeconds(coalesceMaxDelay)
+                .setIngestionMode(ingestionMode)
+                .setReplayBackout(replayBackoutVal)
+                .setReplayIntervalSeconds(replayInterval)
+                .setReplayBytesPerSecond(replayBytes)
+                .setReplayConcurrency(replayConcurrencyVal)
+                .setReplayDirectory(replayDirectory)
+                .setIngestionListener(ingestionListener)
+                .setMaxConcurrentUploads(maxConcurrentUploadsVal)
+                .setCircuitBreakerFailures(circuitBreakerFailuresVal)
+                .setCircuitBreakerOpenSeconds(circuitBreakerOpen)
+                .setShutdownTimeoutSeconds(shutdownTimeout)
+                .setClientInitialization(clientInitialization)
+                .setStatusTracking(statusTrackingVal)
+                .setStatusTrackingCapacity(statusTrackingCapacityVal)
+                .setStatusPollIntervalSeconds(statusPollInterval)
+                .setDeduplicationIndex(deduplicationIndex)
+                .setDeduplicationIndexCapacity(deduplicationIndexCapacityVal)
+                .setSpoolQuotaBytes(spoolQuotaBytes)
+                .setSpoolPriority(spoolPriorityVal)
+                .setVirtualThreads(virtualThreadsVal)
+                .setIngestClientSupplier(ingestClientSupplier)
+                .build();
+        KustoStrategy kustoStrategy = new KustoStrategy(MIN_BACKOFF_TIME_SECONDS, MAX_BACKOFF_TIME_SECONDS, true,
+                Deflater.DEFAULT_COMPRESSION, config.getStrSubstitutor(), kustoLog4jConfig);
+        kustoStrategy.releaseWhenStopped(config);
+        return kustoStrategy;
+    }
 
-        KustoLog4jConfig kustoLog4jConfig = new KustoLog4jConfig(getOrEnvVar(clusterIngestUrl, LOG4J2_ADX_INGEST_CLUSTER_URL),
-                getOrEnvVar(appId, LOG4J2_ADX_APP_ID),
-                getOrEnvVar(appKey, LOG4J2_ADX_APP_KEY),
-                getOrEnvVar(appTenant, LOG4J2_ADX_TENANT_ID),
-                useInteractiveAuthVal,
-                useAzCliAuthVal,
-                managedIdentityId,
-                dbName,
-                tableName,
-                logTableMapping,
-                mappingType,
-                flushImmediatelyIngestion,
-                proxyUrl,
-                backOffMin,
-                backOffMax);
-        return new KustoStrategy(MIN_BACKOFF_TIME_SECONDS, MAX_BACKOFF_TIME_SECONDS, true, Deflater.DEFAULT_COMPRESSION,
-                config.getStrSubstitutor(),
-                kustoLog4jConfig);
+    /*
+     * The strategy has no lifecycle of its own, it gives its reference on the instance back when the configuration it
+     * was built for stops: when the LoggerContext shuts down, or when the LoggerContext replaces it with a new
+     * configuration (whose strategies hold their own references). Both happen after the appenders are stopped. A
+     * configuration built without a LoggerContext only releases the instance through the KustoTriggeringPolicy or the
+     * KustoAppender.
+     */
+    private void releaseWhenStopped(Configuration config) {
+        LoggerContext loggerContext = config.getLoggerContext();
+        if (loggerContext == null) {
+            LOGGER.debug("Configuration {} has no LoggerContext, the Kusto ingestion is closed when its appender stops", config.getName());
+            return;
+        }
+        ContextStopListener.register(loggerContext, config, this);
+    }
+
+    /**
+     * Gives back the reference of the strategy on its instance, once. The last strategy that releases the instance
+     * drains the pending ingestions and closes it.
+     */
+    void release() {
+        if (released.compareAndSet(false, true)) {
+            kustoClientInstance.release();
+        }
     }
 
     private static String getOrEnvVar(String value, String envVarName) {
         return value != null && !value.trim().isEmpty() ? value : System.getenv(envVarName);
     }
 
+    private static boolean parseBoolean(String value, boolean defaultValue) {
+        return value != null && !value.trim().isEmpty() ? Boolean.parseBoolean(value.trim()) : defaultValue;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        return value != null && !value.trim().isEmpty() ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    private static long parseSize(String value, long defaultValue) {
+        return value != null && !value.trim().isEmpty() ? FileSize.parse(value.trim(), defaultValue) : defaultValue;
+    }
+
     /**
      * @param manager The rolling file manager, for example a rolling file which renames files for archival
      * @return RolloverDescription
@@ -139,7 +318,80 @@ public class KustoStrategy extends DefaultRolloverStrategy {
         if (rolloverDescription.getSynchronous() instanceof FileRenameAction) {
             File file = ((FileRenameAction) rolloverDescription.getSynchronous()).getDestination();
             path = file.getPath();
+            kustoClientInstance.watchBackoutDirectory(file.getAbsoluteFile().getParentFile().toPath());
+        }
+        return new KustoRolloverDescription(rolloverDescription, path, kustoClientInstance);
+    }
+
+    /**
+     * @return The ingestion backlog of the database and table this strategy is configured with, which is shared with the
+     *         other strategies of the same destination
+     */
+    public KustoBacklog getBacklog() {
+        return kustoClientInstance.getBacklog();
+    }
+
+    /**
+     * @return The instance that ingests into the database and table this strategy is configured with
+     */
+    KustoClientInstance getKustoClientInstance() {
+        return kustoClientInstance;
+    }
+
+    /*
+     * Holds the strategies of a LoggerContext until the configuration they were built for stops. There is one per
+     * LoggerContext, registered with its first strategy: a shutdown listener cannot be removed from a LoggerContext, so
+     * one per strategy would keep the strategies of every configuration a reconfigured LoggerContext ever had.
+     */
+    private static final class ContextStopListener implements LoggerContextShutdownAware, PropertyChangeListener {
+        // weak, a LoggerContext that is never shut down is not kept; guarded by the class
+        private static final Map<LoggerContext, ContextStopListener> LISTENERS = new WeakHashMap<>();
+
+        // the strategies by the configuration they were built for, guarded by the class
+        private final Map<Configuration, List<KustoStrategy>> strategies = new IdentityHashMap<>();
+
+        static void register(LoggerContext loggerContext, Configuration configuration, KustoStrategy kustoStrategy) {
+            synchronized (ContextStopListener.class) {
+                ContextStopListener listener = LISTENERS.get(loggerContext);
+                if (listener == null) {
+                    listener = new ContextStopListener();
+                    LISTENERS.put(loggerContext, listener);
+                    loggerContext.addShutdownListener(listener);
+                    loggerContext.addPropertyChangeListener(listener);
+                }
+                listener.strategies.computeIfAbsent(configuration, c -> new ArrayList<>()).add(kustoStrategy);
+            }
+        }
+
+        @Override
+        public void contextShutdown(org.apache.logging.log4j.spi.LoggerContext loggerContext) {
+            List<KustoStrategy> stopped = new ArrayList<>();
+            synchronized (ContextStopListener.class) {
+                // a restarted LoggerContext registers a new listener with its next strategy
+                LISTENERS.remove(loggerContext, this);
+                strategies.values().forEach(stopped::addAll);
+                strategies.clear();
+            }
+            if (loggerContext instanceof LoggerContext) {
+                ((LoggerContext) loggerContext).removePropertyChangeListener(this);
+            }
+            stopped.forEach(KustoStrategy::release);
+        }
+
+        @Override
+        public void propertyChange(PropertyChangeEvent event) {
+            // fired once the previous configuration is stopped, and with the same old and new value when the loggers
+            // are updated
+            if (!LoggerContext.PROPERTY_CONFIG.equals(event.getPropertyName()) || event.getOldValue() == event.getNewValue()) {
+                return;
+            }
+            List<KustoStrategy> stopped;
+            synchronized (ContextStopListener.class) {
+                stopped = strategies.remove(event.getOldValue());
+            }
+            if (stopped != null) {
+                stopped.forEach(KustoStrategy::release);
+            }
         }
-        return new KustoRolloverDescription(rolloverDescription, path);
     }
 }
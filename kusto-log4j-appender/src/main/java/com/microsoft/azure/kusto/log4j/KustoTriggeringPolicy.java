@@ -0,0 +1,189 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.rolling.AbstractTriggeringPolicy;
+import org.apache.logging.log4j.core.appender.rolling.FileSize;
+import org.apache.logging.log4j.core.appender.rolling.RollingFileManager;
+import org.apache.logging.log4j.core.appender.rolling.RolloverStrategy;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.ConfigurationScheduler;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginConfiguration;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * A triggering policy that sizes the rolled files for ingestion. A file is rolled once it reaches the target size
+ * (Kusto ingests best from blobs of a few hundred MB) or once it reaches an age limit, which is checked every second so
+ * that a file is rolled even when no event comes to trigger it.
+ * <p>
+ * The age limit adapts to the load: it goes from minAgeSeconds when the events written within maxAgeSeconds would only
+ * fill a small part of the target size (light traffic, where waiting only delays the logs) up to maxAgeSeconds as that
+ * part grows (steady load, where the file is rolled on size anyway). While the uploads of the KustoStrategy are behind (more
+ * than one pending), the age limit is maxAgeSeconds: a file rolled early would only wait behind the others, as one more
+ * ingestion.
+ * <p>
+ * When the appender stops (e.g. when the LoggerContext shuts down), the active file is rolled one last time and the
+ * pending ingestions are drained within the shutdownTimeoutSeconds of the KustoStrategy.
+ */
+@Plugin(name = "KustoTriggeringPolicy", category = Core.CATEGORY_NAME, printObject = true)
+public final class KustoTriggeringPolicy extends AbstractTriggeringPolicy {
+
+    private static final String DEFAULT_TARGET_SIZE = "256 MB";
+    private static final int DEFAULT_MAX_AGE_SECONDS = 5 * 60;
+    private static final int DEFAULT_MIN_AGE_SECONDS = 30;
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+    // weight of the last check in the moving average of the write rate
+    private static final double RATE_SMOOTHING = 0.2;
+
+    private final long targetBytes;
+    private final long maxAgeMillis;
+    private final long minAgeMillis;
+    private final Configuration configuration;
+    private RollingFileManager manager;
+    private IntSupplier pendingIngestions = () -> 0;
+    // the KustoStrategy, whose instance is released on stop
+    private KustoStrategy kustoStrategy;
+    private ScheduledFuture<?> checkFuture;
+    // updated by the checks, read by the logging threads
+    private volatile long ageLimitMillis;
+    // only accessed by the checks
+    private long lastCheckMillis;
+    private long lastCheckSize;
+    private double bytesPerMilli;
+
+    private KustoTriggeringPolicy(long targetBytes, long maxAgeMillis, long minAgeMillis, Configuration configuration) {
+        this.targetBytes = targetBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.minAgeMillis = Math.min(minAgeMillis, maxAgeMillis);
+        this.configuration = configuration;
+        this.ageLimitMillis = this.minAgeMillis;
+    }
+
+    /**
+     * @param targetSize    The size (e.g 256 MB) at which a file is rolled
+     * @param maxAgeSeconds The age at which a file is rolled under steady load or while the uploads are behind
+     * @param minAgeSeconds The age at which a file is rolled when the traffic is light
+     * @param configuration The configuration, whose scheduler runs the age checks
+     * @return KustoTriggeringPolicy that rolls files on size or on an adaptive age
+     */
+    @PluginFactory
+    public static KustoTriggeringPolicy createPolicy(@PluginAttribute("targetSize") final String targetSize,
+            @PluginAttribute("maxAgeSeconds") final String maxAgeSeconds,
+            @PluginAttribute("minAgeSeconds") final String minAgeSeconds,
+            @PluginConfiguration final Configuration configuration) {
+        long targetBytes = FileSize.parse(targetSize != null && !targetSize.trim().isEmpty() ? targetSize : DEFAULT_TARGET_SIZE, 0);
+        int maxAge = maxAgeSeconds != null && !maxAgeSeconds.trim().isEmpty() ? Integer.parseInt(maxAgeSeconds.trim())
+                : DEFAULT_MAX_AGE_SECONDS;
+        int minAge = minAgeSeconds != null && !minAgeSeconds.trim().isEmpty() ? Integer.parseInt(minAgeSeconds.trim())
+                : DEFAULT_MIN_AGE_SECONDS;
+        return new KustoTriggeringPolicy(targetBytes, TimeUnit.SECONDS.toMillis(maxAge), TimeUnit.SECONDS.toMillis(minAge), configuration);
+    }
+
+    @Override
+    public void initialize(RollingFileManager manager) {
+        this.manager = manager;
+        RolloverStrategy rolloverStrategy = manager.getRolloverStrategy();
+        if (rolloverStrategy instanceof KustoStrategy) {
+            kustoStrategy = (KustoStrategy) rolloverStrategy;
+            pendingIngestions = kustoStrategy.getKustoClientInstance()::getPendingIngestions;
+        }
+        lastCheckMillis = System.currentTimeMillis();
+        lastCheckSize = manager.getFileSize();
+        if (configuration != null) {
+            ConfigurationScheduler scheduler = configuration.getScheduler();
+            if (!scheduler.isExecutorServiceSet()) {
+                // make sure the scheduler has a thread
+                scheduler.incrementScheduledItems();
+            }
+            if (!scheduler.isStarted()) {
+                scheduler.start();
+            }
+            checkFuture = scheduler.scheduleWithFixedDelay(this::rollIfExpired, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public boolean isTriggeringEvent(LogEvent logEvent) {
+        long fileSize = manager.getFileSize();
+        return fileSize >= targetBytes || (fileSize > 0 && System.currentTimeMillis() - manager.getFileTime() >= ageLimitMillis);
+    }
+
+    private void rollIfExpired() {
+        try {
+            long now = System.currentTimeMillis();
+            update(now, manager.getFileSize(), pendingIngestions.getAsInt());
+            if (manager.getFileSize() > 0 && now - manager.getFileTime() >= ageLimitMillis) {
+                manager.rollover();
+            }
+        } catch (RuntimeException e) {
+            // a failed check must not cancel the next ones
+            LOGGER.error("Rollover of {} failed", manager.getFileName(), e);
+        }
+    }
+
+    /*
+     * Updates the moving average of the write rate and the age limit that follows from it. A file smaller than at the
+     * last check has been rolled in between, its bytes are counted from zero. The uploads are behind when more than the
+     * last rolled file is pending.
+     */
+    void update(long now, long fileSize, int pending) {
+        long elapsedMillis = now - lastCheckMillis;
+        if (elapsedMillis > 0) {
+            long written = fileSize >= lastCheckSize ? fileSize - lastCheckSize : fileSize;
+            bytesPerMilli = RATE_SMOOTHING * written / elapsedMillis + (1 - RATE_SMOOTHING) * bytesPerMilli;
+            lastCheckMillis = now;
+            lastCheckSize = fileSize;
+        }
+        if (pending > 1) {
+            ageLimitMillis = maxAgeMillis;
+            return;
+        }
+        double fill = Math.min(1, bytesPerMilli * maxAgeMillis / targetBytes);
+        ageLimitMillis = minAgeMillis + (long) ((maxAgeMillis - minAgeMillis) * fill);
+    }
+
+    long getAgeLimitMillis() {
+        return ageLimitMillis;
+    }
+
+    /*
+     * Called by the manager before it closes the active file. With a KustoStrategy, the active file is rolled so that
+     * its events are ingested now rather than after the next start, then the instance of the strategy is released: the
+     * last strategy that uses it drains the pending ingestions and closes it.
+     */
+    @Override
+    public boolean stop(long timeout, TimeUnit timeUnit) {
+        setStopping();
+        if (checkFuture != null) {
+            checkFuture.cancel(false);
+        }
+        if (kustoStrategy != null) {
+            try {
+                if (manager.getFileSize() > 0) {
+                    manager.rollover();
+                }
+            } catch (RuntimeException e) {
+                LOGGER.error("Rollover of {} on stop failed", manager.getFileName(), e);
+            }
+            kustoStrategy.release();
+            kustoStrategy = null;
+        }
+        setStopped();
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("KustoTriggeringPolicy(targetBytes=%d, maxAgeMillis=%d, minAgeMillis=%d)", targetBytes, maxAgeMillis,
+                minAgeMillis);
+    }
+}
@@ -0,0 +1,165 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.microsoft.azure.kusto.ingest.exceptions.IngestionServiceException;
+import com.microsoft.azure.kusto.ingest.result.IngestionResult;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+class KustoAppenderTest {
+
+    private static final String SPOOL_DIRECTORY = String.format("%s%s%s", System.getProperty("java.io.tmpdir"), File.separator, "kusto-spool-test");
+
+    KustoClientInstance kustoClientInstance;
+    KustoStrategy kustoStrategy;
+
+    @BeforeEach
+    public void beforeEach() throws IOException {
+        kustoClientInstance = mock(KustoClientInstance.class);
+        kustoStrategy = mock(KustoStrategy.class);
+        when(kustoStrategy.getKustoClientInstance()).thenReturn(kustoClientInstance);
+        deleteSpool();
+    }
+
+    @AfterEach
+    public void afterEach() throws IOException {
+        deleteSpool();
+    }
+
+    @Test
+    void appendIngestsBatchWhenFull() {
+        ArgumentCaptor<Integer> lengthCaptor = ArgumentCaptor.forClass(Integer.class);
+        when(kustoClientInstance.ingestBatchAsync(any(byte[].class), lengthCaptor.capture()))
+                .thenReturn(CompletableFuture.completedFuture(mock(IngestionResult.class)));
+        KustoAppender appender = createAppender();
+        appender.start();
+        for (int i = 0; i < 100; i++) {
+            appender.append(logEvent(i));
+        }
+        // 1 KB batches, handed to the upload thread of the appender, the remainder is ingested on stop
+        verify(kustoClientInstance, timeout(5000).atLeastOnce()).ingestBatchAsync(any(byte[].class), anyInt());
+        assertTrue(lengthCaptor.getValue() >= 1024);
+        appender.stop(5, TimeUnit.SECONDS);
+        assertTrue(appender.isStopped());
+        assertFalse(Files.exists(Paths.get(SPOOL_DIRECTORY)));
+        verify(kustoStrategy).release();
+    }
+
+    @Test
+    void failedBatchIsSpooled() {
+        CompletableFuture<IngestionResult> failure = new CompletableFuture<>();
+        failure.completeExceptionally(new IngestionServiceException("An ingestion exception has occurred"));
+        when(kustoClientInstance.ingestBatchAsync(any(byte[].class), anyInt())).thenReturn(failure);
+        KustoAppender appender = createAppender();
+        appender.start();
+        appender.append(logEvent(1));
+        appender.stop(5, TimeUnit.SECONDS);
+        await().atMost(5, TimeUnit.SECONDS).until(() -> Files.exists(Paths.get(SPOOL_DIRECTORY)));
+        try (Stream<Path> spooled = Files.list(Paths.get(SPOOL_DIRECTORY))) {
+            assertEquals(1, spooled.count());
+        } catch (IOException e) {
+            fail("Cannot list the spool directory", e);
+        }
+    }
+
+    @Test
+    void slowUploadDoesNotBlockTheLoggingThread() throws InterruptedException {
+        CountDownLatch uploadReleased = new CountDownLatch(1);
+        AtomicReference<Thread> uploadThread = new AtomicReference<>();
+        // without async ingestion the first attempt of a batch runs on the thread that hands it over
+        when(kustoClientInstance.ingestBatchAsync(any(byte[].class), anyInt())).thenAnswer(invocation -> {
+            uploadThread.compareAndSet(null, Thread.currentThread());
+            uploadReleased.await(10, TimeUnit.SECONDS);
+            return CompletableFuture.completedFuture(mock(IngestionResult.class));
+        });
+        when(kustoClientInstance.ingestRolledFileAsync(any())).thenReturn(CompletableFuture.completedFuture(mock(IngestionResult.class)));
+        KustoAppender appender = createAppender();
+        appender.start();
+        long start = System.nanoTime();
+        // a few 1 KB batches
+        for (int i = 0; i < 300; i++) {
+            appender.append(logEvent(i));
+        }
+        long appendMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        await().atMost(5, TimeUnit.SECONDS).until(() -> uploadThread.get() != null);
+        assertNotSame(Thread.currentThread(), uploadThread.get());
+        // the batches that filled up while the upload was stuck were spooled
+        assertTrue(appendMillis < 5000, String.format("Logging took %d ms", appendMillis));
+        assertTrue(Files.exists(Paths.get(SPOOL_DIRECTORY)));
+        uploadReleased.countDown();
+        appender.stop(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void spooledFileIsNotReplayedWhileItIsBeingIngested() throws IOException {
+        Path spooledFile = Paths.get(SPOOL_DIRECTORY, "kusto-spool-1-1.log");
+        Files.createDirectories(spooledFile.getParent());
+        Files.write(spooledFile, "Log line number 0".getBytes());
+        // the spooled file is still being ingested when the next replay runs
+        when(kustoClientInstance.ingestRolledFileAsync(spooledFile.toString())).thenReturn(new CompletableFuture<>());
+        when(kustoClientInstance.ingestRolledFileAsync(argThat(filePath -> !filePath.equals(spooledFile.toString()))))
+                .thenReturn(CompletableFuture.completedFuture(mock(IngestionResult.class)));
+        CompletableFuture<IngestionResult> failure = new CompletableFuture<>();
+        failure.completeExceptionally(new IngestionServiceException("An ingestion exception has occurred"));
+        when(kustoClientInstance.ingestBatchAsync(any(byte[].class), anyInt())).thenReturn(failure,
+                CompletableFuture.completedFuture(mock(IngestionResult.class)));
+        KustoAppender appender = createAppender();
+        appender.start();
+        verify(kustoClientInstance, timeout(5000)).ingestRolledFileAsync(spooledFile.toString());
+        // the first batch fails and is spooled, the next ones go through and replay the spool
+        for (int i = 0; i < 100; i++) {
+            appender.append(logEvent(i));
+        }
+        verify(kustoClientInstance, timeout(5000)).ingestRolledFileAsync(argThat(filePath -> !filePath.equals(spooledFile.toString())));
+        verify(kustoClientInstance, after(500).times(1)).ingestRolledFileAsync(spooledFile.toString());
+        appender.stop(5, TimeUnit.SECONDS);
+    }
+
+    private KustoAppender createAppender() {
+        return KustoAppender.createAppender("kusto", "1 KB", "60", "2", SPOOL_DIRECTORY, "true",
+                PatternLayout.createDefaultLayout(), null, kustoStrategy);
+    }
+
+    private static Log4jLogEvent logEvent(int i) {
+        return Log4jLogEvent.newBuilder().setLoggerName("KustoAppenderTest").setLevel(Level.INFO)
+                .setMessage(new SimpleMessage("Log line number " + i)).build();
+    }
+
+    private static void deleteSpool() throws IOException {
+        Path spoolDirectory = Paths.get(SPOOL_DIRECTORY);
+        if (Files.exists(spoolDirectory)) {
+            try (Stream<Path> spooled = Files.list(spoolDirectory)) {
+                for (Path path : (Iterable<Path>) spooled::iterator) {
+                    Files.deleteIfExists(path);
+                }
+            }
+            Files.deleteIfExists(spoolDirectory);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class KustoBacklogFilterTest {
+
+    private static final long LOW_WATERMARK = 1000;
+    private static final long HIGH_WATERMARK = 3000;
+
+    private KustoIngestionMetrics metrics;
+    private KustoClientInstance kustoClientInstance;
+    private KustoBacklogFilter filter;
+
+    @BeforeEach
+    public void beforeEach() {
+        metrics = new KustoIngestionMetrics(null, () -> 0);
+        kustoClientInstance = mock(KustoClientInstance.class);
+        when(kustoClientInstance.getBacklog()).thenReturn(metrics);
+        doAnswer(invocation -> {
+            metrics.onSampledOut();
+            return null;
+        }).when(kustoClientInstance).onEventSampledOut();
+        filter = new KustoBacklogFilter(() -> kustoClientInstance, LOW_WATERMARK, HIGH_WATERMARK, 0, Level.WARN, Filter.Result.NEUTRAL,
+                Filter.Result.DENY);
+        filter.start();
+    }
+
+    @Test
+    void everyEventPassesUnderLowWatermark() {
+        metrics.onIngestionStarted(LOW_WATERMARK);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Filter.Result.NEUTRAL, filter.filter(event(Level.DEBUG)));
+        }
+        assertEquals(0, metrics.getSampledOutEvents());
+    }
+
+    @Test
+    void warningsPassAboveHighWatermark() {
+        metrics.onIngestionStarted(HIGH_WATERMARK / 2);
+        metrics.onSpoolUsageChanged(HIGH_WATERMARK / 2);
+        assertEquals(0, filter.getSampleRate(), 0.001);
+        assertEquals(Filter.Result.DENY, filter.filter(event(Level.INFO)));
+        assertEquals(Filter.Result.DENY, filter.filter(event(Level.DEBUG)));
+        assertEquals(Filter.Result.NEUTRAL, filter.filter(event(Level.WARN)));
+        assertEquals(Filter.Result.NEUTRAL, filter.filter(event(Level.ERROR)));
+        assertEquals(2, metrics.getSampledOutEvents());
+        assertEquals(2, filter.getSampledOutEvents());
+        // the count is reported and starts over once the backlog is back under the low watermark
+        metrics.onIngestionCompleted(HIGH_WATERMARK / 2);
+        metrics.onSpoolUsageChanged(0);
+        assertEquals(Filter.Result.NEUTRAL, filter.filter(event(Level.INFO)));
+        assertEquals(0, filter.getSampledOutEvents());
+        assertEquals(2, metrics.getSampledOutEvents());
+    }
+
+    @Test
+    void sampleRateGoesDownBetweenWatermarks() {
+        metrics.onIngestionStarted((LOW_WATERMARK + HIGH_WATERMARK) / 2);
+        assertEquals(0.5, filter.getSampleRate(), 0.001);
+        int kept = 0;
+        int keptDebug = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.filter(event(Level.INFO)) == Filter.Result.NEUTRAL) {
+                kept++;
+            }
+            if (filter.filter(event(Level.DEBUG)) == Filter.Result.NEUTRAL) {
+                keptDebug++;
+            }
+        }
+        // about half of the INFO events and a quarter of the DEBUG events are kept
+        assertTrue(kept > 4000 && kept < 6000, "kept " + kept);
+        assertTrue(keptDebug > 1500 && keptDebug < 3500, "kept " + keptDebug);
+        assertEquals(20000 - kept - keptDebug, metrics.getSampledOutEvents());
+    }
+
+    @Test
+    void withoutInstanceNothingIsSampledOut() {
+        KustoBacklogFilter unresolved = new KustoBacklogFilter(() -> null, 0, 0, 0, Level.WARN, Filter.Result.NEUTRAL, Filter.Result.DENY);
+        unresolved.start();
+        assertEquals(Filter.Result.NEUTRAL, unresolved.filter(event(Level.DEBUG)));
+    }
+
+    private static LogEvent event(Level level) {
+        return Log4jLogEvent.newBuilder().setLevel(level).setLoggerName("test").build();
+    }
+}
@@ -0,0 +1,121 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.microsoft.azure.kusto.ingest.exceptions.IngestionServiceException;
+import com.microsoft.azure.kusto.ingest.result.IngestionResult;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+class KustoBackoutReplayerTest {
+
+    private final List<String> replayedFiles = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService scheduler;
+    private Path backoutDirectory;
+
+    @BeforeEach
+    public void beforeEach() throws IOException {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        backoutDirectory = Files.createTempDirectory("backout");
+        for (String fileName : new String[] {"rolled-1.log", "rolled-2.log", "failing.log"}) {
+            Files.write(backoutDirectory.resolve(fileName), new byte[1024]);
+        }
+    }
+
+    @AfterEach
+    public void afterEach() throws IOException {
+        scheduler.shutdownNow();
+        try (Stream<Path> files = Files.list(backoutDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(backoutDirectory);
+    }
+
+    @Test
+    void replayDeletesOnlyIngestedFiles() {
+        KustoBackoutReplayer replayer = new KustoBackoutReplayer(scheduler, this::ingest, TimeUnit.MINUTES.toMillis(5), 1024 * 1024, 1);
+        replayer.watch(backoutDirectory);
+        await().atMost(10, TimeUnit.SECONDS).until(() -> replayedFiles.size() == 3);
+        await().atMost(10, TimeUnit.SECONDS).until(() -> countFiles() == 1);
+        assertTrue(Files.exists(backoutDirectory.resolve("failing.log")));
+    }
+
+    @Test
+    void replayIsRateLimited() {
+        // 1 KB per second with 3 files of 1 KB, the budget of the first second is available right away
+        long start = System.nanoTime();
+        KustoBackoutReplayer replayer = new KustoBackoutReplayer(scheduler, this::ingest, TimeUnit.MINUTES.toMillis(5), 1024, 3);
+        replayer.watch(backoutDirectory);
+        await().atMost(10, TimeUnit.SECONDS).until(() -> replayedFiles.size() == 3);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 1500);
+        assertEquals(1, countFiles());
+    }
+
+    @Test
+    void filesSetAsideAreNotReplayedAgain() throws IOException {
+        Path failedDirectory = Files.createDirectories(backoutDirectory.resolve(KustoClientInstance.FAILED_DIRECTORY));
+        KustoBackoutReplayer replayer = new KustoBackoutReplayer(scheduler, filePath -> {
+            CompletableFuture<IngestionResult> ingestion = ingest(filePath);
+            if (ingestion.isCompletedExceptionally()) {
+                // as the instance does with a file the service rejects
+                try {
+                    Files.move(Paths.get(filePath), failedDirectory.resolve(Paths.get(filePath).getFileName()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return ingestion;
+        }, 100, 1024 * 1024, 1);
+        replayer.start();
+        replayer.watch(backoutDirectory);
+        await().atMost(10, TimeUnit.SECONDS).until(() -> replayedFiles.size() == 3);
+        await().pollDelay(500, TimeUnit.MILLISECONDS).atMost(10, TimeUnit.SECONDS).until(() -> replayer.getPendingFiles() == 0);
+        // the scans that followed did not pick up the failed directory
+        assertEquals(3, replayedFiles.size());
+        assertTrue(Files.exists(failedDirectory.resolve("failing.log")));
+        try (Stream<Path> files = Files.list(failedDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private CompletableFuture<IngestionResult> ingest(String filePath) {
+        replayedFiles.add(filePath);
+        CompletableFuture<IngestionResult> ingestion = new CompletableFuture<>();
+        if (filePath.endsWith("failing.log")) {
+            ingestion.completeExceptionally(new IngestionServiceException("An ingestion exception has occurred"));
+        } else {
+            ingestion.complete(mock(IngestionResult.class));
+        }
+        return ingestion;
+    }
+
+    private long countFiles() throws IOException {
+        try (Stream<Path> files = Files.list(backoutDirectory)) {
+            return files.count();
+        }
+    }
+}
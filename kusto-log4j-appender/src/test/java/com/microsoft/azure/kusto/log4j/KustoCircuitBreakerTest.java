@@ -0,0 +1,94 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+class KustoCircuitBreakerTest {
+
+    private final AtomicLong nanoClock = new AtomicLong();
+    private final List<KustoCircuitBreaker.State> transitions = new ArrayList<>();
+    private final KustoCircuitBreaker circuitBreaker = new KustoCircuitBreaker(3, 1000, transitions::add, nanoClock::get);
+
+    @Test
+    void opensAfterConsecutiveFailures() {
+        failAttempts(2);
+        assertTrue(circuitBreaker.tryAcquire());
+        circuitBreaker.onSuccess();
+        // the success reset the count
+        failAttempts(2);
+        assertEquals(KustoCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        failAttempts(1);
+        assertEquals(KustoCircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.tryAcquire());
+        assertEquals(Arrays.asList(KustoCircuitBreaker.State.OPEN), transitions);
+    }
+
+    @Test
+    void probesOnceOpenDurationElapsed() {
+        failAttempts(3);
+        nanoClock.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        assertFalse(circuitBreaker.tryAcquire());
+        nanoClock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(circuitBreaker.tryAcquire());
+        assertEquals(KustoCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        // a single probe is in flight
+        assertFalse(circuitBreaker.tryAcquire());
+        circuitBreaker.onFailure();
+        assertEquals(KustoCircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.tryAcquire());
+        nanoClock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        assertTrue(circuitBreaker.tryAcquire());
+        circuitBreaker.onSuccess();
+        assertEquals(KustoCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.tryAcquire());
+        assertTrue(circuitBreaker.tryAcquire());
+        assertEquals(Arrays.asList(KustoCircuitBreaker.State.OPEN, KustoCircuitBreaker.State.HALF_OPEN, KustoCircuitBreaker.State.OPEN,
+                KustoCircuitBreaker.State.HALF_OPEN, KustoCircuitBreaker.State.CLOSED), transitions);
+    }
+
+    @Test
+    void localFailuresCountNeitherWay() {
+        failAttempts(2);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(circuitBreaker.tryAcquire());
+            circuitBreaker.onLocalFailure();
+        }
+        assertEquals(KustoCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        // the failures before are still counted
+        failAttempts(1);
+        assertEquals(KustoCircuitBreaker.State.OPEN, circuitBreaker.getState());
+        nanoClock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        assertTrue(circuitBreaker.tryAcquire());
+        circuitBreaker.onLocalFailure();
+        // the probe was given back
+        assertEquals(KustoCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        assertTrue(circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    void neverOpensWithoutThreshold() {
+        KustoCircuitBreaker disabled = new KustoCircuitBreaker(0, 1000, transitions::add, nanoClock::get);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(disabled.tryAcquire());
+            disabled.onFailure();
+        }
+        assertEquals(KustoCircuitBreaker.State.CLOSED, disabled.getState());
+        assertTrue(transitions.isEmpty());
+    }
+
+    private void failAttempts(int failures) {
+        for (int i = 0; i < failures; i++) {
+            assertTrue(circuitBreaker.tryAcquire());
+            circuitBreaker.onFailure();
+        }
+    }
+}
@@ -0,0 +1,422 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.microsoft.azure.kusto.data.exceptions.DataServiceException;
+import com.microsoft.azure.kusto.ingest.IngestClient;
+import com.microsoft.azure.kusto.ingest.IngestionProperties;
+import com.microsoft.azure.kusto.ingest.exceptions.IngestionClientException;
+import com.microsoft.azure.kusto.ingest.exceptions.IngestionServiceException;
+import com.microsoft.azure.kusto.ingest.result.IngestionResult;
+import com.microsoft.azure.kusto.ingest.source.CompressionType;
+import com.microsoft.azure.kusto.ingest.source.FileSourceInfo;
+import com.microsoft.azure.kusto.ingest.source.StreamSourceInfo;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+import io.github.resilience4j.core.IntervalFunction;
+import io.github.resilience4j.retry.Retry;
+import io.github.resilience4j.retry.RetryConfig;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+class KustoClientInstanceTest {
+
+    private static final String FILE_ATTRIBUTE = String.format("%s%s%s", System.getProperty("java.io.tmpdir"), File.separator, "async-delegate.log");
+    private static final String BACKOUT_ATTRIBUTE = String.format("%s%s%s%s%s", System.getProperty("java.io.tmpdir"), File.separator, "backout",
+            File.separator, "async-delegate.log");
+
+    // the clients the RecordingIngestClientSupplier hands out, by ingestion mode, and the modes it was asked for
+    private static final Map<String, IngestClient> INGEST_CLIENTS = new ConcurrentHashMap<>();
+    private static final List<String> REQUESTED_MODES = new CopyOnWriteArrayList<>();
+    private static final AtomicInteger DESTINATIONS = new AtomicInteger();
+
+    KustoClientInstance kustoClientInstance;
+    Path directory;
+
+    @BeforeEach
+    public void beforeEach() throws IOException {
+        for (String ingestionMode : Arrays.asList(KustoClientInstance.INGESTION_MODE_QUEUED, KustoClientInstance.INGESTION_MODE_STREAMING,
+                KustoClientInstance.INGESTION_MODE_MANAGED_STREAMING)) {
+            INGEST_CLIENTS.put(ingestionMode, mock(IngestClient.class));
+        }
+        REQUESTED_MODES.clear();
+        directory = Files.createTempDirectory("kusto-client-instance-test");
+        kustoClientInstance = mock(KustoClientInstance.class);
+        RetryConfig retryConfig = RetryConfig.custom()
+                .intervalFunction(IntervalFunction.ofExponentialBackoff(1,
+                        IntervalFunction.DEFAULT_MULTIPLIER, 5))
+                .retryOnException(KustoClientInstance::isTransientException)
+                .failAfterMaxAttempts(false).maxAttempts(3)
+                .build();
+        kustoClientInstance.ingestionRetry = Retry.of(KustoClientInstance.INGESTION_RETRIES, retryConfig);
+        kustoClientInstance.retryScheduler = Executors.newSingleThreadScheduledExecutor();
+        kustoClientInstance.retryWorkers = Executors.newCachedThreadPool();
+        kustoClientInstance.ingestionMetrics = new KustoIngestionMetrics(null, () -> 0);
+        kustoClientInstance.spoolUsage = new KustoSpoolQuota().register(0, 0, kustoClientInstance.ingestionMetrics);
+        kustoClientInstance.completionSequencer = new KustoCompletionSequencer();
+        kustoClientInstance.circuitBreaker = new KustoCircuitBreaker(5, 60_000, kustoClientInstance.ingestionMetrics::onCircuitStateChanged);
+        Mockito.doCallRealMethod().when(kustoClientInstance).ingestRolledFileAsync(anyString());
+        Mockito.doCallRealMethod().when(kustoClientInstance).backOutFile(anyString());
+        Files.copy(Paths.get(System.getProperty("user.dir"), "src", "test", "resources", "delegate.log"),
+                Paths.get(FILE_ATTRIBUTE), REPLACE_EXISTING);
+        Files.deleteIfExists(Paths.get(BACKOUT_ATTRIBUTE));
+    }
+
+    @AfterEach
+    public void afterEach() throws IOException {
+        kustoClientInstance.retryScheduler.shutdownNow();
+        kustoClientInstance.retryWorkers.shutdownNow();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    void ingestRolledFileAsyncSuccess() throws Exception {
+        IngestionResult ingestionResult = mock(IngestionResult.class);
+        when(kustoClientInstance.ingestLogs(anyString())).thenReturn(ingestionResult);
+        CompletableFuture<IngestionResult> ingestion = kustoClientInstance.ingestRolledFileAsync(FILE_ATTRIBUTE);
+        assertSame(ingestionResult, ingestion.get(10, TimeUnit.SECONDS));
+        verify(kustoClientInstance, never()).backOutFile(anyString());
+        assertEquals(0, kustoClientInstance.ingestionMetrics.getPendingIngestions());
+        assertEquals(0, kustoClientInstance.ingestionMetrics.getFailures());
+    }
+
+    @ParameterizedTest
+    @CsvSource({"false,3", "true,1"})
+    void ingestRolledFileAsyncFailure(boolean isPermanent, int retries) throws IngestionClientException, IOException, IngestionServiceException {
+        Exception exceptionToThrow = isPermanent ? new RuntimeException(new DataServiceException("file", "Bad mapping", true))
+                : new IngestionServiceException("An ingestion exception has occurred");
+        when(kustoClientInstance.ingestLogs(anyString())).thenThrow(exceptionToThrow);
+        CompletableFuture<IngestionResult> ingestion = kustoClientInstance.ingestRolledFileAsync(FILE_ATTRIBUTE);
+        assertThrows(ExecutionException.class, () -> ingestion.get(10, TimeUnit.SECONDS));
+        // the file is backed out before the future completes
+        Path backoutFilePath = Paths.get(BACKOUT_ATTRIBUTE);
+        assertTrue(Files.exists(backoutFilePath));
+        verify(kustoClientInstance, times(retries)).ingestLogs(anyString());
+        assertEquals(retries - 1, kustoClientInstance.ingestionMetrics.getRetries());
+        assertEquals(1, kustoClientInstance.ingestionMetrics.getFailures());
+        assertEquals(1, kustoClientInstance.ingestionMetrics.getBackouts());
+        assertEquals(0, kustoClientInstance.ingestionMetrics.getPendingIngestions());
+    }
+
+    @Test
+    void ingestRolledFileAsyncWhileCircuitOpen() throws IngestionClientException, IOException, IngestionServiceException {
+        for (int i = 0; i < 5; i++) {
+            kustoClientInstance.circuitBreaker.tryAcquire();
+            kustoClientInstance.circuitBreaker.onFailure();
+        }
+        assertEquals("OPEN", kustoClientInstance.ingestionMetrics.getCircuitState());
+        CompletableFuture<IngestionResult> ingestion = kustoClientInstance.ingestRolledFileAsync(FILE_ATTRIBUTE);
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> ingestion.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(KustoCircuitBreaker.CircuitOpenException.class, failure.getCause());
+        // backed out without a network call nor a retry
+        assertTrue(Files.exists(Paths.get(BACKOUT_ATTRIBUTE)));
+        verify(kustoClientInstance, never()).ingestLogs(anyString());
+        assertEquals(0, kustoClientInstance.ingestionMetrics.getRetries());
+        assertEquals(1, kustoClientInstance.ingestionMetrics.getShortCircuitedAttempts());
+        assertEquals(1, kustoClientInstance.ingestionMetrics.getCircuitOpenings());
+    }
+
+    @Test
+    void unreadableFilesDoNotOpenTheCircuit() throws Exception {
+        when(kustoClientInstance.ingestLogs(anyString())).thenThrow(new NoSuchFileException(FILE_ATTRIBUTE));
+        for (int i = 0; i < 2; i++) {
+            CompletableFuture<IngestionResult> ingestion = kustoClientInstance.ingestRolledFileAsync(FILE_ATTRIBUTE);
+            assertThrows(ExecutionException.class, () -> ingestion.get(10, TimeUnit.SECONDS));
+        }
+        // more local failures than the threshold of the breaker
+        verify(kustoClientInstance, times(6)).ingestLogs(anyString());
+        assertEquals("CLOSED", kustoClientInstance.ingestionMetrics.getCircuitState());
+        assertTrue(kustoClientInstance.circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    void queuedIngestionUsesTheQueuedClient() throws Exception {
+        KustoClientInstance instance = createInstance(null, false);
+        try {
+            instance.ingestLogs(rolledFile("small.log", 1024).toString());
+            instance.ingestBytes(new byte[1024], 1024);
+            IngestClient queuedClient = INGEST_CLIENTS.get(KustoClientInstance.INGESTION_MODE_QUEUED);
+            verify(queuedClient).ingestFromFile(any(FileSourceInfo.class), any(IngestionProperties.class));
+            verify(queuedClient).ingestFromStream(any(StreamSourceInfo.class), any(IngestionProperties.class));
+            assertEquals(Collections.singletonList(KustoClientInstance.INGESTION_MODE_QUEUED), REQUESTED_MODES);
+        } finally {
+            instance.release();
+        }
+    }
+
+    @Test
+    void streamingIngestionFallsBackToQueuedAboveTheStreamingLimit() throws Exception {
+        KustoClientInstance instance = createInstance(KustoClientInstance.INGESTION_MODE_STREAMING, false);
+        try {
+            IngestClient streamingClient = INGEST_CLIENTS.get(KustoClientInstance.INGESTION_MODE_STREAMING);
+            IngestClient queuedClient = INGEST_CLIENTS.get(KustoClientInstance.INGESTION_MODE_QUEUED);
+            instance.ingestLogs(rolledFile("small.log", KustoClientInstance.STREAMING_INGESTION_MAX_BYTES).toString());
+            instance.ingestBytes(new byte[1024], 1024);
+            verify(streamingClient).ingestFromFile(any(FileSourceInfo.class), any(IngestionProperties.class));
+            verify(streamingClient).ingestFromStream(any(StreamSourceInfo.class), any(IngestionProperties.class));
+            verifyNoInteractions(queuedClient);
+            // the streaming endpoint rejects payloads above 4 MB, they are queued
+            instance.ingestLogs(rolledFile("large.log", KustoClientInstance.STREAMING_INGESTION_MAX_BYTES + 1).toString());
+            verify(queuedClient).ingestFromFile(any(FileSourceInfo.class), any(IngestionProperties.class));
+            verify(streamingClient, times(1)).ingestFromFile(any(FileSourceInfo.class), any(IngestionProperties.class));
+        } finally {
+            instance.release();
+        }
+    }
+
+    @Test
+    void managedStreamingIngestionUsesTheManagedStreamingClientForAllSizes() throws Exception {
+        KustoClientInstance instance = createInstance(KustoClientInstance.INGESTION_MODE_MANAGED_STREAMING, false);
+        try {
+            instance.ingestLogs(rolledFile("small.log", 1024).toString());
+            instance.ingestLogs(rolledFile("large.log", KustoClientInstance.STREAMING_INGESTION_MAX_BYTES + 1).toString());
+            // the managed streaming client falls back to queued ingestion on its own
+            verify(INGEST_CLIENTS.get(KustoClientInstance.INGESTION_MODE_MANAGED_STREAMING), times(2))
+                    .ingestFromFile(any(FileSourceInfo.class), any(IngestionProperties.class));
+            assertEquals(Collections.singletonList(KustoClientInstance.INGESTION_MODE_MANAGED_STREAMING), REQUESTED_MODES);
+        } finally {
+            instance.release();
+        }
+    }
+
+    @Test
+    void rolledFileIsIngestedAsAFileSourceOfItsExactSize() throws Exception {
+        KustoClientInstance instance = createInstance(null, true);
+        try {
+            Path rolledFile = rolledFile("rolled.log", 12345);
+            instance.ingestLogs(rolledFile.toString());
+            ArgumentCaptor<FileSourceInfo> fileSourceInfo = ArgumentCaptor.forClass(FileSourceInfo.class);
+            verify(INGEST_CLIENTS.get(KustoClientInstance.INGESTION_MODE_QUEUED)).ingestFromFile(fileSourceInfo.capture(),
+                    any(IngestionProperties.class));
+            // the client reads the size from the file itself, and gzips it on its own
+            assertEquals(rolledFile.toString(), fileSourceInfo.getValue().getFilePath());
+            assertEquals(12345, Files.size(Paths.get(fileSourceInfo.getValue().getFilePath())));
+            assertEquals(12345, instance.ingestionMetrics.getBytesIngested());
+        } finally {
+            instance.release();
+        }
+    }
+
+    @Test
+    void archivesAreIngestedAsTheyAre() throws Exception {
+        KustoClientInstance instance = createInstance(null, true);
+        try {
+            // the compress action of the rollover replaced the rolled file with its archive
+            Path archive = rolledFile("rolled.log.gz", 2048);
+            Path zipArchive = rolledFile("other.log.zip", 1024);
+            instance.ingestLogs(directory.resolve("rolled.log").toString());
+            instance.ingestLogs(zipArchive.toString());
+            ArgumentCaptor<FileSourceInfo> fileSourceInfo = ArgumentCaptor.forClass(FileSourceInfo.class);
+            IngestClient queuedClient = INGEST_CLIENTS.get(KustoClientInstance.INGESTION_MODE_QUEUED);
+            verify(queuedClient, times(2)).ingestFromFile(fileSourceInfo.capture(), any(IngestionProperties.class));
+            assertEquals(Arrays.asList(archive.toString(), zipArchive.toString()),
+                    fileSourceInfo.getAllValues().stream().map(FileSourceInfo::getFilePath).collect(Collectors.toList()));
+            verify(queuedClient, never()).ingestFromStream(any(StreamSourceInfo.class), any(IngestionProperties.class));
+        } finally {
+            instance.release();
+        }
+    }
+
+    @Test
+    void coalescedFilesAndBatchesAreGzippedInFlight() throws Exception {
+        KustoClientInstance instance = createInstance(null, true);
+        try {
+            instance.ingestFiles(Arrays.asList(rolledFile("first.log", 1024).toString(), rolledFile("second.log", 1024).toString()));
+            instance.ingestBytes(new byte[1024], 1024);
+            ArgumentCaptor<StreamSourceInfo> streamSourceInfo = ArgumentCaptor.forClass(StreamSourceInfo.class);
+            IngestClient queuedClient = INGEST_CLIENTS.get(KustoClientInstance.INGESTION_MODE_QUEUED);
+            verify(queuedClient, times(2)).ingestFromStream(streamSourceInfo.capture(), any(IngestionProperties.class));
+            for (StreamSourceInfo streamSource : streamSourceInfo.getAllValues()) {
+                assertInstanceOf(KustoGzipInputStream.class, streamSource.getStream());
+                assertEquals(CompressionType.gz, streamSource.getCompressionType());
+            }
+            verify(queuedClient, never()).ingestFromFile(any(FileSourceInfo.class), any(IngestionProperties.class));
+            assertEquals(3072, instance.ingestionMetrics.getBytesIngested());
+        } finally {
+            instance.release();
+        }
+    }
+
+    @Test
+    void coalescedFilesAreUploadedOnADedicatedWorkerWithoutAsyncIngestion() throws Exception {
+        KustoClientInstance instance = createInstance(null, false, 2048);
+        try {
+            IngestClient queuedClient = INGEST_CLIENTS.get(KustoClientInstance.INGESTION_MODE_QUEUED);
+            AtomicReference<String> uploadThread = new AtomicReference<>();
+            when(queuedClient.ingestFromStream(any(StreamSourceInfo.class), any(IngestionProperties.class))).thenAnswer(invocation -> {
+                uploadThread.set(Thread.currentThread().getName());
+                return null;
+            });
+            assertTrue(instance.isAsyncIngestion());
+            instance.submitRolledFile(rolledFile("first.log", 1024).toString());
+            // reaches the coalesce size, the files are handed over on the rollover thread
+            instance.submitRolledFile(rolledFile("second.log", 1024).toString());
+            await().atMost(5, TimeUnit.SECONDS).until(() -> uploadThread.get() != null);
+            // neither the rollover thread nor the retry scheduler uploads
+            assertNotEquals(Thread.currentThread().getName(), uploadThread.get());
+            assertTrue(uploadThread.get().contains("-KustoIngestion-"), uploadThread.get());
+        } finally {
+            instance.release();
+        }
+    }
+
+    @Test
+    void retriesOfSynchronousIngestionRunOnARetryWorker() throws Exception {
+        KustoClientInstance instance = createInstance(null, false);
+        try {
+            IngestClient queuedClient = INGEST_CLIENTS.get(KustoClientInstance.INGESTION_MODE_QUEUED);
+            List<String> uploadThreads = new CopyOnWriteArrayList<>();
+            when(queuedClient.ingestFromFile(any(FileSourceInfo.class), any(IngestionProperties.class))).thenAnswer(invocation -> {
+                uploadThreads.add(Thread.currentThread().getName());
+                if (uploadThreads.size() == 1) {
+                    throw new IngestionServiceException("An ingestion exception has occurred");
+                }
+                return null;
+            });
+            assertFalse(instance.isAsyncIngestion());
+            instance.ingestRolledFile(rolledFile("retried.log", 1024).toString());
+            // the rollover thread runs the first attempt, the retry scheduler only waits out the backoff
+            assertEquals(2, uploadThreads.size());
+            assertEquals(Thread.currentThread().getName(), uploadThreads.get(0));
+            assertTrue(uploadThreads.get(1).contains("-KustoRetryUpload-"), uploadThreads.get(1));
+            assertEquals(1, instance.ingestionMetrics.getFilesIngested());
+        } finally {
+            instance.release();
+        }
+    }
+
+    @Test
+    void replayedFileRejectedByTheServiceIsSetAside() throws Exception {
+        KustoClientInstance instance = createInstance(null, false);
+        try {
+            when(INGEST_CLIENTS.get(KustoClientInstance.INGESTION_MODE_QUEUED).ingestFromFile(any(FileSourceInfo.class),
+                    any(IngestionProperties.class))).thenThrow(new RuntimeException(new DataServiceException("file", "Bad mapping", true)));
+            Files.createDirectories(directory.resolve(KustoClientInstance.BACKOUT_DIRECTORY));
+            Path backedOutFile = rolledFile(KustoClientInstance.BACKOUT_DIRECTORY + File.separator + "rejected.log", 1024);
+            CompletableFuture<IngestionResult> replay = instance.replayBackedOutFile(backedOutFile.toString());
+            assertThrows(ExecutionException.class, () -> replay.get(10, TimeUnit.SECONDS));
+            // not replayed again on the next scan
+            assertFalse(Files.exists(backedOutFile));
+            assertTrue(Files.exists(backedOutFile.resolveSibling(KustoClientInstance.FAILED_DIRECTORY).resolve("rejected.log")));
+            assertEquals(1, instance.ingestionMetrics.getFailures());
+        } finally {
+            instance.release();
+        }
+    }
+
+    @Test
+    void setAsideFilesLeftByAPreviousRunAreCounted() throws Exception {
+        KustoClientInstance instance = createInstance(null, false);
+        try {
+            Files.createDirectories(directory.resolve(KustoClientInstance.BACKOUT_DIRECTORY).resolve(KustoClientInstance.FAILED_DIRECTORY));
+            rolledFile(KustoClientInstance.BACKOUT_DIRECTORY + File.separator + "backed-out.log", 1024);
+            rolledFile(KustoClientInstance.BACKOUT_DIRECTORY + File.separator + KustoClientInstance.FAILED_DIRECTORY + File.separator
+                    + "rejected.log", 512);
+            instance.watchBackoutDirectory(directory);
+            assertEquals(1536, instance.ingestionMetrics.getSpoolBytes());
+        } finally {
+            instance.release();
+        }
+    }
+
+    /*
+     * A real instance for a destination of its own, whose ingest clients come from the RecordingIngestClientSupplier.
+     * It is released by the test.
+     */
+    private static KustoClientInstance createInstance(String ingestionMode, boolean compressUploads) throws URISyntaxException {
+        return createInstance(ingestionMode, compressUploads, 0);
+    }
+
+    private static KustoClientInstance createInstance(String ingestionMode, boolean compressUploads, long coalesceBytes)
+            throws URISyntaxException {
+        KustoLog4jConfig kustoLog4jConfig = KustoLog4jConfig.newBuilder()
+                .setClusterIngestUrl("https://ingest-test.kusto.windows.net")
+                .setUseInteractiveAuth(false)
+                .setUseAzCliAuth(false)
+                .setDbName("test")
+                .setTableName("test" + DESTINATIONS.incrementAndGet())
+                .setFlushImmediately(false)
+                .setBackOffMinSeconds(1)
+                .setBackOffMaxSeconds(1)
+                .setAsyncIngestion(false)
+                .setIngestionQueueCapacity(1)
+                .setIngestionWorkers(1)
+                .setCompressUploads(compressUploads)
+                .setCoalesceBytes(coalesceBytes)
+                .setCoalesceMaxDelaySeconds(60)
+                .setIngestionMode(ingestionMode)
+                .setReplayBackout(false)
+                .setReplayIntervalSeconds(60)
+                .setReplayBytesPerSecond(0L)
+                .setReplayConcurrency(1)
+                .setMaxConcurrentUploads(0)
+                .setCircuitBreakerFailures(0)
+                .setCircuitBreakerOpenSeconds(60)
+                .setShutdownTimeoutSeconds(1)
+                .setClientInitialization(KustoClientInstance.CLIENT_INITIALIZATION_LAZY)
+                .setStatusTracking(false)
+                .setStatusTrackingCapacity(0)
+                .setStatusPollIntervalSeconds(60)
+                .setDeduplicationIndexCapacity(0)
+                .setSpoolQuotaBytes(0L)
+                .setSpoolPriority(0)
+                .setVirtualThreads(false)
+                .setIngestClientSupplier(RecordingIngestClientSupplier.class.getName())
+                .build();
+        return KustoClientInstance.getInstance(kustoLog4jConfig);
+    }
+
+    private Path rolledFile(String name, long size) throws IOException {
+        byte[] line = "Log line\n".getBytes(StandardCharsets.UTF_8);
+        byte[] data = new byte[(int) size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = line[i % line.length];
+        }
+        return Files.write(directory.resolve(name), data);
+    }
+
+    public static final class RecordingIngestClientSupplier implements KustoIngestClientSupplier {
+        @Override
+        public IngestClient createClient(String ingestionMode) {
+            REQUESTED_MODES.add(ingestionMode);
+            return INGEST_CLIENTS.get(ingestionMode);
+        }
+    }
+}
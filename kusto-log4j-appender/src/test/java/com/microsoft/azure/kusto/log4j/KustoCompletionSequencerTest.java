@@ -0,0 +1,96 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+class KustoCompletionSequencerTest {
+
+    @Test
+    void completionsRunInSubmissionOrder() throws Exception {
+        KustoCompletionSequencer sequencer = new KustoCompletionSequencer();
+        List<String> completions = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<String> first = new CompletableFuture<>();
+        CompletableFuture<String> second = new CompletableFuture<>();
+        CompletableFuture<String> third = new CompletableFuture<>();
+        CompletableFuture<String> orderedFirst = sequencer.inOrder(first, (result, error) -> completions.add("first"));
+        CompletableFuture<String> orderedSecond = sequencer.inOrder(second, (result, error) -> completions.add("second"));
+        CompletableFuture<String> orderedThird = sequencer.inOrder(third, (result, error) -> completions.add("third"));
+        orderedThird.thenRun(() -> completions.add("third dependent"));
+        third.complete("3");
+        second.completeExceptionally(new IllegalStateException("failed"));
+        assertTrue(completions.isEmpty());
+        assertFalse(orderedThird.isDone());
+        assertEquals(3, sequencer.getPendingCompletions());
+        first.complete("1");
+        assertEquals(Arrays.asList("first", "second", "third", "third dependent"), completions);
+        assertEquals("1", orderedFirst.get());
+        ExecutionException failure = assertThrows(ExecutionException.class, orderedSecond::get);
+        assertInstanceOf(IllegalStateException.class, failure.getCause());
+        assertEquals(0, sequencer.getPendingCompletions());
+    }
+
+    @Test
+    void awaitThenAbandonPendingCompletions() throws Exception {
+        KustoCompletionSequencer sequencer = new KustoCompletionSequencer();
+        List<String> completions = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<String> first = new CompletableFuture<>();
+        CompletableFuture<String> second = new CompletableFuture<>();
+        sequencer.inOrder(first, (result, error) -> completions.add("first " + result));
+        CompletableFuture<String> orderedSecond = sequencer.inOrder(second,
+                (result, error) -> completions.add("second " + error.getMessage()));
+        first.complete("done");
+        assertFalse(sequencer.awaitCompletions(200, TimeUnit.MILLISECONDS));
+        assertEquals(Collections.singletonList("first done"), completions);
+        assertEquals(1, sequencer.abandon(new IllegalStateException("stopped")));
+        assertEquals(Arrays.asList("first done", "second stopped"), completions);
+        ExecutionException failure = assertThrows(ExecutionException.class, orderedSecond::get);
+        assertEquals("stopped", failure.getCause().getMessage());
+        // the outcome of an abandoned upload is ignored
+        second.complete("late");
+        assertEquals(2, completions.size());
+        assertTrue(sequencer.awaitCompletions(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void completionsRunInSubmissionOrderAcrossThreads() throws Exception {
+        KustoCompletionSequencer sequencer = new KustoCompletionSequencer();
+        List<Integer> completions = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService uploads = Executors.newFixedThreadPool(8);
+        try {
+            CompletableFuture<?> last = null;
+            for (int i = 0; i < 200; i++) {
+                int index = i;
+                CompletableFuture<Integer> upload = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        TimeUnit.MICROSECONDS.sleep(ThreadLocalRandom.current().nextInt(500));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return index;
+                }, uploads);
+                last = sequencer.inOrder(upload, (result, error) -> completions.add(result));
+            }
+            last.get(10, TimeUnit.SECONDS);
+        } finally {
+            uploads.shutdownNow();
+        }
+        assertEquals(200, completions.size());
+        for (int i = 0; i < completions.size(); i++) {
+            assertEquals(i, completions.get(i));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+
+class KustoCsvLayoutTest {
+
+    @Test
+    void defaultColumnsMatchCsvLogEventLayoutOrdinals() {
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("requestId", "42");
+        LogEvent event = Log4jLogEvent.newBuilder().setLoggerName("app").setLevel(Level.WARN).setMessage(new SimpleMessage("say \"hi\", bye"))
+                .setContextData(contextData).setThreadName("main").setThreadId(3).setTimeMillis(1000).build();
+        KustoCsvLayout layout = KustoCsvLayout.createLayout(null);
+        assertEquals("0,1000,WARN,3,main,5,\"say \"\"hi\"\", bye\",,app,,,,\"{\"\"requestId\"\":\"\"42\"\"}\",[]\n", layout.toSerializable(event));
+        assertFalse(layout.requiresLocation());
+    }
+
+    @Test
+    void quotesOnlyWhenNeeded() {
+        KustoCsvLayout layout = KustoCsvLayout.createLayout("level,-,formattedmessage");
+        assertEquals("INFO,,plain message\n", layout.toSerializable(logEvent("plain message")));
+        assertEquals("INFO,,\"two\nlines\"\n", layout.toSerializable(logEvent("two\nlines")));
+    }
+
+    @Test
+    void encodeMatchesToSerializable() {
+        KustoCsvLayout layout = KustoCsvLayout.createLayout("timestamp,level,formattedmessage,thrownproxy,source");
+        LogEvent event = Log4jLogEvent.newBuilder().setLoggerName("app").setLevel(Level.ERROR).setMessage(new SimpleMessage("failed"))
+                .setThrown(new IllegalStateException("boom")).build();
+        KustoBatchBuffer buffer = new KustoBatchBuffer(16);
+        layout.encode(event, buffer);
+        assertEquals(layout.toSerializable(event), new String(buffer.array(), 0, buffer.size(), StandardCharsets.UTF_8));
+        assertTrue(layout.requiresLocation());
+    }
+
+    @Test
+    void unknownFieldFails() {
+        assertThrows(IllegalArgumentException.class, () -> KustoCsvLayout.createLayout("level,text"));
+    }
+
+    private static LogEvent logEvent(String message) {
+        return Log4jLogEvent.newBuilder().setLoggerName("app").setLevel(Level.INFO).setMessage(new SimpleMessage(message)).build();
+    }
+}
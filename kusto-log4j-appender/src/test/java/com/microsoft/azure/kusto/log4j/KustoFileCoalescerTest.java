@@ -0,0 +1,70 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+class KustoFileCoalescerTest {
+
+    private final List<List<String>> flushedBatches = new CopyOnWriteArrayList<>();
+    private final List<Path> rolledFiles = new ArrayList<>();
+    private ScheduledExecutorService scheduler;
+
+    @BeforeEach
+    public void beforeEach() throws IOException {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        for (int i = 0; i < 3; i++) {
+            Path rolledFile = Files.createTempFile("coalesce", ".log");
+            Files.write(rolledFile, new byte[400]);
+            rolledFiles.add(rolledFile);
+        }
+    }
+
+    @AfterEach
+    public void afterEach() throws IOException {
+        scheduler.shutdownNow();
+        for (Path rolledFile : rolledFiles) {
+            Files.deleteIfExists(rolledFile);
+        }
+    }
+
+    @Test
+    void flushesWhenTargetSizeReached() {
+        KustoFileCoalescer coalescer = new KustoFileCoalescer(1000, TimeUnit.MINUTES.toMillis(5), scheduler, flushedBatches::add);
+        coalescer.add(rolledFiles.get(0).toString());
+        coalescer.add(rolledFiles.get(1).toString());
+        assertTrue(flushedBatches.isEmpty());
+        assertEquals(800, coalescer.getPendingBytes());
+        coalescer.add(rolledFiles.get(2).toString());
+        assertEquals(1, flushedBatches.size());
+        assertEquals(Arrays.asList(rolledFiles.get(0).toString(), rolledFiles.get(1).toString(), rolledFiles.get(2).toString()),
+                flushedBatches.get(0));
+        assertEquals(0, coalescer.getPendingFiles());
+    }
+
+    @Test
+    void flushesWhenMaxDelayReached() {
+        KustoFileCoalescer coalescer = new KustoFileCoalescer(1000, 200, scheduler, flushedBatches::add);
+        coalescer.add(rolledFiles.get(0).toString());
+        await().atMost(5, TimeUnit.SECONDS).until(() -> flushedBatches.size() == 1);
+        assertEquals(1, flushedBatches.get(0).size());
+        assertEquals(0, coalescer.getPendingBytes());
+    }
+}
@@ -12,7 +12,6 @@ import org.mockito.MockedStatic;
 import org.mockito.Mockito;
 
 import com.microsoft.azure.kusto.data.exceptions.DataServiceException;
-import com.microsoft.azure.kusto.data.exceptions.KustoDataExceptionBase;
 import com.microsoft.azure.kusto.ingest.exceptions.IngestionClientException;
 import com.microsoft.azure.kusto.ingest.exceptions.IngestionServiceException;
 
@@ -31,6 +30,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 class KustoFlushActionTest {
@@ -74,6 +74,24 @@ class KustoFlushActionTest {
         }
     }
 
+    @Test
+    void executeAsyncSubmitsToWorkers() {
+        ArgumentCaptor<String> fileNameCaptor = ArgumentCaptor.forClass(String.class);
+        when(kustoClientInstance.isAsyncIngestion()).thenReturn(true);
+        Mockito.doNothing().when(kustoClientInstance).submitRolledFile(fileNameCaptor.capture());
+        try (MockedStatic<KustoClientInstance> staticSingleton = mockStatic(KustoClientInstance.class)) {
+            staticSingleton.when(KustoClientInstance::getInstance).thenReturn(kustoClientInstance);
+            kustoFlushAction.execute();
+            assertTrue(Files.exists(Paths.get(FILE_TARGET_ATTRIBUTE)));
+            assertTrue(kustoFlushAction.isComplete());
+            assertEquals(FILE_TARGET_ATTRIBUTE, fileNameCaptor.getValue());
+            // the upload itself is left to the ingestion workers
+            verify(kustoClientInstance, never()).ingestRolledFile(anyString());
+        } catch (IOException e) {
+            fail("IOException performing ingestFile() test");
+        }
+    }
+
     @ParameterizedTest
     @CsvSource({"false,3", "true,1"})
     void executeFailure(boolean isPermanent, int retries) throws IngestionClientException, IOException, IngestionServiceException {
@@ -86,16 +104,25 @@ class KustoFlushActionTest {
         RetryConfig retryConfig = RetryConfig.custom()
                 .intervalFunction(IntervalFunction.ofExponentialBackoff(1,
                         IntervalFunction.DEFAULT_MULTIPLIER, 5))
-                .retryOnException(this::isTransientException)
+                .retryOnException(KustoClientInstance::isTransientException)
                 .failAfterMaxAttempts(false).maxAttempts(3)
                 .build();
         Exception exceptionToThrow = isPermanent ? new RuntimeException(new DataServiceException("file", "Bad mapping", true))
                 : new IngestionServiceException("An ingestion exception has occurred");
         kustoClientInstance.ingestionRetry = Retry.of(KustoClientInstance.INGESTION_RETRIES, retryConfig);
+        kustoClientInstance.ingestionMetrics = new KustoIngestionMetrics(null, () -> 0);
+        kustoClientInstance.spoolUsage = new KustoSpoolQuota().register(0, 0, kustoClientInstance.ingestionMetrics);
+        kustoClientInstance.circuitBreaker = new KustoCircuitBreaker(5, 60_000, state -> {
+        });
+        kustoClientInstance.retryScheduler = Executors.newSingleThreadScheduledExecutor();
+        kustoClientInstance.retryWorkers = Executors.newCachedThreadPool();
+        kustoClientInstance.completionSequencer = new KustoCompletionSequencer();
         Mockito.doCallRealMethod().when(kustoClientInstance).backOutFile(anyString());
         Mockito.doCallRealMethod().when(kustoClientInstance).ingestRolledFile(anyString());
+        Mockito.doCallRealMethod().when(kustoClientInstance).ingestRolledFileAsync(anyString());
         when(kustoClientInstance.ingestLogs(fileNameCaptor.capture())).thenThrow(exceptionToThrow);
-        try (MockedStatic<KustoClientInstance> staticSingleton = mockStatic(KustoClientInstance.class)) {
+        // the retries and the backout go through the real static helpers, only the default instance is stubbed
+        try (MockedStatic<KustoClientInstance> staticSingleton = mockStatic(KustoClientInstance.class, CALLS_REAL_METHODS)) {
             staticSingleton.when(KustoClientInstance::getInstance).thenReturn(kustoClientInstance);
             kustoFlushAction.execute();
             await().atMost(10, TimeUnit.SECONDS).until(isActionCompleted());
@@ -106,25 +133,24 @@ class KustoFlushActionTest {
             fail("IOException performing ingestFile() test", e);
         }
         verify(kustoClientInstance, times(retries)).ingestLogs(anyString());
+        assertEquals(1, kustoClientInstance.ingestionMetrics.getFailures());
+        assertEquals(0, kustoClientInstance.ingestionMetrics.getPendingIngestions());
+        kustoClientInstance.retryScheduler.shutdownNow();
+        kustoClientInstance.retryWorkers.shutdownNow();
     }
 
     @Test
-    void close() {
-        Mockito.doNothing().when(kustoClientInstance).close();
+    void closeLeavesSharedInstanceOpen() {
         try (MockedStatic<KustoClientInstance> staticSingleton = mockStatic(KustoClientInstance.class)) {
             staticSingleton.when(KustoClientInstance::getInstance).thenReturn(kustoClientInstance);
             kustoFlushAction.close();
-            staticSingleton.verify(KustoClientInstance::getInstance);
+            // the instance is drained and closed when its strategies stop
+            verify(kustoClientInstance, never()).close();
+            verify(kustoClientInstance, never()).release();
             assertFalse(kustoFlushAction.isComplete());
         }
     }
 
-    private boolean isTransientException(Throwable exception) {
-        Throwable innerException = exception.getCause();
-        return !(innerException instanceof KustoDataExceptionBase &&
-                ((KustoDataExceptionBase) innerException).isPermanent());
-    }
-
     private Callable<Boolean> isActionCompleted() {
         return () -> kustoFlushAction.isComplete();
     }
@@ -0,0 +1,48 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+class KustoGzipInputStreamTest {
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 1024, 512 * 1024})
+    void compressedStreamRoundTrips(int lines) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            builder.append("2024-01-01 00:00:00,INFO,main,com.example.App,Log line ").append(i).append('\n');
+        }
+        byte[] raw = builder.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] compressed;
+        try (KustoGzipInputStream gzipInputStream = new KustoGzipInputStream(new ByteArrayInputStream(raw), Deflater.DEFAULT_COMPRESSION)) {
+            compressed = readFully(gzipInputStream);
+            assertEquals(raw.length, gzipInputStream.getBytesRead());
+        }
+        try (InputStream decompressed = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            assertArrayEquals(raw, readFully(decompressed));
+        }
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[777];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+}
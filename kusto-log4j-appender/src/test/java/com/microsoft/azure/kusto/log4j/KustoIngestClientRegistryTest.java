@@ -0,0 +1,108 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.junit.jupiter.api.Test;
+
+import com.microsoft.azure.kusto.ingest.IngestClient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class KustoIngestClientRegistryTest {
+
+    @Test
+    void clientIsSharedAndClosedOnLastRelease() throws URISyntaxException, IOException {
+        AtomicInteger created = new AtomicInteger();
+        IngestClient ingestClient = mock(IngestClient.class);
+        KustoIngestClientRegistry.ClientFactory clientFactory = () -> {
+            created.incrementAndGet();
+            return ingestClient;
+        };
+        IngestClient first = KustoIngestClientRegistry.acquire("cluster|app|queued", clientFactory);
+        IngestClient second = KustoIngestClientRegistry.acquire("cluster|app|queued", clientFactory);
+        assertSame(first, second);
+        verify(ingestClient, never()).close();
+        KustoIngestClientRegistry.release("cluster|app|queued");
+        verify(ingestClient, never()).close();
+        KustoIngestClientRegistry.release("cluster|app|queued");
+        verify(ingestClient, times(1)).close();
+        // a new client is created once the shared one is closed
+        IngestClient third = KustoIngestClientRegistry.acquire("cluster|app|queued", () -> mock(IngestClient.class));
+        assertNotSame(first, third);
+        KustoIngestClientRegistry.release("cluster|app|queued");
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    void clientsAreSeparatePerKey() throws URISyntaxException {
+        IngestClient queued = KustoIngestClientRegistry.acquire("cluster|app|queued", () -> mock(IngestClient.class));
+        IngestClient streaming = KustoIngestClientRegistry.acquire("cluster|app|streaming", () -> mock(IngestClient.class));
+        assertNotSame(queued, streaming);
+        KustoIngestClientRegistry.release("cluster|app|queued");
+        KustoIngestClientRegistry.release("cluster|app|streaming");
+    }
+
+    @Test
+    void slowCreationOnlyHoldsBackItsKey() throws Exception {
+        IngestClient slowClient = mock(IngestClient.class);
+        CountDownLatch creating = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        AtomicInteger created = new AtomicInteger();
+        KustoIngestClientRegistry.ClientFactory slowFactory = () -> {
+            created.incrementAndGet();
+            creating.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return slowClient;
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<IngestClient> first = executor.submit(() -> KustoIngestClientRegistry.acquire("slow|app|queued", slowFactory));
+            assertTrue(creating.await(5, TimeUnit.SECONDS));
+            Future<IngestClient> second = executor.submit(() -> KustoIngestClientRegistry.acquire("slow|app|queued", slowFactory));
+            // another key does not wait for the client being created
+            IngestClient other = KustoIngestClientRegistry.acquire("other|app|queued", () -> mock(IngestClient.class));
+            KustoIngestClientRegistry.release("other|app|queued");
+            assertNotSame(slowClient, other);
+            assertFalse(second.isDone());
+            proceed.countDown();
+            assertSame(slowClient, first.get(5, TimeUnit.SECONDS));
+            assertSame(slowClient, second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, created.get());
+            KustoIngestClientRegistry.release("slow|app|queued");
+            KustoIngestClientRegistry.release("slow|app|queued");
+            verify(slowClient, times(1)).close();
+        } finally {
+            proceed.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void failedCreationIsTriedAgain() throws URISyntaxException {
+        assertThrows(URISyntaxException.class, () -> KustoIngestClientRegistry.acquire("invalid|app|queued", () -> {
+            throw new URISyntaxException("invalid", "Illegal character");
+        }));
+        IngestClient ingestClient = mock(IngestClient.class);
+        assertSame(ingestClient, KustoIngestClientRegistry.acquire("invalid|app|queued", () -> ingestClient));
+        KustoIngestClientRegistry.release("invalid|app|queued");
+    }
+}
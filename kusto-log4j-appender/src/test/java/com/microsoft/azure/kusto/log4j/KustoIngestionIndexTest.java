@@ -0,0 +1,147 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+class KustoIngestionIndexTest {
+
+    private Path tempDir;
+
+    @BeforeEach
+    public void beforeEach() throws IOException {
+        tempDir = Files.createTempDirectory("index");
+    }
+
+    @AfterEach
+    public void afterEach() throws IOException {
+        try (Stream<Path> files = Files.walk(tempDir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Test
+    void stateSurvivesReload() {
+        Path indexFile = tempDir.resolve("index").resolve("ingested.idx");
+        KustoIngestionIndex index = new KustoIngestionIndex(indexFile, 10);
+        index.record("aa", KustoIngestionIndex.State.UPLOADING);
+        index.record("aa", KustoIngestionIndex.State.ACKNOWLEDGED);
+        index.record("bb", KustoIngestionIndex.State.UPLOADING);
+        index.close();
+
+        KustoIngestionIndex reloaded = new KustoIngestionIndex(indexFile, 10);
+        assertTrue(reloaded.isAcknowledged("aa"));
+        // an upload that did not finish is not taken as ingested
+        assertFalse(reloaded.isAcknowledged("bb"));
+        assertEquals(KustoIngestionIndex.State.UPLOADING, reloaded.getState("bb"));
+        assertNull(reloaded.getState("cc"));
+        reloaded.close();
+    }
+
+    @Test
+    void failedUploadIsNotLeftUploading() {
+        Path indexFile = tempDir.resolve("ingested.idx");
+        KustoIngestionIndex index = new KustoIngestionIndex(indexFile, 10);
+        index.record("aa", KustoIngestionIndex.State.UPLOADING);
+        index.record("aa", KustoIngestionIndex.State.FAILED);
+        index.close();
+
+        KustoIngestionIndex reloaded = new KustoIngestionIndex(indexFile, 10);
+        assertEquals(KustoIngestionIndex.State.FAILED, reloaded.getState("aa"));
+        assertFalse(reloaded.isAcknowledged("aa"));
+        // a replay of the backed out file ingests it
+        reloaded.record("aa", KustoIngestionIndex.State.UPLOADING);
+        reloaded.record("aa", KustoIngestionIndex.State.ACKNOWLEDGED);
+        assertTrue(reloaded.isAcknowledged("aa"));
+        reloaded.close();
+    }
+
+    @Test
+    void oldestHashIsForgotten() {
+        KustoIngestionIndex index = new KustoIngestionIndex(tempDir.resolve("ingested.idx"), 2);
+        index.record("aa", KustoIngestionIndex.State.ACKNOWLEDGED);
+        index.record("bb", KustoIngestionIndex.State.ACKNOWLEDGED);
+        // updating a hash makes it the most recent one
+        index.record("aa", KustoIngestionIndex.State.ACKNOWLEDGED);
+        index.record("cc", KustoIngestionIndex.State.ACKNOWLEDGED);
+        assertEquals(2, index.size());
+        assertTrue(index.isAcknowledged("aa"));
+        assertFalse(index.isAcknowledged("bb"));
+        assertTrue(index.isAcknowledged("cc"));
+        index.close();
+    }
+
+    @Test
+    void fileIsCompacted() throws IOException {
+        Path indexFile = tempDir.resolve("ingested.idx");
+        KustoIngestionIndex index = new KustoIngestionIndex(indexFile, 2);
+        for (int i = 0; i < 10; i++) {
+            index.record("hash" + i, KustoIngestionIndex.State.ACKNOWLEDGED);
+        }
+        index.close();
+        assertTrue(Files.readAllLines(indexFile, StandardCharsets.UTF_8).size() <= 4);
+        KustoIngestionIndex reloaded = new KustoIngestionIndex(indexFile, 2);
+        assertTrue(reloaded.isAcknowledged("hash9"));
+        assertTrue(reloaded.isAcknowledged("hash8"));
+        assertEquals(2, reloaded.size());
+        reloaded.close();
+    }
+
+    @Test
+    void truncatedLinesAreSkipped() throws IOException {
+        Path indexFile = tempDir.resolve("ingested.idx");
+        Files.write(indexFile, "aa ACKNOWLEDGED\nbb ACKNOWL".getBytes(StandardCharsets.UTF_8));
+        KustoIngestionIndex index = new KustoIngestionIndex(indexFile, 10);
+        assertTrue(index.isAcknowledged("aa"));
+        assertNull(index.getState("bb"));
+        index.close();
+    }
+
+    @Test
+    void keyDependsOnNameSizeAndModificationTime() throws IOException {
+        Path first = Files.write(tempDir.resolve("first.log"), "line\n".getBytes(StandardCharsets.UTF_8));
+        String firstKey = KustoIngestionIndex.key(first);
+        assertEquals(64, firstKey.length());
+        // a backout moves the file, keeping its name and modification time
+        Files.createDirectories(tempDir.resolve("backout"));
+        Path backedOut = Files.move(first, tempDir.resolve("backout").resolve("first.log"));
+        assertEquals(firstKey, KustoIngestionIndex.key(backedOut));
+        Path second = Files.write(tempDir.resolve("second.log"), "line\n".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(second, Files.getLastModifiedTime(backedOut));
+        assertNotEquals(firstKey, KustoIngestionIndex.key(second));
+        Files.write(backedOut, "other\n".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(backedOut, Files.getLastModifiedTime(second));
+        assertNotEquals(firstKey, KustoIngestionIndex.key(backedOut));
+    }
+
+    @Test
+    void destinationsWithTheSameIndexFileShareTheIndex() throws IOException {
+        Path indexFile = tempDir.resolve("ingested.idx");
+        KustoIngestionIndex first = KustoIngestionIndex.open(indexFile, 10);
+        KustoIngestionIndex second = KustoIngestionIndex.open(tempDir.resolve("other").resolve("..").resolve("ingested.idx"), 10);
+        assertSame(first, second);
+        first.record("aa", KustoIngestionIndex.State.ACKNOWLEDGED);
+        first.close();
+        // still open for the second destination
+        second.record("bb", KustoIngestionIndex.State.ACKNOWLEDGED);
+        second.close();
+        assertEquals(2, Files.readAllLines(indexFile).size());
+        KustoIngestionIndex reopened = KustoIngestionIndex.open(indexFile, 10);
+        assertNotSame(first, reopened);
+        assertTrue(reopened.isAcknowledged("bb"));
+        reopened.close();
+    }
+}
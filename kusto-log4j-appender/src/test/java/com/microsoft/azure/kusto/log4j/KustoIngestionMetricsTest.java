@@ -0,0 +1,92 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+class KustoIngestionMetricsTest {
+
+    @Test
+    void countsAndHistogram() {
+        KustoIngestionMetrics metrics = new KustoIngestionMetrics(null, () -> 2, () -> 1000);
+        metrics.onIngested("a.log", 1, 100, 50);
+        metrics.onIngested("2 coalesced files", 2, 300, 3000);
+        metrics.onRetry("b.log", new RuntimeException());
+        metrics.onFailed("b.log", new RuntimeException());
+        metrics.onBackout("b.log");
+        metrics.onIngestionStarted(500);
+        assertEquals(3, metrics.getFilesIngested());
+        assertEquals(400, metrics.getBytesIngested());
+        assertEquals(1, metrics.getRetries());
+        assertEquals(1, metrics.getFailures());
+        assertEquals(1, metrics.getBackouts());
+        assertEquals(3, metrics.getPendingIngestions());
+        assertEquals(1500, metrics.getPendingBytes());
+        assertEquals(3000, metrics.getMaxUploadLatencyMillis());
+        assertEquals(1525, metrics.getMeanUploadLatencyMillis(), 0.001);
+        Map<String, Long> histogram = metrics.getUploadLatencyHistogram();
+        assertEquals(1L, histogram.get("100"));
+        assertEquals(1L, histogram.get("5000"));
+        assertEquals(0L, histogram.get("+Inf"));
+    }
+
+    @Test
+    void listenerFailureIsIgnored() {
+        KustoIngestionListener listener = mock(KustoIngestionListener.class);
+        doThrow(new IllegalStateException("listener")).when(listener).onBackout(anyString());
+        KustoIngestionMetrics metrics = new KustoIngestionMetrics(listener, () -> 0);
+        metrics.onBackout("c.log");
+        metrics.onIngestionStarted(100);
+        verify(listener).onBackout("c.log");
+        verify(listener).onBacklogChanged(1);
+        assertEquals(1, metrics.getBackouts());
+    }
+
+    @Test
+    void circuitState() {
+        KustoIngestionListener listener = mock(KustoIngestionListener.class);
+        KustoIngestionMetrics metrics = new KustoIngestionMetrics(listener, () -> 0);
+        assertEquals("CLOSED", metrics.getCircuitState());
+        metrics.onCircuitStateChanged(KustoCircuitBreaker.State.OPEN);
+        metrics.onShortCircuited();
+        metrics.onCircuitStateChanged(KustoCircuitBreaker.State.HALF_OPEN);
+        metrics.onCircuitStateChanged(KustoCircuitBreaker.State.OPEN);
+        assertEquals("OPEN", metrics.getCircuitState());
+        assertEquals(2, metrics.getCircuitOpenings());
+        assertEquals(1, metrics.getShortCircuitedAttempts());
+        verify(listener, times(2)).onCircuitStateChanged("OPEN");
+        verify(listener).onCircuitStateChanged("HALF_OPEN");
+    }
+
+    @Test
+    void registerAndUnregister() throws Exception {
+        KustoIngestionMetrics metrics = new KustoIngestionMetrics(null, () -> 0);
+        metrics.register("https://ingest-test.kusto.windows.net", "db", "table", "mapping");
+        ObjectName objectName = metrics.getObjectName();
+        assertEquals("\"https://ingest-test.kusto.windows.net\"", objectName.getKeyProperty("cluster"));
+        assertEquals("\"mapping\"", objectName.getKeyProperty("mapping"));
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(mBeanServer.isRegistered(objectName));
+        metrics.onIngested("a.log", 1, 10, 10);
+        assertEquals(10L, mBeanServer.getAttribute(objectName, "BytesIngested"));
+        // a second instance for the same destination gets its own name and leaves the bean of the first alone
+        KustoIngestionMetrics other = new KustoIngestionMetrics(null, () -> 0);
+        other.register("https://ingest-test.kusto.windows.net", "db", "table", "mapping");
+        assertNotEquals(objectName, other.getObjectName());
+        assertEquals("2", other.getObjectName().getKeyProperty("instance"));
+        assertEquals(10L, mBeanServer.getAttribute(objectName, "BytesIngested"));
+        assertEquals(0L, mBeanServer.getAttribute(other.getObjectName(), "BytesIngested"));
+        other.unregister();
+        assertTrue(mBeanServer.isRegistered(objectName));
+        metrics.unregister();
+        assertFalse(mBeanServer.isRegistered(objectName));
+    }
+}
@@ -0,0 +1,109 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.microsoft.azure.kusto.ingest.result.IngestionResult;
+import com.microsoft.azure.kusto.ingest.result.IngestionStatus;
+import com.microsoft.azure.kusto.ingest.result.OperationStatus;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.net.URISyntaxException;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+class KustoIngestionStatusTrackerTest {
+
+    private KustoIngestionListener listener;
+    private KustoIngestionMetrics metrics;
+    private long now;
+    private KustoIngestionStatusTracker tracker;
+
+    @BeforeEach
+    public void beforeEach() {
+        listener = mock(KustoIngestionListener.class);
+        metrics = new KustoIngestionMetrics(listener, () -> 0);
+        now = 1_000_000;
+        tracker = new KustoIngestionStatusTracker(2, metrics, () -> now);
+    }
+
+    @Test
+    void reportsLatencyOnceIngested() throws URISyntaxException {
+        IngestionStatus status = mockStatus(OperationStatus.Pending, null);
+        IngestionResult result = mockResult(status);
+        tracker.track("a.log", result);
+        assertEquals(1, metrics.getTrackedIngestions());
+        tracker.poll();
+        // still pending, polled again on the next pass
+        assertEquals(1, tracker.getTrackedIngestions());
+        assertEquals(0, metrics.getConfirmedIngestions());
+        when(status.getStatus()).thenReturn(OperationStatus.Succeeded);
+        when(status.getUpdatedOn()).thenReturn(Instant.ofEpochMilli(now + 90_000));
+        tracker.poll();
+        assertEquals(0, tracker.getTrackedIngestions());
+        assertEquals(1, metrics.getConfirmedIngestions());
+        assertEquals(90_000, metrics.getMaxIngestionLatencyMillis());
+        assertEquals(1L, metrics.getIngestionLatencyHistogram().get("120000"));
+        verify(listener).onIngestionConfirmed("a.log", 90_000);
+    }
+
+    @Test
+    void reportsLateFailure() throws URISyntaxException {
+        IngestionStatus status = mockStatus(OperationStatus.Failed, Instant.ofEpochMilli(now));
+        when(status.getErrorCodeString()).thenReturn("BadRequest_InvalidBlob");
+        tracker.track("b.log", mockResult(status));
+        tracker.poll();
+        assertEquals(1, metrics.getLateFailures());
+        assertEquals(0, metrics.getConfirmedIngestions());
+        verify(listener).onLateFailure(eq("b.log"), contains("BadRequest_InvalidBlob"));
+        assertEquals(0, tracker.getTrackedIngestions());
+    }
+
+    @Test
+    void oldestIsEvictedWhenFull() throws URISyntaxException {
+        tracker.track("1.log", mockResult(mockStatus(OperationStatus.Pending, null)));
+        tracker.track("2.log", mockResult(mockStatus(OperationStatus.Pending, null)));
+        tracker.track("3.log", mockResult(mockStatus(OperationStatus.Pending, null)));
+        assertEquals(2, tracker.getTrackedIngestions());
+        assertEquals(1, metrics.getUntrackedIngestions());
+    }
+
+    @Test
+    void pendingIsDroppedAfterMaxTrackingTime() throws URISyntaxException {
+        IngestionResult result = mockResult(mockStatus(OperationStatus.Queued, null));
+        tracker.track("c.log", result);
+        now += KustoIngestionStatusTracker.MAX_TRACKING_MILLIS;
+        tracker.poll();
+        assertEquals(0, tracker.getTrackedIngestions());
+        assertEquals(1, metrics.getUntrackedIngestions());
+    }
+
+    @Test
+    void statusQueryFailureKeepsTracking() throws URISyntaxException {
+        IngestionResult result = mock(IngestionResult.class);
+        when(result.getIngestionStatusCollection()).thenThrow(new IllegalStateException("status table unreachable"));
+        tracker.track("d.log", result);
+        now += TimeUnit.MINUTES.toMillis(1);
+        tracker.poll();
+        assertEquals(1, tracker.getTrackedIngestions());
+        assertEquals(0, metrics.getUntrackedIngestions());
+    }
+
+    private static IngestionStatus mockStatus(OperationStatus operationStatus, Instant updatedOn) {
+        IngestionStatus status = mock(IngestionStatus.class);
+        when(status.getStatus()).thenReturn(operationStatus);
+        when(status.getUpdatedOn()).thenReturn(updatedOn);
+        return status;
+    }
+
+    private static IngestionResult mockResult(IngestionStatus status) throws URISyntaxException {
+        IngestionResult result = mock(IngestionResult.class);
+        when(result.getIngestionStatusCollection()).thenReturn(Collections.singletonList(status));
+        return result;
+    }
+}
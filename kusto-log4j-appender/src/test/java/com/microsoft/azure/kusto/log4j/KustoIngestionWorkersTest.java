@@ -0,0 +1,101 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+class KustoIngestionWorkersTest {
+
+    @Test
+    void platformThreadsByDefault() {
+        ExecutorService executor = KustoIngestionWorkers.create(2, 4, false);
+        try {
+            assertTrue(executor instanceof ThreadPoolExecutor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void noQueueHandsAttemptsOverToIdleWorkersOnly() throws Exception {
+        ExecutorService executor = KustoIngestionWorkers.create(1, 0, false);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch started = new CountDownLatch(1);
+            executor.execute(() -> {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            // the worker is busy and nothing waits for it, the caller runs the attempt
+            assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> {
+            }));
+            release.countDown();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void virtualThreadsWhenAvailable() throws Exception {
+        ExecutorService executor = KustoIngestionWorkers.create(2, 4, true);
+        try {
+            AtomicReference<Thread> worker = new AtomicReference<>();
+            executor.submit(() -> worker.set(Thread.currentThread())).get(10, TimeUnit.SECONDS);
+            if (KustoIngestionWorkers.isVirtualThreadSupported()) {
+                assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(worker.get()));
+            } else {
+                // older JVMs fall back to the platform pool
+                assertTrue(executor instanceof ThreadPoolExecutor);
+            }
+            assertTrue(worker.get().getName().contains("KustoIngestion"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void boundedExecutorRunsWorkersAtATimeAndRejectsWhenFull() throws Exception {
+        ExecutorService executor = new KustoIngestionWorkers.BoundedExecutor(Executors.newCachedThreadPool(), 1, 1);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(2);
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            Runnable upload = () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                done.countDown();
+            };
+            executor.execute(upload);
+            executor.execute(upload);
+            // one attempt runs, one waits, the third is run by the caller
+            assertThrows(RejectedExecutionException.class, () -> executor.execute(upload));
+            release.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(1, maxRunning.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.time.MutableInstant;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+
+class KustoJsonLayoutTest {
+
+    @Test
+    void writesConfiguredColumns() {
+        KustoJsonLayout layout = KustoJsonLayout.createLayout("Timestamp=timestamp, Level=level,Message=formattedmessage,threadid,marker");
+        assertEquals("{\"Timestamp\":\"2024-02-29T13:45:30.1234567Z\",\"Level\":\"WARN\",\"Message\":\"say \\\"hi\\\"\\nbye\","
+                + "\"threadid\":7,\"marker\":null}\n", layout.toSerializable(logEvent()));
+        assertFalse(layout.requiresLocation());
+    }
+
+    @Test
+    void writesContextAsJson() {
+        KustoJsonLayout layout = KustoJsonLayout.createLayout("contextmap,loggername");
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("requestId", "42");
+        contextData.putValue("user", "a\"b");
+        LogEvent event = Log4jLogEvent.newBuilder().setLoggerName("app").setLevel(Level.INFO).setMessage(new SimpleMessage("m"))
+                .setContextData(contextData).build();
+        assertEquals("{\"contextmap\":{\"requestId\":\"42\",\"user\":\"a\\\"b\"},\"loggername\":\"app\"}\n", layout.toSerializable(event));
+    }
+
+    @Test
+    void encodeMatchesToSerializable() {
+        KustoJsonLayout layout = KustoJsonLayout.createLayout(null);
+        LogEvent event = Log4jLogEvent.newBuilder().setLoggerName("app").setLevel(Level.ERROR).setMessage(new SimpleMessage("failed"))
+                .setMarker(MarkerManager.getMarker("AUDIT")).setThrown(new IllegalStateException("boom")).build();
+        KustoBatchBuffer buffer = new KustoBatchBuffer(16);
+        layout.encode(event, buffer);
+        assertEquals(layout.toSerializable(event), new String(buffer.array(), 0, buffer.size(), StandardCharsets.UTF_8));
+        assertTrue(layout.toSerializable(event).contains("\"thrownproxy\":\"java.lang.IllegalStateException: boom"));
+    }
+
+    @Test
+    void ingestionMappingMatchesColumns() {
+        KustoJsonLayout layout = KustoJsonLayout.createLayout("Timestamp=timestamp,Message=formattedmessage");
+        assertEquals("[{\"column\":\"Timestamp\",\"Properties\":{\"Path\":\"$['Timestamp']\"}},"
+                + "{\"column\":\"Message\",\"Properties\":{\"Path\":\"$['Message']\"}}]", layout.getIngestionMapping());
+    }
+
+    @Test
+    void unknownFieldFails() {
+        assertThrows(IllegalArgumentException.class, () -> KustoJsonLayout.createLayout("Message=text"));
+    }
+
+    private static LogEvent logEvent() {
+        MutableInstant instant = new MutableInstant();
+        // 2024-02-29T13:45:30Z
+        instant.initFromEpochSecond(1709214330L, 123456789);
+        return Log4jLogEvent.newBuilder().setLoggerName("app").setLevel(Level.WARN).setMessage(new SimpleMessage("say \"hi\"\nbye"))
+                .setThreadId(7).setInstant(instant).build();
+    }
+}
@@ -0,0 +1,80 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.junit.jupiter.api.Test;
+
+import com.microsoft.azure.kusto.ingest.IngestClient;
+import com.microsoft.azure.kusto.ingest.exceptions.IngestionClientException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class KustoLazyIngestClientTest {
+
+    @Test
+    void clientIsCreatedOnFirstUse() throws IngestionClientException, IOException {
+        AtomicInteger created = new AtomicInteger();
+        IngestClient ingestClient = mock(IngestClient.class);
+        KustoLazyIngestClient lazyClient = new KustoLazyIngestClient("lazy|app|queued", () -> {
+            created.incrementAndGet();
+            return ingestClient;
+        });
+        assertEquals(0, created.get());
+        assertSame(ingestClient, lazyClient.get());
+        assertSame(ingestClient, lazyClient.get());
+        assertEquals(1, created.get());
+        lazyClient.release();
+        verify(ingestClient, times(1)).close();
+        // a released client is not created again
+        assertThrows(IngestionClientException.class, lazyClient::get);
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    void warmUpCreatesClientInBackground() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        IngestClient ingestClient = mock(IngestClient.class);
+        KustoLazyIngestClient lazyClient = new KustoLazyIngestClient("warm|app|queued", () -> {
+            if (created.incrementAndGet() == 1) {
+                throw new URISyntaxException("warm", "Unreachable for now");
+            }
+            return ingestClient;
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // the failed warm up is only logged, the next use tries again
+            lazyClient.warmUp(executor);
+            executor.submit(() -> {
+            }).get(10, TimeUnit.SECONDS);
+            assertEquals(1, created.get());
+            lazyClient.warmUp(executor);
+            executor.submit(() -> {
+            }).get(10, TimeUnit.SECONDS);
+            assertEquals(2, created.get());
+            assertSame(ingestClient, lazyClient.get());
+            assertEquals(2, created.get());
+        } finally {
+            executor.shutdownNow();
+            lazyClient.release();
+        }
+    }
+
+    @Test
+    void releaseBeforeUseDoesNotTouchRegistry() throws URISyntaxException {
+        IngestClient shared = KustoIngestClientRegistry.acquire("unused|app|queued", () -> mock(IngestClient.class));
+        KustoLazyIngestClient lazyClient = new KustoLazyIngestClient("unused|app|queued", () -> mock(IngestClient.class));
+        lazyClient.release();
+        // the reference of the other user is still there
+        assertSame(shared, KustoIngestClientRegistry.acquire("unused|app|queued", () -> mock(IngestClient.class)));
+        KustoIngestClientRegistry.release("unused|app|queued");
+        KustoIngestClientRegistry.release("unused|app|queued");
+    }
+}
@@ -0,0 +1,34 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+class KustoLog4jConfigTest {
+
+    @Test
+    void unsetAttributesAreNull() {
+        KustoLog4jConfig kustoLog4jConfig = KustoLog4jConfig.newBuilder()
+                .setDbName("test")
+                .setSpoolQuotaBytes(1024L)
+                .build();
+        assertEquals("test", kustoLog4jConfig.dbName);
+        assertEquals(1024L, (long) kustoLog4jConfig.spoolQuotaBytes);
+        assertNull(kustoLog4jConfig.tableName);
+        assertNull(kustoLog4jConfig.virtualThreads);
+    }
+
+    @Test
+    void differingAttributesAreNamed() {
+        KustoLog4jConfig first = KustoLog4jConfig.newBuilder().setDbName("test").setIngestionWorkers(1).setCompressUploads(true).build();
+        KustoLog4jConfig same = KustoLog4jConfig.newBuilder().setDbName("test").setIngestionWorkers(1).setCompressUploads(true).build();
+        KustoLog4jConfig other = KustoLog4jConfig.newBuilder().setDbName("test").setIngestionWorkers(4).setCompressUploads(false).build();
+        assertEquals(Collections.emptyList(), first.getDifferingAttributes(same));
+        assertEquals(Arrays.asList("ingestionWorkers", "compressUploads"), first.getDifferingAttributes(other));
+    }
+}
@@ -0,0 +1,130 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.junit.jupiter.api.Test;
+
+import com.azure.core.exception.HttpResponseException;
+import com.azure.core.http.HttpResponse;
+import com.microsoft.azure.kusto.ingest.result.IngestionResult;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import io.github.resilience4j.retry.Retry;
+import io.github.resilience4j.retry.RetryConfig;
+import io.vavr.control.Either;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class KustoRetryBackoffTest {
+
+    // with a random of 0.5 the backoff is not randomized and a retry-after hint is lengthened by a quarter
+    private final KustoRetryBackoff backoff = new KustoRetryBackoff(1000, 60_000, () -> 0.5);
+
+    @Test
+    void exponentialBackoffForOtherFailures() {
+        IOException failure = new IOException("Blob upload failed");
+        assertEquals(KustoRetryBackoff.FailureKind.OTHER, KustoRetryBackoff.classify(failure));
+        assertEquals(1000L, wait(1, failure));
+        assertEquals(2250L, wait(3, failure));
+        assertEquals(60_000L, wait(20, failure));
+    }
+
+    @Test
+    void shorterBackoffForConnectionErrors() {
+        RuntimeException refused = new RuntimeException("Upload failed", new ConnectException("Connection refused"));
+        RuntimeException timedOut = new RuntimeException(new IOException(new SocketTimeoutException("Read timed out")));
+        assertEquals(KustoRetryBackoff.FailureKind.CONNECTION, KustoRetryBackoff.classify(refused));
+        assertEquals(KustoRetryBackoff.FailureKind.CONNECTION, KustoRetryBackoff.classify(timedOut));
+        assertEquals(250L, wait(1, refused));
+        assertEquals(562L, wait(3, timedOut));
+    }
+
+    @Test
+    void localFileErrorsAreToldApart() {
+        RuntimeException missing = new RuntimeException("Upload failed", new NoSuchFileException("kusto-1.log"));
+        IOException denied = new AccessDeniedException("kusto-1.log");
+        assertEquals(KustoRetryBackoff.FailureKind.LOCAL, KustoRetryBackoff.classify(missing));
+        assertEquals(KustoRetryBackoff.FailureKind.LOCAL, KustoRetryBackoff.classify(denied));
+        assertEquals(1000L, wait(1, missing));
+    }
+
+    @Test
+    void retryAfterHintIsHonoured() {
+        HttpResponse response = mock(HttpResponse.class);
+        when(response.getStatusCode()).thenReturn(429);
+        when(response.getHeaderValue("Retry-After")).thenReturn("30");
+        RuntimeException throttled = new RuntimeException(new HttpResponseException("Too many requests", response));
+        assertEquals(KustoRetryBackoff.FailureKind.THROTTLED, KustoRetryBackoff.classify(throttled));
+        assertEquals(30_000L, KustoRetryBackoff.getRetryAfterMillis(throttled));
+        assertEquals(37_500L, wait(1, throttled));
+        when(response.getHeaderValue("x-ms-retry-after-ms")).thenReturn("1500");
+        assertEquals(1875L, wait(1, throttled));
+    }
+
+    @Test
+    void throttleWithoutHintWaitsLongest() {
+        RuntimeException throttled = new RuntimeException("Request was throttled by the service");
+        assertEquals(KustoRetryBackoff.FailureKind.THROTTLED, KustoRetryBackoff.classify(throttled));
+        assertEquals(-1L, KustoRetryBackoff.getRetryAfterMillis(throttled));
+        assertEquals(75_000L, wait(1, throttled));
+    }
+
+    @Test
+    void backoffIsRandomized() {
+        IOException failure = new IOException("Blob upload failed");
+        assertEquals(500L, (long) new KustoRetryBackoff(1000, 60_000, () -> 0).apply(1, Either.left(failure)));
+        assertEquals(1499L, (long) new KustoRetryBackoff(1000, 60_000, () -> 0.999).apply(1, Either.left(failure)));
+        // a hint is never shortened
+        RuntimeException throttled = new RuntimeException("Throttled");
+        assertEquals(60_000L, (long) new KustoRetryBackoff(1000, 60_000, () -> 0).apply(1, Either.left(throttled)));
+    }
+
+    @Test
+    void zeroWaitsAreRetried() throws Exception {
+        HttpResponse response = mock(HttpResponse.class);
+        when(response.getStatusCode()).thenReturn(429);
+        when(response.getHeaderValue("Retry-After")).thenReturn("0");
+        RuntimeException throttled = new RuntimeException(new HttpResponseException("Too many requests", response));
+        assertEquals(0L, KustoRetryBackoff.getRetryAfterMillis(throttled));
+        assertEquals(KustoRetryBackoff.MIN_WAIT_MILLIS, wait(1, throttled));
+        IOException failure = new IOException("Blob upload failed");
+        assertEquals(KustoRetryBackoff.MIN_WAIT_MILLIS, (long) new KustoRetryBackoff(0, 0, () -> 0.5).apply(1, Either.left(failure)));
+
+        // the asynchronous retries stop on a wait of 0, a Retry-After of 0 must still be retried
+        Retry retry = Retry.of("KustoRetryBackoffTest", RetryConfig.<IngestionResult>custom().maxAttempts(3)
+                .intervalBiFunction(backoff).build());
+        IngestionResult ingestionResult = mock(IngestionResult.class);
+        AtomicInteger attempts = new AtomicInteger();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            CompletableFuture<IngestionResult> result = retry.executeCompletionStage(scheduler, () -> {
+                CompletableFuture<IngestionResult> attempt = new CompletableFuture<>();
+                if (attempts.incrementAndGet() == 1) {
+                    attempt.completeExceptionally(throttled);
+                } else {
+                    attempt.complete(ingestionResult);
+                }
+                return attempt;
+            }).toCompletableFuture();
+            assertSame(ingestionResult, result.get(5, TimeUnit.SECONDS));
+            assertEquals(2, attempts.get());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private long wait(int attempt, Throwable failure) {
+        Either<Throwable, IngestionResult> outcome = Either.left(failure);
+        return backoff.apply(attempt, outcome);
+    }
+}
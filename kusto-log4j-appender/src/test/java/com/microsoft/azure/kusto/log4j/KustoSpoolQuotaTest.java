@@ -0,0 +1,132 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+class KustoSpoolQuotaTest {
+
+    private Path spoolDirectory;
+    private KustoSpoolQuota quota;
+
+    @BeforeEach
+    public void beforeEach() throws IOException {
+        spoolDirectory = Files.createTempDirectory("spool");
+        quota = new KustoSpoolQuota();
+    }
+
+    @AfterEach
+    public void afterEach() throws IOException {
+        try (Stream<Path> files = Files.walk(spoolDirectory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Test
+    void oldestFileIsEvicted() throws IOException {
+        KustoIngestionMetrics metrics = new KustoIngestionMetrics(null, () -> 0);
+        KustoSpoolQuota.Owner owner = quota.register(2500, 0, metrics);
+        Path first = spoolFile("first.log", 1000);
+        owner.add(first);
+        Path second = spoolFile("second.log", 1000);
+        owner.add(second);
+        assertEquals(2000, metrics.getSpoolBytes());
+        Path third = spoolFile("third.log", 1000);
+        owner.add(third);
+        assertFalse(Files.exists(first));
+        assertTrue(Files.exists(second));
+        assertTrue(Files.exists(third));
+        assertEquals(2000, quota.getUsedBytes());
+        assertEquals(2000, metrics.getSpoolBytes());
+        assertEquals(1, metrics.getEvictions());
+        assertEquals(1000, metrics.getEvictedBytes());
+    }
+
+    @Test
+    void lowestPriorityIsEvictedFirst() throws IOException {
+        KustoIngestionMetrics debugMetrics = new KustoIngestionMetrics(null, () -> 0);
+        KustoIngestionMetrics auditMetrics = new KustoIngestionMetrics(null, () -> 0);
+        KustoSpoolQuota.Owner debug = quota.register(0, 0, debugMetrics);
+        KustoSpoolQuota.Owner audit = quota.register(2500, 10, auditMetrics);
+        assertEquals(2500, quota.getQuotaBytes());
+        Path audited = spoolFile("audit.log", 1000);
+        audit.add(audited);
+        Path debugged = spoolFile("debug.log", 1000);
+        debug.add(debugged);
+        // the newer debug file goes before the older audit file
+        audit.add(spoolFile("audit-2.log", 1000));
+        assertTrue(Files.exists(audited));
+        assertFalse(Files.exists(debugged));
+        assertEquals(1, debugMetrics.getEvictions());
+        assertEquals(0, auditMetrics.getEvictions());
+        assertEquals(0, debugMetrics.getSpoolBytes());
+        assertEquals(2000, auditMetrics.getSpoolBytes());
+    }
+
+    @Test
+    void watchCountsExistingFilesOnce() throws IOException {
+        KustoIngestionMetrics metrics = new KustoIngestionMetrics(null, () -> 0);
+        Path old = spoolFile("old.log", 1000);
+        Files.setLastModifiedTime(old, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+        spoolFile("recent.log", 500);
+        KustoSpoolQuota.Owner owner = quota.register(2000, 0, metrics);
+        owner.watch(spoolDirectory);
+        owner.watch(spoolDirectory);
+        assertEquals(1500, metrics.getSpoolBytes());
+        // the file left by a previous run is the oldest
+        owner.add(spoolFile("new.log", 1000));
+        assertFalse(Files.exists(old));
+        assertEquals(1500, metrics.getSpoolBytes());
+    }
+
+    @Test
+    void pinnedFileIsNotEvicted() throws IOException {
+        KustoIngestionMetrics metrics = new KustoIngestionMetrics(null, () -> 0);
+        KustoSpoolQuota.Owner owner = quota.register(2500, 0, metrics);
+        Path replayed = spoolFile("replayed.log", 1000);
+        owner.add(replayed);
+        Path second = spoolFile("second.log", 1000);
+        owner.add(second);
+        // the oldest file is being ingested again, the next oldest goes instead
+        owner.pin(replayed);
+        owner.add(spoolFile("third.log", 1000));
+        assertTrue(Files.exists(replayed));
+        assertFalse(Files.exists(second));
+        owner.unpin(replayed);
+        owner.add(spoolFile("fourth.log", 1000));
+        assertFalse(Files.exists(replayed));
+        assertEquals(2, metrics.getEvictions());
+    }
+
+    @Test
+    void removedAndForgottenFilesAreNotCounted() throws IOException {
+        KustoIngestionMetrics metrics = new KustoIngestionMetrics(null, () -> 0);
+        KustoSpoolQuota.Owner owner = quota.register(1000, 0, metrics);
+        Path replayed = spoolFile("replayed.log", 800);
+        owner.add(replayed);
+        owner.remove(replayed);
+        assertEquals(0, quota.getUsedBytes());
+        owner.add(spoolFile("kept.log", 800));
+        assertEquals(0, metrics.getEvictions());
+        owner.close();
+        assertEquals(0, quota.getUsedBytes());
+        assertEquals(0, quota.getQuotaBytes());
+    }
+
+    private Path spoolFile(String name, int size) throws IOException {
+        return Files.write(spoolDirectory.resolve(name), new byte[size]);
+    }
+}
@@ -0,0 +1,109 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.builder.api.ComponentBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFactory;
+import org.apache.logging.log4j.core.config.builder.impl.BuiltConfiguration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.microsoft.azure.kusto.ingest.IngestClient;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+class KustoStrategyTest {
+
+    private static volatile IngestClient ingestClient;
+
+    private Path directory;
+
+    @BeforeEach
+    public void beforeEach() throws IOException {
+        ingestClient = mock(IngestClient.class);
+        directory = Files.createTempDirectory("kusto-strategy-test");
+    }
+
+    @AfterEach
+    public void afterEach() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    void stoppingTheContextClosesTheClient() throws IOException {
+        LoggerContext loggerContext = new LoggerContext("KustoStrategyTest");
+        loggerContext.start(buildConfiguration(loggerContext));
+        loggerContext.getLogger("KustoStrategyTest").info("Log line");
+        verify(ingestClient, never()).close();
+        loggerContext.stop();
+        verify(ingestClient, times(1)).close();
+    }
+
+    @Test
+    void reconfigurationKeepsTheClientUntilTheLastConfigurationStops() throws IOException {
+        LoggerContext loggerContext = new LoggerContext("KustoStrategyTest");
+        loggerContext.start(buildConfiguration(loggerContext));
+        // the strategy of the new configuration takes its own reference, the old one gives its reference back
+        loggerContext.setConfiguration(buildConfiguration(loggerContext));
+        verify(ingestClient, never()).close();
+        loggerContext.stop();
+        verify(ingestClient, times(1)).close();
+    }
+
+    @Test
+    void reconfigurationsDoNotAddShutdownListeners() throws IOException {
+        LoggerContext loggerContext = new LoggerContext("KustoStrategyTest");
+        loggerContext.start(buildConfiguration(loggerContext));
+        int listeners = loggerContext.getListeners().size();
+        for (int i = 0; i < 5; i++) {
+            loggerContext.setConfiguration(buildConfiguration(loggerContext));
+        }
+        assertEquals(listeners, loggerContext.getListeners().size());
+        loggerContext.stop();
+        verify(ingestClient, times(1)).close();
+    }
+
+    private Configuration buildConfiguration(LoggerContext loggerContext) {
+        ConfigurationBuilder<BuiltConfiguration> builder = ConfigurationBuilderFactory.newConfigurationBuilder();
+        builder.setLoggerContext(loggerContext);
+        ComponentBuilder<?> kustoStrategy = builder.newComponent("KustoStrategy")
+                .addAttribute("clusterIngestUrl", "https://ingest-test.kusto.windows.net")
+                .addAttribute("dbName", "test")
+                .addAttribute("tableName", "test")
+                .addAttribute("clientInitialization", "eager")
+                .addAttribute("shutdownTimeoutSeconds", 1)
+                .addAttribute("ingestClientSupplier", MockIngestClientSupplier.class.getName());
+        ComponentBuilder<?> triggeringPolicy = builder.newComponent("Policies")
+                .addComponent(builder.newComponent("SizeBasedTriggeringPolicy").addAttribute("size", "1 MB"));
+        builder.add(builder.newAppender("rolling", "RollingFile")
+                .addAttribute("fileName", directory.resolve("kusto.log").toString())
+                .addAttribute("filePattern", directory.resolve("kusto-%i.log").toString())
+                .add(builder.newLayout("PatternLayout").addAttribute("pattern", "%m%n"))
+                .addComponent(kustoStrategy)
+                .addComponent(triggeringPolicy));
+        builder.add(builder.newRootLogger(Level.INFO).add(builder.newAppenderRef("rolling")));
+        return builder.build();
+    }
+
+    public static final class MockIngestClientSupplier implements KustoIngestClientSupplier {
+        @Override
+        public IngestClient createClient(String ingestionMode) {
+            return ingestClient;
+        }
+    }
+}
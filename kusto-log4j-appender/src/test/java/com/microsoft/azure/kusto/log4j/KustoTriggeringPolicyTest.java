@@ -0,0 +1,104 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.rolling.RollingFileManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.TimeUnit;
+
+class KustoTriggeringPolicyTest {
+
+    private static final long TARGET_BYTES = 1024 * 1024;
+    private static final long MAX_AGE_MILLIS = TimeUnit.SECONDS.toMillis(300);
+    private static final long MIN_AGE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private RollingFileManager manager;
+    private KustoTriggeringPolicy policy;
+    private long now;
+
+    @BeforeEach
+    public void beforeEach() {
+        manager = mock(RollingFileManager.class);
+        // no configuration, so no scheduled checks: the tests update the policy themselves
+        policy = KustoTriggeringPolicy.createPolicy("1 MB", "300", "30", null);
+        policy.initialize(manager);
+        now = System.currentTimeMillis();
+    }
+
+    @Test
+    void lightTrafficRollsEarly() {
+        assertEquals(MIN_AGE_MILLIS, policy.getAgeLimitMillis());
+        long size = 0;
+        for (int i = 0; i < 10; i++) {
+            size += 100;
+            policy.update(now += 1000, size, 0);
+        }
+        // 100 bytes per second fill 3% of the target in 300 seconds
+        assertTrue(policy.getAgeLimitMillis() < MIN_AGE_MILLIS + (MAX_AGE_MILLIS - MIN_AGE_MILLIS) / 10,
+                String.valueOf(policy.getAgeLimitMillis()));
+    }
+
+    @Test
+    void steadyLoadWaitsForSize() {
+        long size = 0;
+        for (int i = 0; i < 30; i++) {
+            size += TARGET_BYTES / 10;
+            if (size >= TARGET_BYTES) {
+                // rolled
+                size -= TARGET_BYTES;
+            }
+            policy.update(now += 1000, size, 0);
+        }
+        assertEquals(MAX_AGE_MILLIS, policy.getAgeLimitMillis());
+    }
+
+    @Test
+    void backlogWaitsForMaxAge() {
+        policy.update(now += 1000, 100, 1);
+        assertTrue(policy.getAgeLimitMillis() < MAX_AGE_MILLIS);
+        policy.update(now += 1000, 200, 2);
+        assertEquals(MAX_AGE_MILLIS, policy.getAgeLimitMillis());
+        policy.update(now += 1000, 300, 0);
+        assertTrue(policy.getAgeLimitMillis() < MAX_AGE_MILLIS);
+    }
+
+    @Test
+    void triggersOnSizeOrAge() {
+        LogEvent event = mock(LogEvent.class);
+        when(manager.getFileTime()).thenReturn(System.currentTimeMillis());
+        when(manager.getFileSize()).thenReturn(0L);
+        assertFalse(policy.isTriggeringEvent(event));
+        when(manager.getFileSize()).thenReturn(TARGET_BYTES);
+        assertTrue(policy.isTriggeringEvent(event));
+        when(manager.getFileSize()).thenReturn(10L);
+        assertFalse(policy.isTriggeringEvent(event));
+        when(manager.getFileTime()).thenReturn(System.currentTimeMillis() - MIN_AGE_MILLIS);
+        assertTrue(policy.isTriggeringEvent(event));
+        // an empty file is not rolled whatever its age
+        when(manager.getFileSize()).thenReturn(0L);
+        assertFalse(policy.isTriggeringEvent(event));
+    }
+
+    @Test
+    void stopRollsActiveFileAndReleasesInstance() {
+        KustoStrategy strategy = mock(KustoStrategy.class);
+        KustoClientInstance kustoClientInstance = mock(KustoClientInstance.class);
+        when(strategy.getKustoClientInstance()).thenReturn(kustoClientInstance);
+        when(manager.getRolloverStrategy()).thenReturn(strategy);
+        when(manager.getFileSize()).thenReturn(10L);
+        policy.initialize(manager);
+        policy.stop(1, TimeUnit.SECONDS);
+        verify(manager).rollover();
+        verify(strategy).release();
+        // stopping again neither rolls nor releases
+        policy.stop(1, TimeUnit.SECONDS);
+        verify(manager).rollover();
+        verify(strategy).release();
+    }
+}
@@ -0,0 +1,18 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import com.microsoft.azure.kusto.ingest.IngestClient;
+
+/**
+ * Creates clients of the installed FakeIngestService, set with
+ * ingestClientSupplier="com.microsoft.azure.kusto.log4j.FakeIngestClientSupplier" on the KustoStrategy. It is public
+ * with a public constructor since the KustoStrategy instantiates it by its name.
+ */
+public final class FakeIngestClientSupplier implements KustoIngestClientSupplier {
+
+    @Override
+    public IngestClient createClient(String ingestionMode) {
+        return FakeIngestService.installed().newClient(ingestionMode);
+    }
+}
@@ -0,0 +1,302 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import com.microsoft.azure.kusto.data.exceptions.DataServiceException;
+import com.microsoft.azure.kusto.ingest.IngestClient;
+import com.microsoft.azure.kusto.ingest.IngestionProperties;
+import com.microsoft.azure.kusto.ingest.exceptions.IngestionClientException;
+import com.microsoft.azure.kusto.ingest.exceptions.IngestionServiceException;
+import com.microsoft.azure.kusto.ingest.source.CompressionType;
+import com.microsoft.azure.kusto.ingest.source.FileSourceInfo;
+import com.microsoft.azure.kusto.ingest.source.StreamSourceInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An in-process stand-in for the Kusto ingestion service. Its clients read the data they are given to the end, as the
+ * real clients do when they upload it, wait for the configured latency and then accept the data or fail with one of
+ * the injected errors:
+ * <ul>
+ * <li>throttled: a transient error whose message the appender recognizes as throttling, so it waits the longest
+ * backoff before it retries</li>
+ * <li>transient: an error of the service that the appender retries</li>
+ * <li>permanent: an error (a bad mapping) that the appender does not retry and backs the data out for</li>
+ * </ul>
+ * The rates and the latency can be changed while the clients are used, to shape an outage in the middle of a run. The
+ * accepted data is counted, and recorded (uncompressed) when recordPayloads is set, to check what was ingested.
+ * <p>
+ * The appender gets its clients from the installed service through the {@link FakeIngestClientSupplier}.
+ */
+final class FakeIngestService {
+
+    private static volatile FakeIngestService installed;
+
+    private final boolean recordPayloads;
+    private final ConcurrentLinkedQueue<Payload> payloads = new ConcurrentLinkedQueue<>();
+    private final LongAdder ingestions = new LongAdder();
+    private final LongAdder ingestedBytes = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder transientErrors = new LongAdder();
+    private final LongAdder permanentErrors = new LongAdder();
+    private volatile long minLatencyMillis;
+    private volatile long maxLatencyMillis;
+    private volatile double throttleRate;
+    private volatile double transientErrorRate;
+    private volatile double permanentErrorRate;
+
+    /**
+     * @param recordPayloads If the accepted data is kept in memory, otherwise it is only counted
+     */
+    FakeIngestService(boolean recordPayloads) {
+        this.recordPayloads = recordPayloads;
+    }
+
+    /**
+     * Makes the service the one the FakeIngestClientSupplier creates clients for.
+     *
+     * @param service The service, null to uninstall it
+     */
+    static void install(FakeIngestService service) {
+        installed = service;
+    }
+
+    static FakeIngestService installed() {
+        FakeIngestService service = installed;
+        if (service == null) {
+            throw new IllegalStateException("No FakeIngestService is installed");
+        }
+        return service;
+    }
+
+    /**
+     * @param ingestionMode The kind of client, recorded with the payloads it ingests
+     * @return A client of the service
+     */
+    IngestClient newClient(String ingestionMode) {
+        return (IngestClient) Proxy.newProxyInstance(IngestClient.class.getClassLoader(), new Class<?>[] {IngestClient.class},
+                new FakeIngestClient(ingestionMode));
+    }
+
+    /**
+     * Every ingestion waits for a time drawn uniformly between the bounds.
+     *
+     * @param minLatencyMillis The shortest latency of an ingestion
+     * @param maxLatencyMillis The longest latency of an ingestion
+     */
+    void setLatencyMillis(long minLatencyMillis, long maxLatencyMillis) {
+        this.minLatencyMillis = Math.max(0, minLatencyMillis);
+        this.maxLatencyMillis = Math.max(this.minLatencyMillis, maxLatencyMillis);
+    }
+
+    /**
+     * @param throttleRate The share (0 to 1) of the ingestions that are throttled
+     */
+    void setThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+    }
+
+    /**
+     * @param transientErrorRate The share (0 to 1) of the ingestions that fail with a transient error
+     */
+    void setTransientErrorRate(double transientErrorRate) {
+        this.transientErrorRate = transientErrorRate;
+    }
+
+    /**
+     * @param permanentErrorRate The share (0 to 1) of the ingestions that fail with a permanent error
+     */
+    void setPermanentErrorRate(double permanentErrorRate) {
+        this.permanentErrorRate = permanentErrorRate;
+    }
+
+    long getIngestions() {
+        return ingestions.sum();
+    }
+
+    /**
+     * @return The (uncompressed) bytes of the accepted ingestions
+     */
+    long getIngestedBytes() {
+        return ingestedBytes.sum();
+    }
+
+    long getThrottled() {
+        return throttled.sum();
+    }
+
+    long getTransientErrors() {
+        return transientErrors.sum();
+    }
+
+    long getPermanentErrors() {
+        return permanentErrors.sum();
+    }
+
+    /**
+     * @return The accepted ingestions in the order they were accepted, empty unless recordPayloads is set
+     */
+    List<Payload> getPayloads() {
+        return Collections.unmodifiableList(new ArrayList<>(payloads));
+    }
+
+    /*
+     * The outcome is drawn after the data is read and the latency waited for, since the service only answers then.
+     */
+    private void ingest(String ingestionMode, String source, InputStream data, boolean compressed, IngestionProperties ingestionProperties)
+            throws IngestionClientException, IngestionServiceException {
+        ByteArrayOutputStream recorded = recordPayloads ? new ByteArrayOutputStream() : null;
+        long bytes;
+        try (InputStream inputStream = compressed ? new GZIPInputStream(data) : data) {
+            bytes = copy(inputStream, recorded);
+        } catch (IOException e) {
+            // the real clients also report the data they cannot read as a client error
+            throw new IngestionClientException(String.format("Could not read %s", source), e);
+        }
+        long minLatency = minLatencyMillis;
+        long maxLatency = Math.max(minLatency, maxLatencyMillis);
+        long latencyMillis = minLatency == maxLatency ? minLatency : ThreadLocalRandom.current().nextLong(minLatency, maxLatency + 1);
+        if (latencyMillis > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IngestionClientException(String.format("Interrupted while ingesting %s", source), e);
+            }
+        }
+        double outcome = ThreadLocalRandom.current().nextDouble();
+        if (outcome < throttleRate) {
+            throttled.increment();
+            throw new IngestionServiceException("Request was throttled: TooManyRequests (429)");
+        }
+        outcome -= throttleRate;
+        if (outcome < permanentErrorRate) {
+            permanentErrors.increment();
+            throw new RuntimeException(new DataServiceException(source, "Mapping reference was not found", true));
+        }
+        outcome -= permanentErrorRate;
+        if (outcome < transientErrorRate) {
+            transientErrors.increment();
+            throw new IngestionServiceException("An ingestion exception has occurred");
+        }
+        ingestions.increment();
+        ingestedBytes.add(bytes);
+        if (recorded != null) {
+            payloads.add(new Payload(ingestionMode, ingestionProperties.getDatabaseName(), ingestionProperties.getTableName(), source,
+                    recorded.toByteArray()));
+        }
+    }
+
+    private static long copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long bytes = 0;
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            if (outputStream != null) {
+                outputStream.write(buffer, 0, read);
+            }
+            bytes += read;
+        }
+        return bytes;
+    }
+
+    /**
+     * An ingestion accepted by the service.
+     */
+    static final class Payload {
+        private final String ingestionMode;
+        private final String database;
+        private final String table;
+        private final String source;
+        private final byte[] data;
+
+        private Payload(String ingestionMode, String database, String table, String source, byte[] data) {
+            this.ingestionMode = ingestionMode;
+            this.database = database;
+            this.table = table;
+            this.source = source;
+            this.data = data;
+        }
+
+        String getIngestionMode() {
+            return ingestionMode;
+        }
+
+        String getDatabase() {
+            return database;
+        }
+
+        String getTable() {
+            return table;
+        }
+
+        /**
+         * @return The path of the ingested file, or "stream" for coalesced files and in-memory batches
+         */
+        String getSource() {
+            return source;
+        }
+
+        /**
+         * @return The uncompressed data
+         */
+        byte[] getData() {
+            return data;
+        }
+    }
+
+    /*
+     * A proxy like the StubIngestClient, so that it does not depend on the exact set of methods of the IngestClient
+     * interface. The appender does not look at the result of queued ingestion, null is returned.
+     */
+    private final class FakeIngestClient implements InvocationHandler {
+        private final String ingestionMode;
+
+        private FakeIngestClient(String ingestionMode) {
+            this.ingestionMode = ingestionMode;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(this, args);
+            }
+            if (args == null || args.length < 2 || !(args[1] instanceof IngestionProperties)) {
+                return null;
+            }
+            IngestionProperties ingestionProperties = (IngestionProperties) args[1];
+            if (args[0] instanceof StreamSourceInfo) {
+                StreamSourceInfo streamSourceInfo = (StreamSourceInfo) args[0];
+                ingest(ingestionMode, "stream", streamSourceInfo.getStream(), streamSourceInfo.getCompressionType() == CompressionType.gz,
+                        ingestionProperties);
+            } else if (args[0] instanceof FileSourceInfo) {
+                Path file = Paths.get(((FileSourceInfo) args[0]).getFilePath());
+                InputStream inputStream;
+                try {
+                    inputStream = Files.newInputStream(file);
+                } catch (IOException e) {
+                    throw new IngestionClientException(String.format("Could not read %s", file), e);
+                }
+                ingest(ingestionMode, file.toString(), inputStream, file.toString().endsWith(".gz"), ingestionProperties);
+            }
+            return null;
+        }
+    }
+}
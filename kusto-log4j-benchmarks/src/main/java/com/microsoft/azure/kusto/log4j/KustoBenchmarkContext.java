@@ -0,0 +1,66 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.RollingFileAppender;
+import org.apache.logging.log4j.core.appender.rolling.RollingFileManager;
+import org.apache.logging.log4j.core.config.Configurator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Starts a logger context with a RollingFile appender and a KustoStrategy (see kusto-benchmark-log4j2.xml) that
+ * ingests into a StubIngestClient (through the StubIngestClientSupplier), in a temporary directory that is deleted on close.
+ */
+final class KustoBenchmarkContext implements AutoCloseable {
+
+    static final String CONFIGURATION = "kusto-benchmark-log4j2.xml";
+    static final String APPENDER_NAME = "KustoRollingFile";
+
+    private final Path directory;
+    private final LoggerContext loggerContext;
+
+    KustoBenchmarkContext(boolean asyncIngestion, boolean compressUploads, String rolloverSize, long uploadLatencyMillis)
+            throws IOException {
+        directory = Files.createTempDirectory("kusto-benchmark");
+        System.setProperty("kusto.benchmark.directory", directory.toString());
+        System.setProperty("kusto.benchmark.asyncIngestion", String.valueOf(asyncIngestion));
+        System.setProperty("kusto.benchmark.compressUploads", String.valueOf(compressUploads));
+        System.setProperty("kusto.benchmark.rolloverSize", rolloverSize);
+        System.setProperty(StubIngestClientSupplier.UPLOAD_LATENCY_PROPERTY, String.valueOf(uploadLatencyMillis));
+        loggerContext = Configurator.initialize("KustoBenchmark", KustoBenchmarkContext.class.getClassLoader(), CONFIGURATION);
+    }
+
+    Logger getLogger() {
+        return loggerContext.getLogger("KustoBenchmark");
+    }
+
+    RollingFileManager getManager() {
+        RollingFileAppender appender = loggerContext.getConfiguration().getAppender(APPENDER_NAME);
+        return appender.getManager();
+    }
+
+    KustoClientInstance getKustoClientInstance() {
+        return ((KustoStrategy) getManager().getRolloverStrategy()).getKustoClientInstance();
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void close() throws IOException {
+        getKustoClientInstance().close();
+        Configurator.shutdown(loggerContext);
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
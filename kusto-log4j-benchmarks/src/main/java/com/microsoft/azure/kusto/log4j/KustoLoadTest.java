@@ -0,0 +1,245 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.RollingFileAppender;
+import org.apache.logging.log4j.core.config.Configurator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Sustained multi-threaded logging through a RollingFile appender with a KustoStrategy (see
+ * kusto-loadtest-log4j2.xml) that ingests into an in-process FakeIngestService, with the latency and the errors of the
+ * service injected. Unlike the JMH benchmarks, which measure one operation, it runs the whole pipeline for a while and
+ * reports:
+ * <ul>
+ * <li>the throughput of the logging threads</li>
+ * <li>the latency of the log calls, and the rollover stalls: the log calls slower than stallMillis, which are the ones
+ * that rolled the file over and (with synchronous ingestion) uploaded it, or that waited for them</li>
+ * <li>the ingestions, retries, failures and backouts of the appender, and the backout rate: the share of the rolled
+ * files that were backed out</li>
+ * </ul>
+ * The options are passed as --name=value, for example
+ * {@code --threads=8 --durationSeconds=120 --minLatencyMillis=50 --maxLatencyMillis=500 --throttleRate=0.1}.
+ */
+public final class KustoLoadTest {
+
+    static final String CONFIGURATION = "kusto-loadtest-log4j2.xml";
+    static final String APPENDER_NAME = "KustoRollingFile";
+
+    private static final Map<String, String> DEFAULT_OPTIONS = new HashMap<>();
+
+    static {
+        DEFAULT_OPTIONS.put("threads", "4");
+        DEFAULT_OPTIONS.put("durationSeconds", "60");
+        // how long the pending ingestions are waited for after the logging stops
+        DEFAULT_OPTIONS.put("drainSeconds", "30");
+        DEFAULT_OPTIONS.put("messageSize", "200");
+        DEFAULT_OPTIONS.put("stallMillis", "10");
+        DEFAULT_OPTIONS.put("rolloverSize", "1 MB");
+        DEFAULT_OPTIONS.put("asyncIngestion", "true");
+        DEFAULT_OPTIONS.put("ingestionWorkers", "4");
+        DEFAULT_OPTIONS.put("compressUploads", "false");
+        DEFAULT_OPTIONS.put("backOffMaxSeconds", "2");
+        DEFAULT_OPTIONS.put("minLatencyMillis", "20");
+        DEFAULT_OPTIONS.put("maxLatencyMillis", "200");
+        DEFAULT_OPTIONS.put("throttleRate", "0");
+        DEFAULT_OPTIONS.put("transientErrorRate", "0");
+        DEFAULT_OPTIONS.put("permanentErrorRate", "0");
+    }
+
+    private KustoLoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int threads = Integer.parseInt(options.get("threads"));
+        long durationMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("durationSeconds")));
+        long drainMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("drainSeconds")));
+        long stallNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(options.get("stallMillis")));
+        char[] filler = new char[Integer.parseInt(options.get("messageSize"))];
+        Arrays.fill(filler, 'x');
+        String message = "Processed request {} " + new String(filler);
+
+        FakeIngestService service = new FakeIngestService(false);
+        service.setLatencyMillis(Long.parseLong(options.get("minLatencyMillis")), Long.parseLong(options.get("maxLatencyMillis")));
+        service.setThrottleRate(Double.parseDouble(options.get("throttleRate")));
+        service.setTransientErrorRate(Double.parseDouble(options.get("transientErrorRate")));
+        service.setPermanentErrorRate(Double.parseDouble(options.get("permanentErrorRate")));
+        FakeIngestService.install(service);
+
+        Path directory = Files.createTempDirectory("kusto-loadtest");
+        System.setProperty("kusto.loadtest.directory", directory.toString());
+        for (String option : Arrays.asList("rolloverSize", "asyncIngestion", "ingestionWorkers", "compressUploads", "backOffMaxSeconds")) {
+            System.setProperty("kusto.loadtest." + option, options.get(option));
+        }
+        LoggerContext loggerContext = Configurator.initialize("KustoLoadTest", KustoLoadTest.class.getClassLoader(), CONFIGURATION);
+        try {
+            RollingFileAppender appender = loggerContext.getConfiguration().getAppender(APPENDER_NAME);
+            if (appender == null || !(appender.getManager().getRolloverStrategy() instanceof KustoStrategy)) {
+                throw new IllegalStateException(String.format("Could not create the KustoStrategy of %s, see the errors of the status logger",
+                        CONFIGURATION));
+            }
+            KustoClientInstance kustoClientInstance = ((KustoStrategy) appender.getManager().getRolloverStrategy()).getKustoClientInstance();
+            Logger logger = loggerContext.getLogger("KustoLoadTest");
+
+            System.out.printf("Logging on %d threads for %d s, options %s%n", threads, TimeUnit.MILLISECONDS.toSeconds(durationMillis), options);
+            List<LoggingThread> loggingThreads = new ArrayList<>();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+            for (int i = 0; i < threads; i++) {
+                LoggingThread loggingThread = new LoggingThread(i, logger, message, deadline, stallNanos);
+                loggingThreads.add(loggingThread);
+                loggingThread.start();
+            }
+            LatencyHistogram latencies = new LatencyHistogram();
+            long events = 0;
+            long stalls = 0;
+            long stallNanosTotal = 0;
+            for (LoggingThread loggingThread : loggingThreads) {
+                loggingThread.join();
+                latencies.add(loggingThread.latencies);
+                events += loggingThread.events;
+                stalls += loggingThread.stalls;
+                stallNanosTotal += loggingThread.stallNanosTotal;
+            }
+
+            // rolls the last events over, then waits for the ingestions to finish
+            appender.getManager().rollover();
+            long drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+            KustoIngestionMetrics metrics = kustoClientInstance.ingestionMetrics;
+            while (metrics.getPendingIngestions() > 0 && System.nanoTime() < drainDeadline) {
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+
+            double seconds = durationMillis / 1000.0;
+            System.out.printf(Locale.ROOT, "Throughput       : %d events, %.0f events/s%n", events, events / seconds);
+            System.out.printf(Locale.ROOT, "Log call latency : p50 %s, p99 %s, p99.9 %s, max %s (bucket upper bounds)%n",
+                    formatNanos(latencies.percentile(0.5)), formatNanos(latencies.percentile(0.99)),
+                    formatNanos(latencies.percentile(0.999)), formatNanos(latencies.max));
+            System.out.printf(Locale.ROOT, "Rollover stalls  : %d calls over %s, %s in total%n", stalls, formatNanos(stallNanos),
+                    formatNanos(stallNanosTotal));
+            long backouts = metrics.getBackouts();
+            long rolledFiles = metrics.getFilesIngested() + backouts;
+            System.out.printf(Locale.ROOT, "Ingestion        : %d files (%d bytes) ingested, %d retries, %d failures, %d still pending%n",
+                    metrics.getFilesIngested(), metrics.getBytesIngested(), metrics.getRetries(), metrics.getFailures(),
+                    metrics.getPendingIngestions());
+            System.out.printf(Locale.ROOT, "Backouts         : %d files, %.2f%% of the rolled files, %.2f per minute%n", backouts,
+                    rolledFiles == 0 ? 0 : 100.0 * backouts / rolledFiles, backouts / (seconds / 60));
+            System.out.printf(Locale.ROOT, "Fake service     : %d accepted, %d throttled, %d transient and %d permanent errors%n",
+                    service.getIngestions(), service.getThrottled(), service.getTransientErrors(), service.getPermanentErrors());
+            kustoClientInstance.close();
+        } finally {
+            Configurator.shutdown(loggerContext);
+            FakeIngestService.install(null);
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>(DEFAULT_OPTIONS);
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            String name = arg.startsWith("--") && separator > 2 ? arg.substring(2, separator) : null;
+            if (name == null || !DEFAULT_OPTIONS.containsKey(name)) {
+                throw new IllegalArgumentException(String.format("Unknown option %s, the options are %s", arg, DEFAULT_OPTIONS.keySet()));
+            }
+            options.put(name, arg.substring(separator + 1));
+        }
+        return options;
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos >= TimeUnit.MILLISECONDS.toNanos(1)) {
+            return String.format(Locale.ROOT, "%.1f ms", nanos / 1_000_000.0);
+        }
+        return String.format(Locale.ROOT, "%.1f us", nanos / 1_000.0);
+    }
+
+    private static final class LoggingThread extends Thread {
+        private final Logger logger;
+        private final String message;
+        private final long deadline;
+        private final long stallNanos;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private long events;
+        private long stalls;
+        private long stallNanosTotal;
+
+        private LoggingThread(int index, Logger logger, String message, long deadline, long stallNanos) {
+            super("KustoLoadTest-" + index);
+            this.logger = logger;
+            this.message = message;
+            this.deadline = deadline;
+            this.stallNanos = stallNanos;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            while (start < deadline) {
+                logger.info(message, events);
+                long end = System.nanoTime();
+                long latency = end - start;
+                latencies.record(latency);
+                if (latency >= stallNanos) {
+                    stalls++;
+                    stallNanosTotal += latency;
+                }
+                events++;
+                start = end;
+            }
+        }
+    }
+
+    /*
+     * Counts the latencies in power of two buckets of nanoseconds, so that recording does not allocate. A percentile is
+     * the upper bound of its bucket, at most twice the actual latency.
+     */
+    private static final class LatencyHistogram {
+        private final long[] buckets = new long[64];
+        private long count;
+        private long max;
+
+        void record(long nanos) {
+            buckets[64 - Long.numberOfLeadingZeros(Math.max(1, nanos)) - 1]++;
+            count++;
+            max = Math.max(max, nanos);
+        }
+
+        void add(LatencyHistogram other) {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] += other.buckets[i];
+            }
+            count += other.count;
+            max = Math.max(max, other.max);
+        }
+
+        long percentile(double quantile) {
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(max, i == 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.commons.csv.QuoteMode;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.StringLayout;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.core.layout.ByteBufferDestinationHelper;
+import org.apache.logging.log4j.core.layout.CsvLogEventLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding one event with the Kusto layouts against CsvLogEventLayout with quoteMode="ALL" (the setup of the
+ * sample), into a ByteBufferDestination as a file appender does. Run with -prof gc to compare the allocation per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LayoutBenchmark {
+
+    @Param({"KustoCsvLayout", "CsvLogEventLayout", "KustoJsonLayout"})
+    public String layoutName;
+
+    private StringLayout layout;
+    private LogEvent event;
+    private final ByteBufferDestination destination = new DiscardingDestination();
+
+    @Setup
+    public void setup() {
+        switch (layoutName) {
+            case "KustoCsvLayout":
+                layout = KustoCsvLayout.createLayout(null);
+                break;
+            case "KustoJsonLayout":
+                layout = KustoJsonLayout.createLayout(null);
+                break;
+            default:
+                layout = CsvLogEventLayout.createLayout(new DefaultConfiguration(), "Default", ',', null, '"', QuoteMode.ALL, null, null,
+                        StandardCharsets.UTF_8, null, null);
+        }
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("requestId", "8f1c2e4a");
+        event = Log4jLogEvent.newBuilder()
+                .setLoggerName("com.example.RequestHandler")
+                .setLoggerFqcn("org.apache.logging.log4j.spi.AbstractLogger")
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage("Processed request 8f1c2e4a in 12 ms, status 200, 1832 bytes returned to the caller"))
+                .setContextData(contextData)
+                .setThreadName("http-nio-8080-exec-1")
+                .setThreadId(42)
+                .setThreadPriority(5)
+                .setTimeMillis(System.currentTimeMillis())
+                .setIncludeLocation(false)
+                .build();
+    }
+
+    @Benchmark
+    public ByteBufferDestination encode() {
+        layout.encode(event, destination);
+        return destination;
+    }
+
+    private static final class DiscardingDestination implements ByteBufferDestination {
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        @Override
+        public ByteBuffer getByteBuffer() {
+            return buffer;
+        }
+
+        @Override
+        public ByteBuffer drain(ByteBuffer buf) {
+            buf.clear();
+            return buf;
+        }
+
+        @Override
+        public void writeBytes(ByteBuffer data) {
+            ByteBufferDestinationHelper.writeToUnsynchronized(data, this);
+        }
+
+        @Override
+        public void writeBytes(byte[] data, int offset, int length) {
+            ByteBufferDestinationHelper.writeToUnsynchronized(data, offset, length, this);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logging throughput of a RollingFile appender with a KustoStrategy that rolls over every rolloverSize bytes, so that
+ * the logging threads regularly wait for the rollover (and with synchronous ingestion, for the upload). Run with
+ * -prof gc to get the allocation per event (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(4)
+public class RolloverBenchmark {
+
+    private static final String MESSAGE = "Processed request 8f1c2e4a in 12 ms, status 200, 1832 bytes returned to the caller";
+
+    @Param({"false", "true"})
+    public boolean asyncIngestion;
+
+    @Param({"false", "true"})
+    public boolean compressUploads;
+
+    @Param({"1 MB"})
+    public String rolloverSize;
+
+    @Param({"0", "50"})
+    public long uploadLatencyMillis;
+
+    private KustoBenchmarkContext context;
+    private Logger logger;
+
+    @Setup
+    public void setup() throws IOException {
+        context = new KustoBenchmarkContext(asyncIngestion, compressUploads, rolloverSize, uploadLatencyMillis);
+        logger = context.getLogger();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        context.close();
+    }
+
+    @Benchmark
+    public void logDuringRollover() {
+        logger.info(MESSAGE);
+    }
+}
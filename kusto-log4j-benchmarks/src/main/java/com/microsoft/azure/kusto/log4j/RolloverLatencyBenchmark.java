@@ -0,0 +1,78 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.appender.rolling.RollingFileManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency distribution (p50 to p99.99) of a rollover, from the rename of the active file to the hand over (or, with
+ * synchronous ingestion, the upload) of the rolled file. Each rollover rolls a file of eventsPerFile events.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class RolloverLatencyBenchmark {
+
+    private static final String MESSAGE = "Processed request 8f1c2e4a in 12 ms, status 200, 1832 bytes returned to the caller";
+
+    @Param({"false", "true"})
+    public boolean asyncIngestion;
+
+    @Param({"false", "true"})
+    public boolean compressUploads;
+
+    @Param({"1000", "10000"})
+    public int eventsPerFile;
+
+    @Param({"0", "50"})
+    public long uploadLatencyMillis;
+
+    private KustoBenchmarkContext context;
+    private Logger logger;
+    private RollingFileManager manager;
+
+    @Setup
+    public void setup() throws IOException {
+        // the size policy never triggers, the benchmark rolls over itself
+        context = new KustoBenchmarkContext(asyncIngestion, compressUploads, "10 GB", uploadLatencyMillis);
+        logger = context.getLogger();
+        manager = context.getManager();
+    }
+
+    @Setup(Level.Invocation)
+    public void writeEvents() {
+        for (int i = 0; i < eventsPerFile; i++) {
+            logger.info(MESSAGE);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        context.close();
+    }
+
+    @Benchmark
+    public void rollover() {
+        manager.rollover();
+    }
+}
@@ -0,0 +1,64 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import com.microsoft.azure.kusto.ingest.IngestClient;
+import com.microsoft.azure.kusto.ingest.source.FileSourceInfo;
+import com.microsoft.azure.kusto.ingest.source.StreamSourceInfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An IngestClient that reads the data it is given to the end, as the real client does when it uploads it, and then
+ * waits for the configured latency instead of talking to a cluster. It is a proxy so that it does not depend on the
+ * exact set of methods of the IngestClient interface.
+ */
+final class StubIngestClient implements InvocationHandler {
+
+    private final long uploadLatencyMillis;
+    private final byte[] readBuffer = new byte[64 * 1024];
+
+    private StubIngestClient(long uploadLatencyMillis) {
+        this.uploadLatencyMillis = uploadLatencyMillis;
+    }
+
+    static IngestClient create(long uploadLatencyMillis) {
+        return (IngestClient) Proxy.newProxyInstance(IngestClient.class.getClassLoader(), new Class<?>[] {IngestClient.class},
+                new StubIngestClient(uploadLatencyMillis));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return method.invoke(this, args);
+        }
+        if (args != null && args.length > 0) {
+            if (args[0] instanceof StreamSourceInfo) {
+                drain(((StreamSourceInfo) args[0]).getStream());
+            } else if (args[0] instanceof FileSourceInfo) {
+                try (InputStream inputStream = Files.newInputStream(Paths.get(((FileSourceInfo) args[0]).getFilePath()))) {
+                    drain(inputStream);
+                }
+            }
+            if (uploadLatencyMillis > 0) {
+                TimeUnit.MILLISECONDS.sleep(uploadLatencyMillis);
+            }
+        }
+        // the appender does not look at the result of queued ingestion
+        return null;
+    }
+
+    private void drain(InputStream inputStream) throws IOException {
+        // the buffer is shared by the uploads, the data read is thrown away anyway
+        while (inputStream.read(readBuffer) != -1) {
+            // read to the end
+        }
+    }
+}
@@ -0,0 +1,20 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import com.microsoft.azure.kusto.ingest.IngestClient;
+
+/**
+ * Creates StubIngestClients with the upload latency of the kusto.benchmark.uploadLatencyMillis system property (0 when
+ * it is not set), set with ingestClientSupplier="com.microsoft.azure.kusto.log4j.StubIngestClientSupplier" on the
+ * KustoStrategy. It is public with a public constructor since the KustoStrategy instantiates it by its name.
+ */
+public final class StubIngestClientSupplier implements KustoIngestClientSupplier {
+
+    static final String UPLOAD_LATENCY_PROPERTY = "kusto.benchmark.uploadLatencyMillis";
+
+    @Override
+    public IngestClient createClient(String ingestionMode) {
+        return StubIngestClient.create(Long.getLong(UPLOAD_LATENCY_PROPERTY, 0));
+    }
+}
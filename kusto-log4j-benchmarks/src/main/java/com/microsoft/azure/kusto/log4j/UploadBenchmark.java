@@ -0,0 +1,95 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.azure.kusto.log4j;
+
+import org.apache.logging.log4j.core.appender.rolling.FileSize;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.microsoft.azure.kusto.ingest.result.IngestionResult;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload throughput of rolled files of different sizes, i.e. the cost of reading (and optionally compressing) the file
+ * on the client side. A file source is how rolled files are ingested, a stream source is how coalesced files are. The
+ * stub client adds no latency. The bytes counter gives the throughput in bytes per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class UploadBenchmark {
+
+    private static final String LINE = "2024-01-01 00:00:00.000,INFO,KustoBenchmark,main,"
+            + "\"Processed request 8f1c2e4a in 12 ms, status 200, 1832 bytes returned to the caller\"\n";
+
+    @Param({"64 KB", "1 MB", "16 MB", "128 MB"})
+    public String fileSize;
+
+    @Param({"file", "stream", "gzipStream"})
+    public String source;
+
+    private KustoBenchmarkContext context;
+    private KustoClientInstance kustoClientInstance;
+    private String rolledFile;
+    private long rolledFileSize;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class UploadCounters {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        context = new KustoBenchmarkContext(false, "gzipStream".equals(source), "10 GB", 0);
+        kustoClientInstance = context.getKustoClientInstance();
+        long targetSize = FileSize.parse(fileSize, 0);
+        rolledFile = context.getDirectory().resolve("rolled.log").toString();
+        try (BufferedWriter writer = Files.newBufferedWriter(context.getDirectory().resolve("rolled.log"), StandardCharsets.UTF_8)) {
+            for (long written = 0; written < targetSize; written += LINE.length()) {
+                writer.write(LINE);
+            }
+        }
+        rolledFileSize = Files.size(context.getDirectory().resolve("rolled.log"));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        context.close();
+    }
+
+    @Benchmark
+    public IngestionResult upload(UploadCounters counters) throws Exception {
+        IngestionResult ingestionResult = "file".equals(source)
+                ? kustoClientInstance.ingestLogs(rolledFile)
+                : kustoClientInstance.ingestFiles(Collections.singletonList(rolledFile));
+        counters.bytes += rolledFileSize;
+        return ingestionResult;
+    }
+}